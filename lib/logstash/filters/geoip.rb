@@ -3,6 +3,7 @@ require "logstash/filters/base"
 require "logstash/namespace"
 require "logstash-filter-geoip_jars"
 require "logstash/plugin_mixins/ecs_compatibility_support"
+require "concurrent"
 
 
 # The GeoIP filter adds information about the geographical location of IP addresses,
@@ -59,6 +60,11 @@ class LogStash::Filters::GeoIP < LogStash::Filters::Base
   # `dma_code`, `ip`, `latitude`, `longitude`, `postal_code`, `region_name` and `timezone`.
   config :fields, :validate => :array
 
+  # The languages of the `city_name`, `continent_name`, `country_name` and `region_name` fields, in order of preference.
+  # Each name is taken from the first language it exists in. Only the English names of the City and Enterprise records
+  # are decoded with the default value.
+  config :locales, :validate => :array, :default => ["en"]
+
   # Specify the field into which Logstash should store the geoip data.
   # This can be useful, for example, if you have `src_ip` and `dst_ip` fields and
   # would like the GeoIP information of both IPs.
@@ -78,23 +84,122 @@ class LogStash::Filters::GeoIP < LogStash::Filters::Base
   # IPs agents are often found adjacent to one another in log files and rarely have a random distribution.
   # The higher you set this the more likely an item is to be in the cache and the faster this filter will run.
   # However, if you set this too high you can use more memory than desired.
-  # Since the Geoip API upgraded to v2, there is not any eviction policy so far, if cache is full, no more record can be added.
+  # Lookup results are kept in a bounded cache, and once it is full the least recently used entries are evicted.
+  # Results are cached both per IP address and per network reported by the database, so any address of an already
+  # resolved network is answered without a database lookup.
   # Experiment with different values for this option to find the best performance for your dataset.
   #
   # This MUST be set to a value > 0. There is really no reason to not want this behavior, the overhead is minimal
   # and the speed gains are large.
   #
-  # It is important to note that this config value is global to the geoip_type. That is to say all instances of the geoip filter
-  # of the same geoip_type share the same cache. The last declared cache size will 'win'. The reason for this is that there would be no benefit
-  # to having multiple caches for different instances at different points in the pipeline, that would just increase the
-  # number of cache misses and waste memory.
+  # It is important to note that this config value is global to the database file. That is to say all instances of the geoip filter,
+  # across all pipelines, using the same database file and the same `fields` share the same database reader and cache. The first declared
+  # cache size will 'win'. The reason for this is that there would be no benefit to having multiple caches for different instances at
+  # different points in the pipeline, that would just increase the number of cache misses and waste memory.
   config :cache_size, :validate => :number, :default => 1000
 
+  # Which new addresses are cached once the cache is full.
+  # `lru` caches every new address, evicting the least recently used one.
+  # `tinylfu` only caches a new address if it was looked up more often recently than the entry it would evict,
+  # so a scan of addresses seen once, for example from a port scanner or a DDoS, can't flush the frequent clients.
+  # Like `cache_size`, the first declared value wins for a shared cache.
+  config :cache_admission, :validate => ["lru", "tinylfu"], :default => "lru"
+
+  # The number of addresses of a single /24 IPv4 or /48 IPv6 source network the cache holds at most, new addresses of a
+  # network at its cap are looked up without being cached. `0` doesn't cap the networks.
+  # Like `cache_size`, the first declared value wins for a shared cache.
+  config :cache_network_cap, :validate => :number, :default => 0
+
+  # The size of a cache of lookup results held in direct memory, outside of the heap, behind the `cache_size` caches.
+  # It takes sizes like `2gb`, and `0` disables it. Results are stored in a compact binary form and decoded on a hit,
+  # the oldest results are overwritten once the cache is full. It must be at least `1mb`, and the JVM's
+  # `-XX:MaxDirectMemorySize` must leave room for it. Like `cache_size`, the first declared value wins for a shared cache.
+  config :off_heap_cache_size, :validate => :bytes, :default => 0
+
   # Tags the event on failure to look up geo information. This can be used in later analysis.
+  # Events carrying a reserved address, which isn't looked up, are also tagged with `_geoip_reserved_address`.
   config :tag_on_failure, :validate => :array, :default => ["_geoip_lookup_failure"]
 
+  # Additional databases to look up with the same `source` IP, their records are merged into the same `target`.
+  # Keys are database paths and values are the fields to include from that database, its default fields when empty.
+  # Fields found in several databases are taken from the first one declaring them, starting with `database`.
+  # Additional databases are not updated by the database manager.
+  #
+  #     additional_databases => {
+  #       "/path/to/GeoLite2-ASN.mmdb" => []
+  #       "/path/to/GeoIP2-Anonymous-IP.mmdb" => ["is_anonymous", "is_tor_exit_node"]
+  #     }
+  config :additional_databases, :validate => :hash, :default => {}
+
+  # Additional source fields to enrich with the same databases and cache, keys are source fields and values their target fields.
+  # The event is tagged with `tag_on_failure` unless every source field is enriched.
+  #
+  #     additional_sources => { "[destination][ip]" => "[destination]" }
+  config :additional_sources, :validate => :hash, :default => {}
+
+  # Which elements of a source field holding a list of IPs are looked up.
+  # `first` only looks up the first element.
+  # `first_public` looks up the first element that is not a private or reserved address, as in an X-Forwarded-For chain.
+  # `all` looks up every element, the target then holds the list of the results, with an empty result for each failed element.
+  config :array_mode, :validate => ["first", "first_public", "all"], :default => "first"
+
+  # How records are looked up.
+  # `mmdb` walks the database for every lookup.
+  # `range_table` preloads the Country, ASN and Anonymous-IP databases into sorted address ranges when the filter starts,
+  # trading memory and startup time for lookups without decoding. Other database types are looked up with `mmdb`.
+  config :lookup_engine, :validate => ["mmdb", "range_table"], :default => "mmdb"
+
+  # IPv6 addresses sharing a prefix of this length share one cache entry, as long as the network of their database record
+  # covers the whole prefix. Clients rotating privacy addresses within their /64 are then answered from the cache.
+  # Set it to 128 to cache every IPv6 address on its own.
+  config :ipv6_cache_prefix_length, :validate => :number, :default => 64
+
+  # The number of lookup results each pipeline worker keeps for itself, in front of the caches shared by every worker,
+  # rounded up to a power of two. Consecutive events from the same client are then answered without touching the shared
+  # caches. `0` disables the worker caches.
+  config :thread_cache_size, :validate => :number, :default => 0
+
+  # How the database files are loaded.
+  # `mmap` maps the files, their pages are read on first access and can be evicted under memory pressure.
+  # `heap` reads the whole files into the heap, lookups never wait on a page fault.
+  # `mmap_touch` maps the files and reads every page when the database is opened.
+  config :database_file_mode, :validate => ["mmap", "heap", "mmap_touch"], :default => "mmap"
+
+  # How many synthetic lookups are run when the filter starts, after reading the pages of the databases, so the first
+  # events don't run against cold pages and interpreted code. `0` disables the warm-up.
+  config :warmup_lookups, :validate => :number, :default => 0
+
+  # How long, in seconds, the warm-up runs at most. It also bounds how long the cache is carried over on database updates.
+  config :warmup_timeout, :validate => :number, :default => 30
+
+  # How cached results survive a database update.
+  # `revalidate` looks the cached addresses up again in the new database before it is used.
+  # `diff` compares the networks of both databases, keeping the results of the networks that didn't change.
+  # Databases that are too large or can't be compared within `warmup_timeout` are revalidated.
+  config :cache_carry_over, :validate => ["revalidate", "diff"], :default => "revalidate"
+
+  # How `source` values that are not IP literals are handled.
+  # `blocking` resolves hostnames on the pipeline worker thread, which stalls the worker while the DNS lookup runs.
+  # `async` resolves hostnames on a bounded background executor, waits at most `hostname_resolution_timeout` for the answer
+  # and caches resolved and failed hostnames.
+  # `disabled` only accepts IP literals, and tags events carrying a hostname as lookup failures.
+  config :hostname_resolution, :validate => ["blocking", "async", "disabled"], :default => "blocking"
+
+  # How long, in seconds, an event waits for an `async` hostname resolution. Events whose hostname can't be resolved
+  # in time are tagged with `_geoip_hostname_resolution_timeout`, the resolution keeps running and its answer is cached.
+  config :hostname_resolution_timeout, :validate => :number, :default => 0.5
+
+  # How long, in seconds, resolved hostnames are cached when `hostname_resolution` is `async`.
+  config :hostname_cache_ttl, :validate => :number, :default => 60
+
+  # How long, in seconds, hostnames that failed to resolve are cached when `hostname_resolution` is `async`.
+  config :hostname_failed_cache_ttl, :validate => :number, :default => 5
+
   public
 
+  # How often, in seconds, the lookup metrics of the Java filter are copied to the plugin's metrics.
+  METRICS_REPORT_INTERVAL = 5
+
   ECS_TARGET_FIELD = %w{
     client
     destination
@@ -107,6 +212,7 @@ class LogStash::Filters::GeoIP < LogStash::Filters::Base
   def register
     setup_target_field
     setup_filter(select_database_path)
+    start_metrics_reporter
   end
 
   public
@@ -121,6 +227,28 @@ class LogStash::Filters::GeoIP < LogStash::Filters::Base
     end
   end
 
+  # Enriches the whole batch in a single call, so duplicate IPs of the batch are looked up once.
+  # Like `filter`, `filter_matched` runs for every enriched event. The batch bypasses the base `do_filter`, which times
+  # each event for the slowlog, so the slowlog doesn't report this filter.
+  def multi_filter(events)
+    return super unless @healthy_database
+
+    LogStash::Util.set_thread_plugin(self)
+    result = events.reject(&:cancelled?)
+    matching = result.select { |event| filter?(event) }
+    return result if matching.empty?
+
+    enriched = @geoipfilter.handleEvents(matching)
+    matching.each_with_index do |event, index|
+      if enriched[index]
+        filter_matched(event)
+      else
+        tag_unsuccessful_lookup(event)
+      end
+    end
+    result
+  end
+
   def tag_unsuccessful_lookup(event)
     @logger.debug? && @logger.debug("IP #{event.get(@source)} was not found in the database", :event => event)
     @tag_on_failure.each{|tag| event.tag(tag)}
@@ -149,7 +277,31 @@ class LogStash::Filters::GeoIP < LogStash::Filters::Base
     return if database_path.nil?
 
     @database = database_path
-    @geoipfilter = org.logstash.filters.geoip.GeoIPFilter.new(@source, @target, @fields, @database, @cache_size, ecs_compatibility.to_s)
+    builder = org.logstash.filters.geoip.GeoIPFilter::Builder.new(@source, @target, @database)
+                     .withFields(@fields)
+                     .withLocales(@locales)
+                     .withCacheSize(@cache_size)
+                     .withCacheAdmission(@cache_admission)
+                     .withCacheNetworkCap(@cache_network_cap)
+                     .withOffHeapCacheSize(@off_heap_cache_size)
+                     .withEcsCompatibility(ecs_compatibility.to_s)
+                     .withHostnameResolution(@hostname_resolution)
+                     .withHostnameResolutionTimeoutMillis((@hostname_resolution_timeout * 1000).to_i)
+                     .withHostnameCacheTtlMillis((@hostname_cache_ttl * 1000).to_i, (@hostname_failed_cache_ttl * 1000).to_i)
+    builder.withArrayMode(@array_mode)
+    builder.withLookupEngine(@lookup_engine)
+    builder.withIpv6CachePrefixLength(@ipv6_cache_prefix_length)
+    builder.withThreadCacheSize(@thread_cache_size)
+    builder.withDatabaseFileMode(@database_file_mode)
+    builder.withWarmup(@warmup_lookups, (@warmup_timeout * 1000).to_i)
+    builder.withCacheCarryOver(@cache_carry_over)
+    @additional_sources.each do |source, target|
+      builder.withAdditionalSource(source, target)
+    end
+    @additional_databases.each do |path, fields|
+      builder.withAdditionalDatabase(path, Array(fields))
+    end
+    @geoipfilter = builder.build
   end
 
   # call by DatabaseManager
@@ -158,7 +310,7 @@ class LogStash::Filters::GeoIP < LogStash::Filters::Base
 
     case action
     when :update
-      setup_filter(*args)
+      @geoipfilter ? swap_database(*args) : setup_filter(*args)
     when :expire
       fail_filter
     else
@@ -166,11 +318,48 @@ class LogStash::Filters::GeoIP < LogStash::Filters::Base
     end
   end
 
+  # Swaps the database of the running filter in the background, events keep being enriched with the
+  # current database until the new one is ready, and the current one is released once it is no longer used.
+  def swap_database(database_path)
+    return fail_filter if database_path.nil?
+
+    @geoipfilter.swapDatabase(database_path).whenComplete do |_, error|
+      if error
+        @logger.error("Failed to swap the geoip database", :path => database_path, :exception => error)
+      else
+        @database = database_path
+        @healthy_database = true
+      end
+    end
+  end
+
   def fail_filter
     @healthy_database = false
   end
 
+  # The Java filter counts its lookups with its own lock-free counters, which are copied as gauges to the plugin's
+  # metric namespace in the background, so they show up in the node stats API without any cost on the worker threads.
+  def start_metrics_reporter
+    @metrics_reporter = Concurrent::TimerTask.new(:execution_interval => METRICS_REPORT_INTERVAL) { report_metrics }
+    @metrics_reporter.execute
+  end
+
+  def report_metrics
+    return unless @geoipfilter
+
+    @geoipfilter.getMetrics.each do |name, value|
+      metric.gauge(name.to_sym, value)
+    end
+  rescue => e
+    @logger.debug("Failed to report the geoip metrics", :exception => e)
+  end
+
   def close
+    if @metrics_reporter
+      @metrics_reporter.shutdown
+      report_metrics
+    end
+
     begin
       @database_manager.unsubscribe_database_path(@default_database_type, self) if @database_manager
     rescue => e
@@ -48,6 +48,15 @@ describe LogStash::Filters::GeoIP do
       end
     end
 
+    context "when ip is a private address" do
+      let(:ip) { "192.168.1.1" }
+      it_behaves_like "invalid string IP"
+
+      it "should be tagged as reserved" do
+        expect(event.get("tags")).to include("_geoip_reserved_address")
+      end
+    end
+
     context "when ip is empty string" do
       let(:ip) { "" }
       it_behaves_like "invalid empty IP"
@@ -84,6 +93,80 @@ describe LogStash::Filters::GeoIP do
     end
   end
 
+  describe "multi_filter" do
+    let(:plugin) {
+      LogStash::Filters::GeoIP.new(
+        "source" => "ip",
+        "target" => target,
+        "fields" => %w[country_name ip],
+        "database" => CITYDB
+      )
+    }
+    let(:events) {
+      ["8.8.8.8", "N/A", "8.8.8.8", "2001:4860:4860::8888", nil].map do |ip|
+        ip.nil? ? LogStash::Event.new("message" => "no ip") : LogStash::Event.new("ip" => ip)
+      end
+    }
+
+    before do
+      plugin.register
+    end
+
+    it "should enrich every event of the batch" do
+      result = plugin.multi_filter(events)
+
+      expect(result).to eq(events)
+      expect(events[0].get("[#{target}][country_name]")).to eq("United States")
+      expect(events[0].get("[#{target}][ip]")).to eq("8.8.8.8")
+      expect(events[1].get(target)).to eq({})
+      expect(events[1].get("tags")).to include("_geoip_lookup_failure")
+      expect(events[2].get(target)).to eq(events[0].get(target))
+      expect(events[3].get("[#{target}][ip]")).to eq("2001:4860:4860:0:0:0:0:8888")
+      expect(events[4].get(target)).to be_nil
+      expect(events[4].get("tags")).to include("_geoip_lookup_failure")
+    end
+
+    it "should skip cancelled events" do
+      events[0].cancel
+      result = plugin.multi_filter(events)
+
+      expect(result).not_to include(events[0])
+      expect(events[0].get(target)).to be_nil
+    end
+  end
+
+  describe "metrics" do
+    let(:plugin) {
+      LogStash::Filters::GeoIP.new(
+        "source" => "ip",
+        "target" => target,
+        "fields" => %w[country_name ip],
+        "database" => CITYDB
+      )
+    }
+
+    before do
+      plugin.register
+    end
+
+    after do
+      plugin.close
+    end
+
+    it "should report the lookup metrics of the filter" do
+      ["8.8.8.8", "8.8.8.8", "N/A"].each { |ip| plugin.filter(LogStash::Event.new("ip" => ip)) }
+      allow(plugin.metric).to receive(:gauge)
+
+      plugin.report_metrics
+
+      expect(plugin.metric).to have_received(:gauge).with(:lookups, 2)
+      expect(plugin.metric).to have_received(:gauge).with(:cache_misses, 1)
+      expect(plugin.metric).to have_received(:gauge).with(:result_cache_hits, 1)
+      expect(plugin.metric).to have_received(:gauge).with(:invalid_input, 1)
+      expect(plugin.metric).to have_received(:gauge).with(:database_lookup_p99_nanos, kind_of(Numeric))
+    end
+  end
+
   describe "database path is empty" do
     let(:plugin) { LogStash::Filters::GeoIP.new("source" => "message", "target" => target) }
     let(:event) { LogStash::Event.new("message" => "8.8.8.8") }
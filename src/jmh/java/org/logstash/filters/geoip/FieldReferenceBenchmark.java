@@ -0,0 +1,106 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import org.logstash.Event;
+import org.logstash.FieldReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the default City fields to an event, building the target field references per event
+ * as {@code applyGeoData} used to, or using references parsed once when the filter is created.
+ * It writes to logstash-core events, so it runs on a tree with logstash-core:
+ * {@code ./gradlew jmh -PjmhIncludes=FieldReferenceBenchmark}.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class FieldReferenceBenchmark {
+
+  @Param({"geoip", "[client][geo]"})
+  public String target;
+
+  private final Map<Field, Object> geoData = new EnumMap<>(Field.class);
+  private final Map<Field, String> subFieldReferences = new EnumMap<>(Field.class);
+  private final Map<Field, FieldReference> fieldReferences = new EnumMap<>(Field.class);
+
+  @Setup
+  public void setup() {
+    for (Field field : Database.CITY.getDefaultFields()) {
+      geoData.put(field, sampleValue(field));
+      subFieldReferences.put(field, field.getFieldReferenceECSv1());
+      fieldReferences.put(field, FieldReference.from("[" + target + "]" + field.getFieldReferenceECSv1()));
+    }
+  }
+
+  @Benchmark
+  public Event stringReferences() {
+    final Event event = new Event();
+    final String targetFieldReference = "[" + target + "]";
+    for (Map.Entry<Field, Object> it : geoData.entrySet()) {
+      event.setField(targetFieldReference + subFieldReferences.get(it.getKey()), it.getValue());
+    }
+    return event;
+  }
+
+  @Benchmark
+  public Event precompiledReferences() {
+    final Event event = new Event();
+    for (Map.Entry<Field, Object> it : geoData.entrySet()) {
+      event.setField(fieldReferences.get(it.getKey()), it.getValue());
+    }
+    return event;
+  }
+
+  private static Object sampleValue(final Field field) {
+    switch (field) {
+      case DMA_CODE:
+        return 819L;
+      case LATITUDE:
+        return 47.2513;
+      case LONGITUDE:
+        return -122.3149;
+      case LOCATION:
+        final Map<String, Object> location = new HashMap<>();
+        location.put("lat", 47.2513);
+        location.put("lon", -122.3149);
+        return location;
+      default:
+        return field.name().toLowerCase();
+    }
+  }
+}
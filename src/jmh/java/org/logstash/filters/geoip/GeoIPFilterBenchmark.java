@@ -0,0 +1,263 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.DatabaseRecord;
+import com.maxmind.db.InvalidNetworkException;
+import com.maxmind.db.Network;
+import com.maxmind.db.Networks;
+import com.maxmind.db.Reader;
+import org.logstash.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.logstash.RubyUtil.RUBY;
+import static org.logstash.ext.JrubyEventExtLibrary.RubyEvent;
+
+/**
+ * Enriches events with {@link GeoIPFilter#handleEvent}, for each database type of the MaxMind test databases.
+ * Each operation creates the event and enriches it, the addresses follow the configured distribution over
+ * addresses of the database's own networks, so lookups mostly succeed.
+ *
+ * Run the allocation profiler along with it to get the bytes allocated per operation, it's enabled by default by
+ * the {@code jmh} task: {@code ./gradlew jmh -PjmhIncludes=GeoIPFilterBenchmark -PjmhArgs="-p database=CITY"}.
+ * The cost of decoding the names in other languages shows on the misses:
+ * {@code -PjmhArgs="-p database=CITY -p cacheSize=0 -p distribution=UNIFORM -p locales=en,de"}.
+ * The test databases are read from {@code src/test/resources/maxmind-test-data}, or from the directory of the
+ * {@code geoip.benchmark.databases} system property.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class GeoIPFilterBenchmark {
+
+  private static final String SOURCE_FIELD = "ip";
+  private static final String TARGET_FIELD = "geo";
+  private static final int EVENTS = 1 << 16;
+  private static final int DISTINCT_ADDRESSES = 4096;
+  private static final int ADJACENT_RUN_LENGTH = 32;
+
+  public enum Distribution {
+    /**
+     * A few hot addresses and a long tail, as in most logs.
+     */
+    ZIPFIAN,
+    UNIFORM,
+    /**
+     * Runs of consecutive addresses of the same network, as in scans, which miss the result cache and hit the network cache.
+     */
+    ADJACENT,
+    IPV6_HEAVY
+  }
+
+  // the name of a Database, which isn't visible to the generated benchmark code
+  @Param({"CITY", "COUNTRY", "ASN", "ISP", "DOMAIN", "ANONYMOUS_IP", "ENTERPRISE"})
+  public String database;
+
+  @Param({"disabled", "v1"})
+  public String ecsCompatibility;
+
+  @Param({"0", "1000", "100000"})
+  public int cacheSize;
+
+  @Param({"false", "true"})
+  public boolean explicitFields;
+
+  @Param({"ZIPFIAN", "UNIFORM", "ADJACENT", "IPV6_HEAVY"})
+  public Distribution distribution;
+
+  // English only names, or names decoded in every language
+  @Param({"en", "de"})
+  public String locales;
+
+  private GeoIPFilter filter;
+  private String[] ips;
+  private int next;
+
+  @Setup
+  public void setup() throws IOException {
+    final Database databaseType = Database.valueOf(database);
+    final File databaseFile = databaseFile(databaseType);
+    ips = generateIps(databaseFile, distribution);
+
+    final GeoIPFilter.Builder builder = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, databaseFile.getPath())
+            .withCacheSize(cacheSize)
+            .withEcsCompatibility(ecsCompatibility)
+            .withLocales(List.of(locales));
+    if (explicitFields) {
+      builder.withFields(explicitFields(databaseType));
+    }
+    filter = builder.build();
+  }
+
+  @TearDown
+  public void tearDown() {
+    filter.close();
+  }
+
+  @Benchmark
+  public boolean handleEvent() {
+    final String ip = ips[next++ & (EVENTS - 1)];
+    return filter.handleEvent(RubyEvent.newRubyEvent(RUBY, new Event(Collections.singletonMap(SOURCE_FIELD, ip))));
+  }
+
+  private static File databaseFile(final Database database) {
+    final File directory = new File(System.getProperty("geoip.benchmark.databases", "src/test/resources/maxmind-test-data"));
+    switch (database) {
+      case CITY:
+        return new File(directory, "GeoIP2-City-Test.mmdb");
+      case COUNTRY:
+        return new File(directory, "GeoIP2-Country-Test.mmdb");
+      case ASN:
+        return new File(directory, "GeoLite2-ASN-Test.mmdb");
+      case ISP:
+        return new File(directory, "GeoIP2-ISP-Test.mmdb");
+      case DOMAIN:
+        return new File(directory, "GeoIP2-Domain-Test.mmdb");
+      case ANONYMOUS_IP:
+        return new File(directory, "GeoIP2-Anonymous-IP-Test.mmdb");
+      case ENTERPRISE:
+        return new File(directory, "GeoIP2-Enterprise-Test.mmdb");
+      default:
+        throw new IllegalArgumentException("no test database of type " + database);
+    }
+  }
+
+  /**
+   * @return a couple of the default fields, as pipelines only interested in some of them configure
+   */
+  private static List<String> explicitFields(final Database database) {
+    switch (database) {
+      case CITY:
+      case ENTERPRISE:
+        return Arrays.asList(Field.COUNTRY_CODE2.name(), Field.LOCATION.name());
+      case COUNTRY:
+        return Arrays.asList(Field.COUNTRY_CODE2.name(), Field.CONTINENT_NAME.name());
+      case ASN:
+      case ISP:
+        return Collections.singletonList(Field.AUTONOMOUS_SYSTEM_NUMBER.name());
+      case DOMAIN:
+        return Collections.singletonList(Field.DOMAIN.name());
+      case ANONYMOUS_IP:
+        return Collections.singletonList(Field.ANONYMOUS.name());
+      default:
+        throw new IllegalArgumentException("no explicit fields for " + database);
+    }
+  }
+
+  private static String[] generateIps(final File databaseFile, final Distribution distribution) throws IOException {
+    final List<Network> ipv4Networks = new ArrayList<>();
+    final List<Network> ipv6Networks = new ArrayList<>();
+    try (Reader reader = new Reader(databaseFile)) {
+      final Networks<Map> networks = reader.networks(false, Map.class);
+      while (networks.hasNext()) {
+        final DatabaseRecord<Map> record = networks.next();
+        final Network network = record.getNetwork();
+        (network.getNetworkAddress().getAddress().length == 4 ? ipv4Networks : ipv6Networks).add(network);
+      }
+    } catch (InvalidNetworkException e) {
+      throw new IOException("The database contains an invalid network: " + e.getMessage(), e);
+    }
+
+    final SplittableRandom random = new SplittableRandom(42);
+    final int ipv6Percent = distribution == Distribution.IPV6_HEAVY ? 90 : 20;
+    final InetAddress[] distinct = new InetAddress[DISTINCT_ADDRESSES];
+    for (int i = 0; i < distinct.length; i++) {
+      final boolean ipv6 = ipv4Networks.isEmpty() || (!ipv6Networks.isEmpty() && random.nextInt(100) < ipv6Percent);
+      final List<Network> networks = ipv6 ? ipv6Networks : ipv4Networks;
+      distinct[i] = randomAddress(networks.get(random.nextInt(networks.size())), random);
+    }
+
+    final String[] ips = new String[EVENTS];
+    switch (distribution) {
+      case ZIPFIAN:
+        final double[] cumulativeWeights = new double[distinct.length];
+        double total = 0;
+        for (int rank = 0; rank < distinct.length; rank++) {
+          total += 1.0 / (rank + 1);
+          cumulativeWeights[rank] = total;
+        }
+        for (int i = 0; i < ips.length; i++) {
+          final int index = Arrays.binarySearch(cumulativeWeights, random.nextDouble() * total);
+          ips[i] = distinct[Math.min(index < 0 ? -index - 1 : index, distinct.length - 1)].getHostAddress();
+        }
+        break;
+      case ADJACENT:
+        for (int i = 0; i < ips.length; i += ADJACENT_RUN_LENGTH) {
+          final byte[] address = distinct[random.nextInt(distinct.length)].getAddress();
+          for (int j = i; j < Math.min(i + ADJACENT_RUN_LENGTH, ips.length); j++) {
+            ips[j] = InetAddress.getByAddress(address).getHostAddress();
+            increment(address);
+          }
+        }
+        break;
+      case UNIFORM:
+      case IPV6_HEAVY:
+      default:
+        for (int i = 0; i < ips.length; i++) {
+          ips[i] = distinct[random.nextInt(distinct.length)].getHostAddress();
+        }
+        break;
+    }
+    return ips;
+  }
+
+  /**
+   * @return an address of the network with random host bits
+   */
+  private static InetAddress randomAddress(final Network network, final SplittableRandom random) throws IOException {
+    final byte[] address = network.getNetworkAddress().getAddress();
+    for (int bit = network.getPrefixLength(); bit < address.length * 8; bit++) {
+      if (random.nextBoolean()) {
+        address[bit / 8] |= (byte) (0x80 >>> (bit % 8));
+      }
+    }
+    return InetAddress.getByAddress(address);
+  }
+
+  private static void increment(final byte[] address) {
+    for (int i = address.length - 1; i >= 0 && ++address[i] == 0; i--) {
+      // carry
+    }
+  }
+}
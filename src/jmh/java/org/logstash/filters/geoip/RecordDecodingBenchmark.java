@@ -0,0 +1,133 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.DatabaseRecord;
+import com.maxmind.db.InvalidNetworkException;
+import com.maxmind.db.NoCache;
+import com.maxmind.db.Networks;
+import com.maxmind.db.Reader;
+import com.maxmind.geoip2.exception.GeoIp2Exception;
+import com.maxmind.geoip2.model.CityResponse;
+import com.maxmind.geoip2.model.EnterpriseResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up and decodes the records of the City and Enterprise test databases with {@link GeoIPDatabase#retrieve},
+ * without the result caches nor the decoder cache, so every operation decodes a record. {@code geoip2Response}
+ * decodes the same records into the geoip2 responses, which hold the names in every language.
+ * It doesn't need an event, so it also runs without logstash-core on the classpath:
+ * {@code ./gradlew jmh -PjmhIncludes=RecordDecodingBenchmark}.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class RecordDecodingBenchmark {
+
+  private static final int ADDRESSES = 1 << 10;
+
+  @Param({"CITY", "ENTERPRISE"})
+  public String database;
+
+  // English only names, or names decoded in every language
+  @Param({"en", "de"})
+  public String locales;
+
+  private GeoIPDatabase geoIPDatabase;
+  private Reader reader;
+  private Class<?> responseType;
+  private IpAddressKey[] addresses;
+  private int next;
+
+  @Setup
+  public void setup() throws IOException, GeoIp2Exception {
+    final File databaseFile = new File(System.getProperty("geoip.benchmark.databases", "src/test/resources/maxmind-test-data"),
+            Database.valueOf(database) == Database.CITY ? "GeoIP2-City-Test.mmdb" : "GeoIP2-Enterprise-Test.mmdb");
+    responseType = Database.valueOf(database) == Database.CITY ? CityResponse.class : EnterpriseResponse.class;
+    geoIPDatabase = new GeoIPDatabase(databaseFile.getPath(), List.of(), List.of(locales), 0, true,
+            LookupEngine.MMDB, DatabaseFileMode.MMAP);
+    reader = new Reader(databaseFile, NoCache.getInstance());
+    addresses = decodableAddresses(databaseFile);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    geoIPDatabase.close();
+    reader.close();
+  }
+
+  @Benchmark
+  public LookupResult retrieve() throws IOException, GeoIp2Exception {
+    return geoIPDatabase.retrieve(addresses[next++ & (ADDRESSES - 1)]);
+  }
+
+  @Benchmark
+  public Object geoip2Response() throws IOException {
+    return reader.get(addresses[next++ & (ADDRESSES - 1)].toInetAddress(), responseType);
+  }
+
+  /**
+   * @return the first address of the networks with a record, skipping the customized records the filter can't decode
+   */
+  private IpAddressKey[] decodableAddresses(final File databaseFile) throws IOException, GeoIp2Exception {
+    final List<IpAddressKey> decodable = new ArrayList<>();
+    try (Reader networksReader = new Reader(databaseFile)) {
+      final Networks<Map> networks = networksReader.networks(false, Map.class);
+      while (networks.hasNext()) {
+        final DatabaseRecord<Map> record = networks.next();
+        final IpAddressKey address = IpAddressKey.of(record.getNetwork().getNetworkAddress());
+        try {
+          geoIPDatabase.retrieve(address);
+          reader.get(address.toInetAddress(), responseType);
+          decodable.add(address);
+        } catch (GeoIp2Exception | RuntimeException e) {
+          // customized record
+        }
+      }
+    } catch (InvalidNetworkException e) {
+      throw new IOException("The database contains an invalid network: " + e.getMessage(), e);
+    }
+    final IpAddressKey[] addresses = new IpAddressKey[ADDRESSES];
+    for (int i = 0; i < addresses.length; i++) {
+      addresses[i] = decodable.get(i % decodable.size());
+    }
+    return addresses;
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Which new addresses are added to the lookup caches once they are full.
+ */
+enum CacheAdmission {
+
+  // every new address evicts the least recently used one
+  LRU,
+  // a new address only evicts the least recently used one if it was looked up more often recently
+  TINYLFU;
+
+  static CacheAdmission parse(final String value) {
+    try {
+      return CacheAdmission.valueOf(value.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("illegal cache admission value " + value + ". valid values are " +
+              Arrays.toString(CacheAdmission.values()));
+    }
+  }
+}
@@ -0,0 +1,467 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.MaxMindDbConstructor;
+import com.maxmind.db.MaxMindDbParameter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Compact models of the City and Enterprise records, decoded straight out of the database instead of the
+ * complete geoip2 responses. The decoder skips the keys a model has no parameter for, so the records of a model
+ * that the projected fields don't need are never materialized, and neither are the names in other languages than
+ * English unless other locales are requested.
+ *
+ * The model of a database is selected from its projected fields and locales with {@link #recordType(Database, Set, List)}.
+ */
+final class CompactRecords {
+
+  static final List<String> DEFAULT_LOCALES = List.of("en");
+  // the languages of the names in the MaxMind databases
+  static final List<String> SUPPORTED_LOCALES = List.of("de", "en", "es", "fr", "ja", "pt-BR", "ru", "zh-CN");
+
+  private static final Set<Field> LOCATION_FIELDS = EnumSet.of(Field.IP, Field.LOCATION, Field.LATITUDE,
+          Field.LONGITUDE, Field.TIMEZONE, Field.DMA_CODE, Field.NETWORK);
+  private static final Set<Field> COUNTRY_FIELDS = EnumSet.of(Field.COUNTRY_CODE2, Field.COUNTRY_CODE3,
+          Field.COUNTRY_NAME);
+  private static final Set<Field> TRAITS_FIELDS = EnumSet.of(Field.IP, Field.NETWORK,
+          Field.AUTONOMOUS_SYSTEM_NUMBER, Field.AUTONOMOUS_SYSTEM_ORGANIZATION, Field.HOSTING_PROVIDER,
+          Field.TOR_EXIT_NODE, Field.ANONYMOUS_VPN, Field.ANONYMOUS, Field.PUBLIC_PROXY, Field.RESIDENTIAL_PROXY);
+  private static final Set<Field> NAME_FIELDS = EnumSet.of(Field.CITY_NAME, Field.CONTINENT_NAME, Field.COUNTRY_NAME,
+          Field.REGION_NAME);
+
+  private CompactRecords() { /* empty */ }
+
+  /**
+   * @return the locales, in order of preference
+   */
+  static List<String> parseLocales(final List<String> values) {
+    if (values == null || values.isEmpty()) {
+      return DEFAULT_LOCALES;
+    }
+    for (String value : values) {
+      if (!SUPPORTED_LOCALES.contains(value)) {
+        throw new IllegalArgumentException("illegal locale value " + value + ". valid values are " + SUPPORTED_LOCALES);
+      }
+    }
+    return values.stream().distinct().collect(Collectors.toUnmodifiableList());
+  }
+
+  /**
+   * @param locales the languages of the names, English names only are decoded by the default models
+   * @return the smallest model holding every projected field of the database records,
+   * or {@code null} if the database is not decoded with compact models
+   */
+  static Class<? extends Model> recordType(final Database database, final Set<Field> desiredFields, final List<String> locales) {
+    if (database != Database.CITY && database != Database.ENTERPRISE) {
+      return null;
+    }
+    if (database == Database.ENTERPRISE && TRAITS_FIELDS.containsAll(desiredFields)) {
+      return TraitsRecord.class;
+    }
+    if (LOCATION_FIELDS.containsAll(desiredFields)) {
+      return LocationRecord.class;
+    }
+    final Set<Field> countryFields = EnumSet.copyOf(LOCATION_FIELDS);
+    countryFields.addAll(COUNTRY_FIELDS);
+    final boolean english = DEFAULT_LOCALES.equals(locales) || Collections.disjoint(desiredFields, NAME_FIELDS);
+    if (countryFields.containsAll(desiredFields)) {
+      return english ? CountryRecord.class : LocalizedCountryRecord.class;
+    }
+    if (database == Database.CITY) {
+      return english ? CityRecord.class : LocalizedCityRecord.class;
+    }
+    return english ? EnterpriseRecord.class : LocalizedEnterpriseRecord.class;
+  }
+
+  /**
+   * The records of a City or Enterprise database, the ones left out of the selected model are {@code null}.
+   */
+  static class Model {
+    private final Place city;
+    private final Place continent;
+    private final Place country;
+    private final Location location;
+    private final Place postal;
+    private final List<? extends Place> subdivisions;
+    private final Traits traits;
+
+    Model(final Place city, final Place continent, final Place country, final Location location,
+          final Place postal, final List<? extends Place> subdivisions, final Traits traits) {
+      this.city = city;
+      this.continent = continent;
+      this.country = country;
+      this.location = location;
+      this.postal = postal;
+      this.subdivisions = subdivisions;
+      this.traits = traits;
+    }
+
+    Place getCity() {
+      return city == null ? Place.EMPTY : city;
+    }
+
+    Place getContinent() {
+      return continent == null ? Place.EMPTY : continent;
+    }
+
+    Place getCountry() {
+      return country == null ? Place.EMPTY : country;
+    }
+
+    Location getLocation() {
+      return location == null ? Location.EMPTY : location;
+    }
+
+    Place getPostal() {
+      return postal == null ? Place.EMPTY : postal;
+    }
+
+    /**
+     * @return the last subdivision, as {@code getMostSpecificSubdivision} of the geoip2 responses
+     */
+    Place getMostSpecificSubdivision() {
+      return subdivisions == null || subdivisions.isEmpty() ? Place.EMPTY : subdivisions.get(subdivisions.size() - 1);
+    }
+
+    Traits getTraits() {
+      return traits == null ? Traits.EMPTY : traits;
+    }
+  }
+
+  public static final class LocationRecord extends Model {
+    @MaxMindDbConstructor
+    public LocationRecord(@MaxMindDbParameter(name = "location") final Location location) {
+      super(null, null, null, location, null, null, null);
+    }
+  }
+
+  public static final class CountryRecord extends Model {
+    @MaxMindDbConstructor
+    public CountryRecord(@MaxMindDbParameter(name = "country") final Place country,
+                         @MaxMindDbParameter(name = "location") final Location location) {
+      super(null, null, country, location, null, null, null);
+    }
+  }
+
+  public static final class CityRecord extends Model {
+    @MaxMindDbConstructor
+    public CityRecord(@MaxMindDbParameter(name = "city") final Place city,
+                      @MaxMindDbParameter(name = "continent") final Place continent,
+                      @MaxMindDbParameter(name = "country") final Place country,
+                      @MaxMindDbParameter(name = "location") final Location location,
+                      @MaxMindDbParameter(name = "postal") final Place postal,
+                      @MaxMindDbParameter(name = "subdivisions") final ArrayList<Place> subdivisions) {
+      super(city, continent, country, location, postal, subdivisions, null);
+    }
+  }
+
+  public static final class TraitsRecord extends Model {
+    @MaxMindDbConstructor
+    public TraitsRecord(@MaxMindDbParameter(name = "traits") final Traits traits) {
+      super(null, null, null, null, null, null, traits);
+    }
+  }
+
+  public static final class EnterpriseRecord extends Model {
+    @MaxMindDbConstructor
+    public EnterpriseRecord(@MaxMindDbParameter(name = "city") final Place city,
+                            @MaxMindDbParameter(name = "continent") final Place continent,
+                            @MaxMindDbParameter(name = "country") final Place country,
+                            @MaxMindDbParameter(name = "location") final Location location,
+                            @MaxMindDbParameter(name = "subdivisions") final ArrayList<Place> subdivisions,
+                            @MaxMindDbParameter(name = "traits") final Traits traits) {
+      super(city, continent, country, location, null, subdivisions, traits);
+    }
+  }
+
+  public static final class LocalizedCountryRecord extends Model {
+    @MaxMindDbConstructor
+    public LocalizedCountryRecord(@MaxMindDbParameter(name = "country") final LocalizedPlace country,
+                                  @MaxMindDbParameter(name = "location") final Location location) {
+      super(null, null, country, location, null, null, null);
+    }
+  }
+
+  public static final class LocalizedCityRecord extends Model {
+    @MaxMindDbConstructor
+    public LocalizedCityRecord(@MaxMindDbParameter(name = "city") final LocalizedPlace city,
+                               @MaxMindDbParameter(name = "continent") final LocalizedPlace continent,
+                               @MaxMindDbParameter(name = "country") final LocalizedPlace country,
+                               @MaxMindDbParameter(name = "location") final Location location,
+                               @MaxMindDbParameter(name = "postal") final Place postal,
+                               @MaxMindDbParameter(name = "subdivisions") final ArrayList<LocalizedPlace> subdivisions) {
+      super(city, continent, country, location, postal, subdivisions, null);
+    }
+  }
+
+  public static final class LocalizedEnterpriseRecord extends Model {
+    @MaxMindDbConstructor
+    public LocalizedEnterpriseRecord(@MaxMindDbParameter(name = "city") final LocalizedPlace city,
+                                     @MaxMindDbParameter(name = "continent") final LocalizedPlace continent,
+                                     @MaxMindDbParameter(name = "country") final LocalizedPlace country,
+                                     @MaxMindDbParameter(name = "location") final Location location,
+                                     @MaxMindDbParameter(name = "subdivisions") final ArrayList<LocalizedPlace> subdivisions,
+                                     @MaxMindDbParameter(name = "traits") final Traits traits) {
+      super(city, continent, country, location, null, subdivisions, traits);
+    }
+  }
+
+  /**
+   * A city, continent, country, postal code or subdivision, with its English name. Continents and postal codes
+   * have a {@code code} instead of an {@code iso_code}.
+   */
+  public static class Place {
+    static final Place EMPTY = new Place(null, null, (Names) null);
+
+    private final String isoCode;
+    private final String code;
+    private final Names names;
+
+    @MaxMindDbConstructor
+    public Place(@MaxMindDbParameter(name = "iso_code") final String isoCode,
+                 @MaxMindDbParameter(name = "code") final String code,
+                 @MaxMindDbParameter(name = "names") final EnglishNames names) {
+      this(isoCode, code, (Names) names);
+    }
+
+    Place(final String isoCode, final String code, final Names names) {
+      this.isoCode = isoCode;
+      this.code = code;
+      this.names = names;
+    }
+
+    String getIsoCode() {
+      return isoCode;
+    }
+
+    String getCode() {
+      return code;
+    }
+
+    /**
+     * @return the name in the first of the locales it exists in, as {@code getName} of the geoip2 records
+     */
+    String getName(final List<String> locales) {
+      return names == null ? null : names.get(locales);
+    }
+  }
+
+  /**
+   * A place with its names in every language of the MaxMind databases.
+   */
+  public static final class LocalizedPlace extends Place {
+    @MaxMindDbConstructor
+    public LocalizedPlace(@MaxMindDbParameter(name = "iso_code") final String isoCode,
+                          @MaxMindDbParameter(name = "code") final String code,
+                          @MaxMindDbParameter(name = "names") final LocalizedNames names) {
+      super(isoCode, code, names);
+    }
+  }
+
+  abstract static class Names {
+    abstract String get(String locale);
+
+    String get(final List<String> locales) {
+      for (String locale : locales) {
+        final String name = get(locale);
+        if (name != null) {
+          return name;
+        }
+      }
+      return null;
+    }
+  }
+
+  public static final class EnglishNames extends Names {
+    private final String en;
+
+    @MaxMindDbConstructor
+    public EnglishNames(@MaxMindDbParameter(name = "en") final String en) {
+      this.en = en;
+    }
+
+    @Override
+    String get(final String locale) {
+      return "en".equals(locale) ? en : null;
+    }
+  }
+
+  public static final class LocalizedNames extends Names {
+    private final String de;
+    private final String en;
+    private final String es;
+    private final String fr;
+    private final String ja;
+    private final String ptBr;
+    private final String ru;
+    private final String zhCn;
+
+    @MaxMindDbConstructor
+    public LocalizedNames(@MaxMindDbParameter(name = "de") final String de,
+                          @MaxMindDbParameter(name = "en") final String en,
+                          @MaxMindDbParameter(name = "es") final String es,
+                          @MaxMindDbParameter(name = "fr") final String fr,
+                          @MaxMindDbParameter(name = "ja") final String ja,
+                          @MaxMindDbParameter(name = "pt-BR") final String ptBr,
+                          @MaxMindDbParameter(name = "ru") final String ru,
+                          @MaxMindDbParameter(name = "zh-CN") final String zhCn) {
+      this.de = de;
+      this.en = en;
+      this.es = es;
+      this.fr = fr;
+      this.ja = ja;
+      this.ptBr = ptBr;
+      this.ru = ru;
+      this.zhCn = zhCn;
+    }
+
+    @Override
+    String get(final String locale) {
+      switch (locale) {
+        case "de":
+          return de;
+        case "en":
+          return en;
+        case "es":
+          return es;
+        case "fr":
+          return fr;
+        case "ja":
+          return ja;
+        case "pt-BR":
+          return ptBr;
+        case "ru":
+          return ru;
+        case "zh-CN":
+          return zhCn;
+        default:
+          return null;
+      }
+    }
+  }
+
+  public static final class Location {
+    static final Location EMPTY = new Location(null, null, null, null);
+
+    private final Double latitude;
+    private final Double longitude;
+    private final String timeZone;
+    private final Integer metroCode;
+
+    @MaxMindDbConstructor
+    public Location(@MaxMindDbParameter(name = "latitude") final Double latitude,
+                    @MaxMindDbParameter(name = "longitude") final Double longitude,
+                    @MaxMindDbParameter(name = "time_zone") final String timeZone,
+                    @MaxMindDbParameter(name = "metro_code") final Integer metroCode) {
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.timeZone = timeZone;
+      this.metroCode = metroCode;
+    }
+
+    Double getLatitude() {
+      return latitude;
+    }
+
+    Double getLongitude() {
+      return longitude;
+    }
+
+    String getTimeZone() {
+      return timeZone;
+    }
+
+    Integer getMetroCode() {
+      return metroCode;
+    }
+  }
+
+  public static final class Traits {
+    static final Traits EMPTY = new Traits(null, null, null, null, null, null, null, null, null);
+
+    private final Long autonomousSystemNumber;
+    private final String autonomousSystemOrganization;
+    private final boolean hostingProvider;
+    private final boolean torExitNode;
+    private final boolean anonymousVpn;
+    private final boolean anonymous;
+    private final boolean publicProxy;
+    private final boolean residentialProxy;
+
+    // is_in_european_union isn't projected, it's decoded like in the geoip2 traits so customized values fail the lookup
+    @MaxMindDbConstructor
+    public Traits(@MaxMindDbParameter(name = "autonomous_system_number") final Long autonomousSystemNumber,
+                  @MaxMindDbParameter(name = "autonomous_system_organization") final String autonomousSystemOrganization,
+                  @MaxMindDbParameter(name = "is_hosting_provider") final Boolean hostingProvider,
+                  @MaxMindDbParameter(name = "is_tor_exit_node") final Boolean torExitNode,
+                  @MaxMindDbParameter(name = "is_anonymous_vpn") final Boolean anonymousVpn,
+                  @MaxMindDbParameter(name = "is_anonymous") final Boolean anonymous,
+                  @MaxMindDbParameter(name = "is_public_proxy") final Boolean publicProxy,
+                  @MaxMindDbParameter(name = "is_residential_proxy") final Boolean residentialProxy,
+                  @MaxMindDbParameter(name = "is_in_european_union") final Boolean inEuropeanUnion) {
+      this.autonomousSystemNumber = autonomousSystemNumber;
+      this.autonomousSystemOrganization = autonomousSystemOrganization;
+      this.hostingProvider = Boolean.TRUE.equals(hostingProvider);
+      this.torExitNode = Boolean.TRUE.equals(torExitNode);
+      this.anonymousVpn = Boolean.TRUE.equals(anonymousVpn);
+      this.anonymous = Boolean.TRUE.equals(anonymous);
+      this.publicProxy = Boolean.TRUE.equals(publicProxy);
+      this.residentialProxy = Boolean.TRUE.equals(residentialProxy);
+    }
+
+    Long getAutonomousSystemNumber() {
+      return autonomousSystemNumber;
+    }
+
+    String getAutonomousSystemOrganization() {
+      return autonomousSystemOrganization;
+    }
+
+    boolean isHostingProvider() {
+      return hostingProvider;
+    }
+
+    boolean isTorExitNode() {
+      return torExitNode;
+    }
+
+    boolean isAnonymousVpn() {
+      return anonymousVpn;
+    }
+
+    boolean isAnonymous() {
+      return anonymous;
+    }
+
+    boolean isPublicProxy() {
+      return publicProxy;
+    }
+
+    boolean isResidentialProxy() {
+      return residentialProxy;
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.DatabaseRecord;
+import com.maxmind.db.InvalidDatabaseException;
+import com.maxmind.db.InvalidNetworkException;
+import com.maxmind.db.Network;
+import com.maxmind.db.Networks;
+import com.maxmind.db.Reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The networks that differ between two versions of a database, either because the network itself or its record changed.
+ * Both databases are walked once, in address order, side by side.
+ */
+final class DatabaseDiff {
+
+  // the changed networks of each version, each list is sorted and its networks are disjoint
+  private final List<Block> changedInPrevious;
+  private final List<Block> changedInNext;
+  private final long unchanged;
+
+  private DatabaseDiff(final List<Block> changedInPrevious, final List<Block> changedInNext, final long unchanged) {
+    this.changedInPrevious = changedInPrevious;
+    this.changedInNext = changedInNext;
+    this.unchanged = unchanged;
+  }
+
+  /**
+   * @return the differences, or {@code null} if the databases couldn't be compared before the deadline
+   */
+  static DatabaseDiff compare(final File previousFile, final File nextFile, final long deadlineNanos) throws IOException {
+    final List<Block> changedInPrevious = new ArrayList<>();
+    final List<Block> changedInNext = new ArrayList<>();
+    long unchanged = 0;
+    try (Reader previousReader = new Reader(previousFile); Reader nextReader = new Reader(nextFile)) {
+      final Cursor previous = new Cursor(previousReader.networks(false, Map.class));
+      final Cursor next = new Cursor(nextReader.networks(false, Map.class));
+      while (previous.current != null || next.current != null) {
+        if (deadlineNanos - System.nanoTime() <= 0 || previous.unordered || next.unordered) {
+          return null;
+        }
+        final int comparison = previous.current == null ? 1 : next.current == null ? -1 : previous.current.compareTo(next.current);
+        if (comparison == 0) {
+          if (Objects.equals(previous.record, next.record)) {
+            unchanged++;
+          } else {
+            changedInPrevious.add(previous.current);
+            changedInNext.add(next.current);
+          }
+          previous.advance();
+          next.advance();
+        } else if (comparison < 0) {
+          changedInPrevious.add(previous.current);
+          previous.advance();
+        } else {
+          changedInNext.add(next.current);
+          next.advance();
+        }
+      }
+    } catch (InvalidNetworkException e) {
+      throw new InvalidDatabaseException("The database contains an invalid network: " + e.getMessage());
+    }
+    return new DatabaseDiff(changedInPrevious, changedInNext, unchanged);
+  }
+
+  /**
+   * The networks of the 6to4 and Teredo subtrees, and the IPv4-compatible addresses, alias the IPv4 networks and aren't
+   * walked when the databases are compared, they are unchanged when the IPv4 network they alias is.
+   *
+   * @param prefixLength a prefix length in the 128-bit space
+   * @return whether no address of the network changed between the two versions
+   */
+  boolean isUnchanged(final IpAddressKey networkAddress, final int prefixLength) {
+    final Block block = Block.ipv4Alias(networkAddress, prefixLength);
+    return !intersects(changedInPrevious, block) && !intersects(changedInNext, block);
+  }
+
+  int changedNetworks() {
+    return Math.max(changedInPrevious.size(), changedInNext.size());
+  }
+
+  long unchangedNetworks() {
+    return unchanged;
+  }
+
+  private static boolean intersects(final List<Block> blocks, final Block block) {
+    int index = Collections.binarySearch(blocks, block);
+    if (index >= 0) {
+      return true;
+    }
+    // networks are either nested or disjoint: the changed network before the block may contain it,
+    // and the one after it may be contained in it
+    index = -index - 1;
+    if (index > 0 && block.start.isInNetwork(blocks.get(index - 1).start, blocks.get(index - 1).prefixLength)) {
+      return true;
+    }
+    return index < blocks.size() && blocks.get(index).start.isInNetwork(block.start, block.prefixLength);
+  }
+
+  /**
+   * A network in the 128-bit space, ordered by first address then prefix length.
+   */
+  private static final class Block implements Comparable<Block> {
+    private static final long SIX_TO_FOUR_PREFIX = 0x2002L;
+    private static final long TEREDO_PREFIX = 0x2001_0000L;
+
+    private final IpAddressKey start;
+    private final int prefixLength;
+
+    private Block(final IpAddressKey start, final int prefixLength) {
+      this.start = start;
+      this.prefixLength = prefixLength;
+    }
+
+    static Block of(final Network network) {
+      return new Block(IpAddressKey.of(network.getNetworkAddress()), NetworkCache.prefixLength(network));
+    }
+
+    /**
+     * @return the IPv4 network aliased by the network, or the network itself when it doesn't alias one
+     */
+    static Block ipv4Alias(final IpAddressKey start, final int prefixLength) {
+      final long high = start.high();
+      if ((high >>> 48) == SIX_TO_FOUR_PREFIX && prefixLength >= 16) {
+        // 2002::/16, the IPv4 address follows the prefix
+        return ipv4Block((int) (high >>> 16), prefixLength - 16);
+      }
+      if ((high >>> 32) == TEREDO_PREFIX && prefixLength >= 32) {
+        // 2001::/32, the IPv4 address follows the prefix
+        return ipv4Block((int) high, prefixLength - 32);
+      }
+      if (high == 0L && (start.low() >>> 32) == 0L && prefixLength >= 96) {
+        // ::/96, the IPv4-compatible addresses where IPv6 databases store the IPv4 networks
+        return ipv4Block((int) start.low(), prefixLength - 96);
+      }
+      return new Block(start, prefixLength);
+    }
+
+    private static Block ipv4Block(final int address, final int prefixLength) {
+      final int ipv4PrefixLength = Math.min(prefixLength, 32);
+      final int mask = ipv4PrefixLength == 0 ? 0 : -1 << (32 - ipv4PrefixLength);
+      return new Block(IpAddressKey.ofIpv4(address & mask), 96 + ipv4PrefixLength);
+    }
+
+    @Override
+    public int compareTo(final Block other) {
+      final int comparison = start.compareTo(other.start);
+      return comparison != 0 ? comparison : Integer.compare(prefixLength, other.prefixLength);
+    }
+  }
+
+  private static final class Cursor {
+    private final Networks<Map> networks;
+    private Block current;
+    private Map<?, ?> record;
+    // the walk relies on the networks being iterated in address order
+    private boolean unordered;
+
+    private Cursor(final Networks<Map> networks) {
+      this.networks = networks;
+      advance();
+    }
+
+    private void advance() {
+      if (!networks.hasNext()) {
+        current = null;
+        record = null;
+        return;
+      }
+      final DatabaseRecord<Map> next = networks.next();
+      final Block block = Block.of(next.getNetwork());
+      if (current != null && block.compareTo(current) <= 0) {
+        unordered = true;
+      }
+      current = block;
+      record = next.getData();
+    }
+  }
+}
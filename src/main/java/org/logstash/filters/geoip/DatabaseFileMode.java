@@ -0,0 +1,56 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.Reader;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * How a database file is loaded by its reader.
+ */
+enum DatabaseFileMode {
+
+  // memory mapped, pages are read from the file on first access and may be evicted from the page cache
+  MMAP(Reader.FileMode.MEMORY_MAPPED),
+  // read into the heap when the database is opened, lookups never wait on a page fault
+  HEAP(Reader.FileMode.MEMORY),
+  // memory mapped, with every page of the file read when the database is opened
+  MMAP_TOUCH(Reader.FileMode.MEMORY_MAPPED);
+
+  private final Reader.FileMode readerFileMode;
+
+  DatabaseFileMode(final Reader.FileMode readerFileMode) {
+    this.readerFileMode = readerFileMode;
+  }
+
+  Reader.FileMode readerFileMode() {
+    return readerFileMode;
+  }
+
+  static DatabaseFileMode parse(final String value) {
+    try {
+      return DatabaseFileMode.valueOf(value.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("illegal database file mode value " + value + ". valid values are " +
+              Arrays.toString(DatabaseFileMode.values()));
+    }
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.CHMCache;
+import com.maxmind.db.Reader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * A JVM-wide registry of opened databases, so every filter instance of every pipeline
+ * using the same database file shares a single {@link Reader} and its caches.
+ * Databases are reference counted and closed once the last {@link Handle} is released.
+ */
+final class DatabaseRegistry {
+
+  private static final Logger logger = LogManager.getLogger();
+  private static final DatabaseRegistry INSTANCE = new DatabaseRegistry();
+
+  private final Map<DatabaseKey, SharedDatabase> databases = new HashMap<>();
+
+  static DatabaseRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Acquires the shared database of the given file, opening it if no other filter is using it.
+   * The cache size and file mode only apply when the database is opened, instances sharing a database
+   * share the caches sized by the first one, and the file loaded in its mode.
+   */
+  synchronized Handle acquire(final File databaseFile, final int cacheSize, final DatabaseFileMode fileMode) throws IOException {
+    final DatabaseKey key = DatabaseKey.of(databaseFile);
+    SharedDatabase database = databases.get(key);
+    if (database == null) {
+      final Reader reader = new Reader(databaseFile, fileMode.readerFileMode(), new CHMCache(cacheSize));
+      final long touchedBytes;
+      try {
+        touchedBytes = touchedBytes(databaseFile, fileMode);
+      } catch (IOException e) {
+        reader.close();
+        throw e;
+      }
+      database = new SharedDatabase(key, reader, cacheSize, fileMode, touchedBytes);
+      databases.put(key, database);
+      logger.info("Opened shared geoip database {} in {} mode, {} bytes touched", key, fileMode, touchedBytes);
+    } else if (database.fileMode != fileMode) {
+      logger.warn("The geoip database {} is already opened in {} mode by another filter, the {} mode is ignored",
+              key, database.fileMode, fileMode);
+    }
+    database.references++;
+    return new Handle(database);
+  }
+
+  /**
+   * @return the number of bytes of the file read into memory when the database is opened in the given mode,
+   * nothing locks them there: the heap can be swapped out and the mapped pages evicted
+   */
+  private static long touchedBytes(final File databaseFile, final DatabaseFileMode fileMode) throws IOException {
+    switch (fileMode) {
+      case HEAP:
+        return databaseFile.length();
+      case MMAP_TOUCH:
+        return touch(databaseFile);
+      default:
+        // pages are only read on first access, and can be evicted
+        return 0L;
+    }
+  }
+
+  /**
+   * Reads every page of the file, so they are in the page cache before the first lookup.
+   * The reader maps the same file, its first accesses then only map pages that are already in memory.
+   */
+  private static long touch(final File databaseFile) throws IOException {
+    long touched = 0;
+    try (FileChannel channel = FileChannel.open(databaseFile.toPath(), StandardOpenOption.READ)) {
+      final long size = channel.size();
+      for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Integer.MAX_VALUE, size - position));
+        buffer.load();
+        touched += buffer.capacity();
+      }
+    }
+    return touched;
+  }
+
+  synchronized int size() {
+    return databases.size();
+  }
+
+  private synchronized void release(final SharedDatabase database) {
+    if (--database.references > 0) {
+      return;
+    }
+    databases.remove(database.key, database);
+    // the off-heap caches would otherwise hold their direct memory as long as the caches are reachable
+    database.caches.values().forEach((caches) -> caches.offHeap().release());
+    try {
+      database.reader.close();
+      logger.debug("Closed shared geoip database {}", database.key);
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+
+  /**
+   * A reference to a shared database, which must be closed once the filter is done with it.
+   */
+  final class Handle implements Closeable {
+    private final SharedDatabase database;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    private Handle(final SharedDatabase database) {
+      this.database = database;
+    }
+
+    /**
+     * @return the reader of the database, decoding records into the geoip2 responses or into the compact models
+     * of the projected fields, so the file is loaded or mapped once whatever the filters project out of it
+     */
+    Reader getReader() {
+      return database.reader;
+    }
+
+    /**
+     * @return the caches shared by every filter projecting the same fields, in the same locales and layout, out of this database
+     */
+    LookupCaches getCaches(final Set<Field> desiredFields, final List<String> locales, final boolean ecsCompatibilityEnabled,
+                           final CacheAdmission admission, final int networkCap, final long offHeapCacheSize) {
+      final Set<Field> fields = desiredFields.isEmpty() ? EnumSet.noneOf(Field.class) : EnumSet.copyOf(desiredFields);
+      return getCaches(List.of(fields, locales, ecsCompatibilityEnabled), admission, networkCap, offHeapCacheSize);
+    }
+
+    /**
+     * The admission, network cap and off-heap cache size only apply when the caches are created, like their size,
+     * filters sharing the caches use the settings of the first one.
+     *
+     * @param projection identifies what the cached results contain, for example when they are merged with other databases
+     */
+    LookupCaches getCaches(final List<?> projection, final CacheAdmission admission, final int networkCap, final long offHeapCacheSize) {
+      return database.caches.computeIfAbsent(projection,
+              (ignored) -> new LookupCaches(database.cacheSize, admission, networkCap, offHeapCacheSize));
+    }
+
+    /**
+     * @param loader loads the range table of the given fields and locales, once for every filter projecting them
+     */
+    RangeTable getRangeTable(final Set<Field> desiredFields, final List<String> locales, final Supplier<RangeTable> loader) {
+      final Set<Field> fields = desiredFields.isEmpty() ? EnumSet.noneOf(Field.class) : EnumSet.copyOf(desiredFields);
+      return database.rangeTables.computeIfAbsent(List.of(fields, locales), (ignored) -> loader.get());
+    }
+
+    File getDatabaseFile() {
+      return database.key.path.toFile();
+    }
+
+    /**
+     * @return the number of bytes of the database file read into memory by its file mode when it was opened
+     */
+    long getTouchedBytes() {
+      return database.touchedBytes;
+    }
+
+    DatabaseFileMode getFileMode() {
+      return database.fileMode;
+    }
+
+    /**
+     * @return an identifier of the opened database file, which changes when the file is replaced
+     */
+    Object getDatabaseKey() {
+      return database.key;
+    }
+
+    @Override
+    public void close() {
+      if (released.compareAndSet(false, true)) {
+        release(database);
+      }
+    }
+  }
+
+  /**
+   * The lookup results caches of a database, for one set of projected fields and layout.
+   * Addresses without a record are kept apart, so they can't evict the results. The optional off-heap cache holds the
+   * results of the database lookups behind the heap caches.
+   * The admission policy and the cap per source network apply to the address caches, the network cache
+   * holds database networks which answer every address they contain.
+   */
+  static final class LookupCaches {
+    // the source networks capped by the network cap
+    private static final int IPV4_SOURCE_PREFIX_LENGTH = 96 + 24;
+    private static final int IPV6_SOURCE_PREFIX_LENGTH = 48;
+
+    private final LruCache<IpAddressKey, LookupResult> results;
+    private final NetworkCache<LookupResult> networks;
+    private final LruCache<IpAddressKey, Boolean> notFound;
+    private final OffHeapResultCache offHeap;
+
+    LookupCaches(final int cacheSize, final CacheAdmission admission, final int networkCap, final long offHeapCacheSize) {
+      final boolean frequencyAdmission = admission == CacheAdmission.TINYLFU;
+      this.results = new LruCache<>(cacheSize, frequencyAdmission, LookupCaches::sourceNetwork, networkCap);
+      this.networks = new NetworkCache<>(cacheSize);
+      this.notFound = new LruCache<>(cacheSize, frequencyAdmission, LookupCaches::sourceNetwork, networkCap);
+      this.offHeap = new OffHeapResultCache(offHeapCacheSize);
+    }
+
+    /**
+     * @return the /24 IPv4 or /48 IPv6 network of the address
+     */
+    static IpAddressKey sourceNetwork(final IpAddressKey address) {
+      return address.truncate(address.isIpv4() ? IPV4_SOURCE_PREFIX_LENGTH : IPV6_SOURCE_PREFIX_LENGTH);
+    }
+
+    LruCache<IpAddressKey, LookupResult> results() {
+      return results;
+    }
+
+    NetworkCache<LookupResult> networks() {
+      return networks;
+    }
+
+    LruCache<IpAddressKey, Boolean> notFound() {
+      return notFound;
+    }
+
+    OffHeapResultCache offHeap() {
+      return offHeap;
+    }
+  }
+
+  private static final class SharedDatabase {
+    private final DatabaseKey key;
+    private final Reader reader;
+    private final int cacheSize;
+    private final DatabaseFileMode fileMode;
+    private final long touchedBytes;
+    // keyed by the projected fields, their locales and the ECS compatibility of their layout
+    private final Map<List<?>, LookupCaches> caches = new ConcurrentHashMap<>();
+    // keyed by the projected fields and locales
+    private final Map<List<?>, RangeTable> rangeTables = new ConcurrentHashMap<>();
+    private int references;
+
+    private SharedDatabase(final DatabaseKey key, final Reader reader, final int cacheSize,
+                           final DatabaseFileMode fileMode, final long touchedBytes) {
+      this.key = key;
+      this.reader = reader;
+      this.cacheSize = cacheSize;
+      this.fileMode = fileMode;
+      this.touchedBytes = touchedBytes;
+    }
+  }
+
+  /**
+   * Identifies a database by its path and by the identity of the file, so a database file
+   * replaced at the same path is opened again instead of being served from the stale reader.
+   */
+  private static final class DatabaseKey {
+    private final Path path;
+    private final Object fileKey;
+    private final long lastModified;
+    private final long size;
+
+    private DatabaseKey(final Path path, final Object fileKey, final long lastModified, final long size) {
+      this.path = path;
+      this.fileKey = fileKey;
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+
+    static DatabaseKey of(final File databaseFile) throws IOException {
+      final Path path = databaseFile.toPath().toRealPath();
+      final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      return new DatabaseKey(path, attributes.fileKey(), attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof DatabaseKey)) {
+        return false;
+      }
+      final DatabaseKey that = (DatabaseKey) o;
+      return lastModified == that.lastModified
+              && size == that.size
+              && path.equals(that.path)
+              && Objects.equals(fileKey, that.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, fileKey, lastModified, size);
+    }
+
+    @Override
+    public String toString() {
+      return path.toString();
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.Network;
+import com.maxmind.geoip2.exception.GeoIp2Exception;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The databases a filter looks records up in, with their caches.
+ * A filter replaces its whole set when its database is updated: lookups in flight keep using the set they started with,
+ * whose databases are released once the last of them is done.
+ */
+final class DatabaseSet implements Closeable {
+
+  private static final AtomicLong GENERATIONS = new AtomicLong();
+
+  // the primary database first, its records win over the ones of the additional databases
+  private final List<GeoIPDatabase> databases;
+  private final Set<Field> desiredFields;
+  private final LruCache<IpAddressKey, LookupResult> resultCache;
+  private final NetworkCache<LookupResult> networkCache;
+  private final LruCache<IpAddressKey, Boolean> notFoundCache;
+  private final OffHeapResultCache offHeapCache;
+  private final boolean coversReservedAddresses;
+  // the lookups in flight, plus one while the set is used by its filter, the databases are released when it drops to 0
+  private final AtomicInteger references = new AtomicInteger(1);
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  private final long generation = GENERATIONS.incrementAndGet();
+
+  private DatabaseSet(final List<GeoIPDatabase> databases, final boolean ecsCompatibilityEnabled,
+                      final CacheAdmission cacheAdmission, final int cacheNetworkCap, final long offHeapCacheSize) {
+    this.databases = Collections.unmodifiableList(databases);
+    final Set<Field> desiredFields = EnumSet.noneOf(Field.class);
+    databases.forEach(database -> desiredFields.addAll(database.getDesiredFields()));
+    this.desiredFields = Collections.unmodifiableSet(desiredFields);
+
+    final DatabaseRegistry.LookupCaches caches = getCaches(databases, ecsCompatibilityEnabled, cacheAdmission, cacheNetworkCap, offHeapCacheSize);
+    this.resultCache = caches.results();
+    this.networkCache = caches.networks();
+    this.notFoundCache = caches.notFound();
+    this.offHeapCache = caches.offHeap();
+    this.coversReservedAddresses = databases.stream().anyMatch(GeoIPDatabase::coversReservedAddresses);
+  }
+
+  /**
+   * @param additionalDatabases the fields projected out of each additional database, by database path
+   * @param cacheNetworkCap the number of addresses of a source network the caches hold at most, 0 for no cap
+   * @param offHeapCacheSize the number of bytes of the off-heap result cache, 0 for no off-heap cache
+   */
+  static DatabaseSet open(final String databasePath, final List<String> fields, final Map<String, List<String>> additionalDatabases,
+                          final List<String> locales, final int cacheSize, final boolean ecsCompatibilityEnabled, final LookupEngine lookupEngine,
+                          final DatabaseFileMode fileMode, final CacheAdmission cacheAdmission, final int cacheNetworkCap,
+                          final long offHeapCacheSize) {
+    final List<GeoIPDatabase> databases = new ArrayList<>(1 + additionalDatabases.size());
+    try {
+      databases.add(new GeoIPDatabase(databasePath, fields, locales, cacheSize, ecsCompatibilityEnabled, lookupEngine, fileMode));
+      for (Map.Entry<String, List<String>> it : additionalDatabases.entrySet()) {
+        databases.add(new GeoIPDatabase(it.getKey(), it.getValue(), locales, cacheSize, ecsCompatibilityEnabled, lookupEngine, fileMode));
+      }
+      return new DatabaseSet(databases, ecsCompatibilityEnabled, cacheAdmission, cacheNetworkCap, offHeapCacheSize);
+    } catch (RuntimeException e) {
+      databases.forEach(GeoIPDatabase::close);
+      throw e;
+    }
+  }
+
+  /**
+   * @return the caches of the primary database, for the projection and layout of every database of the set
+   */
+  private static DatabaseRegistry.LookupCaches getCaches(List<GeoIPDatabase> databases, boolean ecsCompatibilityEnabled,
+                                                        CacheAdmission cacheAdmission, int cacheNetworkCap, long offHeapCacheSize) {
+    final GeoIPDatabase primary = databases.get(0);
+    if (databases.size() == 1) {
+      return primary.getHandle().getCaches(primary.getDesiredFields(), primary.getLocales(), ecsCompatibilityEnabled,
+              cacheAdmission, cacheNetworkCap, offHeapCacheSize);
+    }
+    final List<Object> projection = new ArrayList<>();
+    projection.add(ecsCompatibilityEnabled);
+    projection.add(primary.getLocales());
+    for (GeoIPDatabase database : databases) {
+      projection.add(database.getHandle().getDatabaseKey());
+      projection.add(EnumSet.copyOf(database.getDesiredFields()));
+    }
+    return primary.getHandle().getCaches(projection, cacheAdmission, cacheNetworkCap, offHeapCacheSize);
+  }
+
+  /**
+   * @return a number identifying this set among every set opened in the JVM, the entries cached for another set are stale
+   */
+  long getGeneration() {
+    return generation;
+  }
+
+  List<GeoIPDatabase> getDatabases() {
+    return databases;
+  }
+
+  /**
+   * @return the union of the fields projected out of every database
+   */
+  Set<Field> getDesiredFields() {
+    return desiredFields;
+  }
+
+  LruCache<IpAddressKey, LookupResult> getResultCache() {
+    return resultCache;
+  }
+
+  NetworkCache<LookupResult> getNetworkCache() {
+    return networkCache;
+  }
+
+  /**
+   * @return the addresses none of the databases has a record for
+   */
+  LruCache<IpAddressKey, Boolean> getNotFoundCache() {
+    return notFoundCache;
+  }
+
+  OffHeapResultCache getOffHeapCache() {
+    return offHeapCache;
+  }
+
+  /**
+   * @return whether any database has records for reserved addresses, which then can't be skipped
+   */
+  boolean coversReservedAddresses() {
+    return coversReservedAddresses;
+  }
+
+  /**
+   * Registers a lookup in flight, which must call {@link #release()} once it is done with the databases.
+   *
+   * @return {@code false} if the databases of the set are already released
+   */
+  boolean tryAcquire() {
+    int current;
+    do {
+      current = references.get();
+      if (current == 0) {
+        return false;
+      }
+    } while (!references.compareAndSet(current, current + 1));
+    return true;
+  }
+
+  void release() {
+    if (references.decrementAndGet() == 0) {
+      databases.forEach(GeoIPDatabase::close);
+    }
+  }
+
+  /**
+   * Looks the address up in every database of the set, the caller must hold a reference to it.
+   *
+   * @return the merged records, or {@code null} if no database has a record for the address
+   */
+  LookupResult retrieve(IpAddressKey address) throws GeoIp2Exception, IOException {
+    if (databases.size() == 1) {
+      return databases.get(0).retrieve(address);
+    }
+
+    // the merged result applies to the most specific network of the records, which is contained in all the others
+    final Map<Field, Object> geoData = new EnumMap<>(Field.class);
+    Network network = null;
+    boolean networkKnown = true;
+    boolean empty = true;
+    boolean notFound = false;
+    for (GeoIPDatabase database : databases) {
+      final LookupResult result = database.retrieve(address);
+      if (result == null) {
+        notFound = true;
+        networkKnown = false;
+        continue;
+      }
+      if (!result.isEmpty()) {
+        empty = false;
+        result.getGeoData().forEach(geoData::putIfAbsent);
+      }
+      if (result.getNetwork() == null) {
+        networkKnown = false;
+      } else if (network == null || NetworkCache.prefixLength(result.getNetwork()) > NetworkCache.prefixLength(network)) {
+        network = result.getNetwork();
+      }
+    }
+
+    if (empty && notFound && network == null) {
+      return null;
+    }
+    final Network mergedNetwork = networkKnown ? network : null;
+    return empty ? LookupResult.empty(mergedNetwork) : LookupResult.of(geoData, mergedNetwork);
+  }
+
+  /**
+   * Releases the filter's reference, the databases are released once no lookup is in flight.
+   */
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      release();
+    }
+  }
+}
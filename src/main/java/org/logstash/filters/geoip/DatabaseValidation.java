@@ -0,0 +1,341 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.InvalidDatabaseException;
+import com.maxmind.db.Metadata;
+import com.maxmind.db.NoCache;
+import com.maxmind.db.Reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * The report of a database validation, which checks the metadata section, the bounds of the search tree and a sample
+ * of records, optionally with a checksum of the whole file. The file is mapped and only the pages the checks touch are read,
+ * nothing is shared with the opened databases, so a database can be validated in the background while another one serves lookups.
+ */
+public final class DatabaseValidation {
+
+  static final int DEFAULT_SAMPLE_SIZE = 256;
+
+  private static final int DATA_SECTION_SEPARATOR_SIZE = 16;
+  // the metadata section follows the last occurrence of the marker, within the last 128KiB of the file
+  private static final byte[] METADATA_START_MARKER = {(byte) 0xab, (byte) 0xcd, (byte) 0xef,
+          'M', 'a', 'x', 'M', 'i', 'n', 'd', '.', 'c', 'o', 'm'};
+  private static final int MAX_METADATA_SIZE = 128 * 1024;
+  // the types of the data section encoding
+  private static final int UTF8_STRING = 2;
+  private static final int UINT16 = 5;
+  private static final int UINT32 = 6;
+  private static final int UINT64 = 9;
+  private static final String CHECKSUM_ALGORITHM = "SHA-256";
+  private static final int CHECKSUM_BUFFER_SIZE = 1 << 20;
+  // the same addresses are sampled every time, so a validation is reproducible
+  private static final long SAMPLE_SEED = 0x6765_6f69_70L;
+
+  private final String databasePath;
+  private String databaseType;
+  private long buildEpoch;
+  private long nodeCount;
+  private int ipVersion;
+  private int sampledRecords;
+  private String checksum;
+  private String failure;
+
+  private DatabaseValidation(final String databasePath) {
+    this.databasePath = databasePath;
+  }
+
+  /**
+   * @param sampleSize the number of addresses looked up, each one walks the search tree down to its record
+   * @param checksum whether the whole file is read to compute its SHA-256 checksum
+   */
+  static DatabaseValidation validate(final File databaseFile, final int sampleSize, final boolean checksum) {
+    final DatabaseValidation validation = new DatabaseValidation(databaseFile.getPath());
+    try {
+      validation.check(databaseFile, sampleSize);
+      if (checksum) {
+        validation.checksum = checksum(databaseFile);
+      }
+    } catch (InvalidDatabaseException e) {
+      validation.failure = "The database is invalid or corrupted: " + e.getMessage();
+    } catch (IOException e) {
+      validation.failure = "The database can't be read: " + e.getMessage();
+    } catch (RuntimeException e) {
+      // records that can't be decoded
+      validation.failure = "The database is invalid or corrupted: " + e;
+    }
+    return validation;
+  }
+
+  private void check(final File databaseFile, final int sampleSize) throws IOException {
+    // the reader locates and decodes the metadata section, it fails if there is none
+    try (Reader reader = new Reader(databaseFile, Reader.FileMode.MEMORY_MAPPED, NoCache.getInstance())) {
+      final Metadata metadata = reader.getMetadata();
+      // the reader keeps the layout of the search tree to itself, it's read from the metadata section
+      final byte[] metadataSection = metadataSection(databaseFile);
+      nodeCount = metadataUnsigned(metadataSection, "node_count");
+      final long recordSize = metadataUnsigned(metadataSection, "record_size");
+      checkMetadata(metadata, recordSize);
+      checkSearchTree(databaseFile, recordSize);
+
+      final SplittableRandom random = new SplittableRandom(SAMPLE_SEED);
+      for (int i = 0; i < sampleSize; i++) {
+        // walks the search tree, failing on a pointer out of the tree or the data section, and decodes the record
+        reader.get(sampleAddress(random, ipVersion == 6 && (i & 1) == 1), Map.class);
+        sampledRecords++;
+      }
+    }
+  }
+
+  private void checkMetadata(final Metadata metadata, final long recordSize) throws InvalidDatabaseException {
+    databaseType = metadata.getDatabaseType();
+    ipVersion = metadata.getIpVersion();
+    if (metadata.getBuildDate() != null) {
+      buildEpoch = metadata.getBuildDate().getTime() / 1000;
+    }
+
+    if (metadata.getBinaryFormatMajorVersion() != 2) {
+      throw new InvalidDatabaseException("unsupported binary format version " + metadata.getBinaryFormatMajorVersion());
+    }
+    if (databaseType == null || databaseType.isEmpty()) {
+      throw new InvalidDatabaseException("the metadata has no database type");
+    }
+    if (ipVersion != 4 && ipVersion != 6) {
+      throw new InvalidDatabaseException("unsupported IP version " + ipVersion);
+    }
+    if (recordSize != 24 && recordSize != 28 && recordSize != 32) {
+      throw new InvalidDatabaseException("unsupported record size " + recordSize);
+    }
+    if (nodeCount <= 0) {
+      throw new InvalidDatabaseException("the search tree has no node");
+    }
+  }
+
+  /**
+   * The search tree is followed by 16 zero bytes separating it from the data section, so a tree that doesn't match the
+   * node count of the metadata, or a truncated file, is detected without walking the tree.
+   */
+  private void checkSearchTree(final File databaseFile, final long recordSize) throws IOException {
+    final long searchTreeSize = nodeCount * recordSize / 4;
+    try (FileChannel channel = FileChannel.open(databaseFile.toPath(), StandardOpenOption.READ)) {
+      if (searchTreeSize + DATA_SECTION_SEPARATOR_SIZE > channel.size()) {
+        throw new InvalidDatabaseException("the search tree of " + nodeCount + " nodes is larger than the file");
+      }
+      final ByteBuffer separator = ByteBuffer.allocate(DATA_SECTION_SEPARATOR_SIZE);
+      while (separator.hasRemaining()) {
+        if (channel.read(separator, searchTreeSize + separator.position()) < 0) {
+          throw new InvalidDatabaseException("the file ends within the data section separator");
+        }
+      }
+      for (int i = 0; i < DATA_SECTION_SEPARATOR_SIZE; i++) {
+        if (separator.get(i) != 0) {
+          throw new InvalidDatabaseException("the search tree doesn't end where the metadata says it does");
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the bytes of the metadata section, which the reader already found when it was opened
+   */
+  private static byte[] metadataSection(final File databaseFile) throws IOException {
+    try (FileChannel channel = FileChannel.open(databaseFile.toPath(), StandardOpenOption.READ)) {
+      final int length = (int) Math.min(channel.size(), MAX_METADATA_SIZE + METADATA_START_MARKER.length);
+      final ByteBuffer tail = ByteBuffer.allocate(length);
+      while (tail.hasRemaining()) {
+        if (channel.read(tail, channel.size() - length + tail.position()) < 0) {
+          throw new InvalidDatabaseException("the file ends within the metadata section");
+        }
+      }
+      final int start = lastIndexOf(tail.array(), METADATA_START_MARKER);
+      if (start < 0) {
+        throw new InvalidDatabaseException("the metadata section can't be found");
+      }
+      return Arrays.copyOfRange(tail.array(), start + METADATA_START_MARKER.length, length);
+    }
+  }
+
+  /**
+   * Decodes the unsigned integer following its key in the metadata map. Writers don't use pointers in the metadata
+   * section, so the key is stored as a string right before its value.
+   */
+  private static long metadataUnsigned(final byte[] section, final String key) throws InvalidDatabaseException {
+    final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    final byte[] encodedKey = new byte[keyBytes.length + 1];
+    encodedKey[0] = (byte) ((UTF8_STRING << 5) | keyBytes.length);
+    System.arraycopy(keyBytes, 0, encodedKey, 1, keyBytes.length);
+
+    int position = lastIndexOf(section, encodedKey);
+    if (position < 0) {
+      throw new InvalidDatabaseException("the metadata has no " + key);
+    }
+    position += encodedKey.length;
+    if (position >= section.length) {
+      throw new InvalidDatabaseException("the metadata ends before the " + key);
+    }
+    final int control = section[position++] & 0xff;
+    int type = control >>> 5;
+    if (type == 0 && position < section.length) {
+      // extended types are stored in the next byte
+      type = 7 + (section[position++] & 0xff);
+    }
+    final int size = control & 0x1f;
+    if ((type != UINT16 && type != UINT32 && type != UINT64) || size > Long.BYTES || position + size > section.length) {
+      throw new InvalidDatabaseException("the " + key + " of the metadata isn't an unsigned integer");
+    }
+    long value = 0;
+    for (int i = 0; i < size; i++) {
+      value = (value << 8) | (section[position + i] & 0xff);
+    }
+    return value;
+  }
+
+  private static int lastIndexOf(final byte[] bytes, final byte[] sequence) {
+    for (int i = bytes.length - sequence.length; i >= 0; i--) {
+      int matched = 0;
+      while (matched < sequence.length && bytes[i + matched] == sequence[matched]) {
+        matched++;
+      }
+      if (matched == sequence.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return a random IPv4 address, or a random IPv6 global unicast address, where IPv6 databases hold most of their networks
+   */
+  private static InetAddress sampleAddress(final SplittableRandom random, final boolean ipv6) throws IOException {
+    final byte[] address = new byte[ipv6 ? 16 : 4];
+    for (int i = 0; i < address.length; i += 4) {
+      final int bits = random.nextInt();
+      address[i] = (byte) (bits >>> 24);
+      address[i + 1] = (byte) (bits >>> 16);
+      address[i + 2] = (byte) (bits >>> 8);
+      address[i + 3] = (byte) bits;
+    }
+    if (ipv6) {
+      address[0] = (byte) (0x20 | (address[0] & 0x1f));
+    }
+    return InetAddress.getByAddress(address);
+  }
+
+  /**
+   * Streams the file through the digest, a buffer at a time.
+   */
+  private static String checksum(final File databaseFile) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    try (FileChannel channel = FileChannel.open(databaseFile.toPath(), StandardOpenOption.READ)) {
+      final ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+    final StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >>> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  public boolean isValid() {
+    return failure == null;
+  }
+
+  /**
+   * @return why the database is invalid, or {@code null} if it's valid
+   */
+  public String getFailure() {
+    return failure;
+  }
+
+  public String getDatabasePath() {
+    return databasePath;
+  }
+
+  /**
+   * @return the database type of the metadata, for example {@code GeoIP2-City}, or {@code null} if it couldn't be read
+   */
+  public String getDatabaseType() {
+    return databaseType;
+  }
+
+  /**
+   * @return when the database was built, in seconds since the epoch
+   */
+  public long getBuildEpoch() {
+    return buildEpoch;
+  }
+
+  public long getNodeCount() {
+    return nodeCount;
+  }
+
+  public int getIpVersion() {
+    return ipVersion;
+  }
+
+  /**
+   * @return the number of sampled addresses whose lookup succeeded
+   */
+  public int getSampledRecords() {
+    return sampledRecords;
+  }
+
+  /**
+   * @return the hex encoded SHA-256 checksum of the file, or {@code null} if it wasn't requested or the database is invalid
+   */
+  public String getChecksum() {
+    return checksum;
+  }
+
+  @Override
+  public String toString() {
+    return "DatabaseValidation{" +
+            "databasePath='" + databasePath + '\'' +
+            ", databaseType='" + databaseType + '\'' +
+            ", buildEpoch=" + buildEpoch +
+            ", nodeCount=" + nodeCount +
+            ", ipVersion=" + ipVersion +
+            ", sampledRecords=" + sampledRecords +
+            (checksum == null ? "" : ", checksum=" + checksum) +
+            (failure == null ? "" : ", failure='" + failure + '\'') +
+            '}';
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+/**
+ * An approximate count of how often keys were seen recently, used by the TinyLFU admission of {@link LruCache}.
+ * It is a count-min sketch of 4-bit counters, 16 of them packed in each long: a key increments one counter in each
+ * of 4 rows and its frequency is the smallest of them. Every counter is halved once the sketch has recorded ten
+ * times as many keys as the cache can hold, so past popularity fades out.
+ *
+ * It is not thread-safe, each cache segment guards its own sketch.
+ */
+final class FrequencySketch {
+
+  private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final int MAX_FREQUENCY = 15;
+
+  private final long[] table;
+  private final int tableMask;
+  private final int sampleSize;
+  private int size;
+
+  /**
+   * @param capacity the number of entries of the cache the sketch admits keys into
+   */
+  FrequencySketch(final int capacity) {
+    final int maximum = Math.max(1, Math.min(capacity, 1 << 30));
+    final int length = Integer.highestOneBit(maximum * 2 - 1);
+    this.table = new long[length];
+    this.tableMask = length - 1;
+    this.sampleSize = (int) Math.min(10L * maximum, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return how often the key was recorded, up to 15
+   */
+  int frequency(final Object key) {
+    final int hash = spread(key.hashCode());
+    final int start = (hash & 3) << 2;
+    int frequency = MAX_FREQUENCY;
+    for (int row = 0; row < SEEDS.length; row++) {
+      final int index = indexOf(hash, row);
+      final int count = (int) ((table[index] >>> ((start + row) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  void increment(final Object key) {
+    final int hash = spread(key.hashCode());
+    final int start = (hash & 3) << 2;
+    boolean incremented = false;
+    for (int row = 0; row < SEEDS.length; row++) {
+      incremented |= incrementAt(indexOf(hash, row), start + row);
+    }
+    if (incremented && ++size == sampleSize) {
+      reset();
+    }
+  }
+
+  private boolean incrementAt(final int index, final int counter) {
+    final int offset = counter << 2;
+    final long mask = 0xfL << offset;
+    if ((table[index] & mask) != mask) {
+      table[index] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    size /= 2;
+  }
+
+  private int indexOf(final int hash, final int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> 32;
+    return ((int) h) & tableMask;
+  }
+
+  private static int spread(final int hashCode) {
+    final int h = hashCode * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,726 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.DatabaseRecord;
+import com.maxmind.db.DeserializationException;
+import com.maxmind.db.InvalidDatabaseException;
+import com.maxmind.db.InvalidNetworkException;
+import com.maxmind.db.Network;
+import com.maxmind.db.Networks;
+import com.maxmind.db.Reader;
+import com.maxmind.geoip2.exception.GeoIp2Exception;
+import com.maxmind.geoip2.model.AnonymousIpResponse;
+import com.maxmind.geoip2.model.AsnResponse;
+import com.maxmind.geoip2.model.CountryResponse;
+import com.maxmind.geoip2.model.DomainResponse;
+import com.maxmind.geoip2.model.IspResponse;
+import com.maxmind.geoip2.record.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+/**
+ * A database used by a filter, with the fields projected out of its records.
+ * It holds a reference to the shared database, which must be released by closing it.
+ */
+final class GeoIPDatabase implements Closeable {
+
+  private static final Logger logger = LogManager.getLogger();
+
+  private final DatabaseRegistry.Handle databaseHandle;
+  // decodes the geoip2 responses, and the compact models of City and Enterprise records
+  private final Reader reader;
+  private final Database database;
+  private final Set<Field> desiredFields;
+  // the languages of the names, in order of preference
+  private final List<String> locales;
+  // the preloaded records when the range table engine is used, null otherwise
+  private final RangeTable rangeTable;
+  // the compact model of City and Enterprise records, null for the other databases
+  private final Class<? extends CompactRecords.Model> compactRecordType;
+  private final boolean coversReservedAddresses;
+
+  GeoIPDatabase(String databasePath, List<String> fields, List<String> locales, int cacheSize, boolean ecsCompatibilityEnabled,
+                LookupEngine lookupEngine, DatabaseFileMode fileMode) {
+    final File databaseFile = new File(databasePath);
+    try {
+      this.databaseHandle = DatabaseRegistry.getInstance().acquire(databaseFile, cacheSize, fileMode);
+    } catch (InvalidDatabaseException e) {
+      throw new IllegalArgumentException("The database provided is invalid or corrupted.", e);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("The database provided was not found in the path", e);
+    }
+
+    try {
+      this.reader = databaseHandle.getReader();
+      this.database = getDatabase(reader);
+      this.desiredFields = createDesiredFields(database, fields, ecsCompatibilityEnabled);
+      this.locales = CompactRecords.parseLocales(locales);
+      this.rangeTable = lookupEngine == LookupEngine.RANGE_TABLE ? loadRangeTable() : null;
+      this.compactRecordType = CompactRecords.recordType(database, desiredFields, this.locales);
+      this.coversReservedAddresses = coversReservedAddresses(reader);
+    } catch (RuntimeException e) {
+      databaseHandle.close();
+      throw e;
+    }
+  }
+
+  DatabaseRegistry.Handle getHandle() {
+    return databaseHandle;
+  }
+
+  Database getDatabase() {
+    return database;
+  }
+
+  Set<Field> getDesiredFields() {
+    return desiredFields;
+  }
+
+  List<String> getLocales() {
+    return locales;
+  }
+
+  /**
+   * @return whether the database has records for reserved addresses, as custom databases mapping private networks do
+   */
+  boolean coversReservedAddresses() {
+    return coversReservedAddresses;
+  }
+
+  /**
+   * Looks for records within each reserved network, which only walks the search tree down to the network when it's empty.
+   */
+  private boolean coversReservedAddresses(final Reader reader) {
+    try {
+      final boolean ipv6 = reader.getMetadata().getIpVersion() == 6;
+      for (Network network : ReservedAddresses.networks()) {
+        final boolean ipv4Network = network.getNetworkAddress().getAddress().length == 4;
+        if ((ipv4Network || ipv6) && reader.networksWithin(network, false, Map.class).hasNext()) {
+          logger.debug("The geoip database {} has records in the reserved network {}", databaseHandle.getDatabaseKey(), network);
+          return true;
+        }
+      }
+      return false;
+    } catch (IOException | InvalidNetworkException | RuntimeException e) {
+      logger.debug("Unable to look for records of reserved networks in the geoip database {}, they are looked up", databaseHandle.getDatabaseKey(), e);
+      return true;
+    }
+  }
+
+  /**
+   * The range table holds the projected records, so it is shared by the filters projecting the same fields.
+   */
+  private RangeTable loadRangeTable() {
+    switch (database) {
+      case COUNTRY:
+        return databaseHandle.getRangeTable(desiredFields, locales, () ->
+                loadRangeTable(CountryResponse.class, this::projectCountryGeoData));
+      case ASN:
+        return databaseHandle.getRangeTable(desiredFields, locales, () ->
+                loadRangeTable(AsnResponse.class, this::projectAsnGeoData));
+      case ANONYMOUS_IP:
+        return databaseHandle.getRangeTable(desiredFields, locales, () ->
+                loadRangeTable(AnonymousIpResponse.class, this::projectAnonymousIpGeoData));
+      default:
+        logger.warn("The range table lookup engine doesn't support the {} database type, records are looked up in the database",
+                reader.getMetadata().getDatabaseType());
+        return null;
+    }
+  }
+
+  private <T> RangeTable loadRangeTable(final Class<T> recordType, final BiFunction<T, Network, LookupResult> projection) {
+    try {
+      return RangeTable.load(databaseHandle.getDatabaseFile(), recordType, projection);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("The database provided couldn't be loaded into a range table", e);
+    }
+  }
+
+  /**
+   * Walks the networks of the database, which reads its pages into memory, until the deadline.
+   *
+   * @param sampleSize how many of the walked networks are sampled
+   * @return the first address of the sampled networks, a uniform sample of the walked networks
+   */
+  List<IpAddressKey> sweep(final int sampleSize, final long deadlineNanos) throws IOException {
+    final List<IpAddressKey> sample = new ArrayList<>(sampleSize);
+    final Random random = new Random();
+    long walked = 0;
+    try (Reader reader = new Reader(databaseHandle.getDatabaseFile())) {
+      final Networks<Map> networks = reader.networks(false, Map.class);
+      while (networks.hasNext() && deadlineNanos - System.nanoTime() > 0) {
+        final IpAddressKey address = IpAddressKey.of(networks.next().getNetwork().getNetworkAddress());
+        walked++;
+        // reservoir sampling, every walked network has the same chance to be sampled
+        if (sample.size() < sampleSize) {
+          sample.add(address);
+        } else {
+          final long index = (long) (random.nextDouble() * walked);
+          if (index < sampleSize) {
+            sample.set((int) index, address);
+          }
+        }
+      }
+    } catch (InvalidNetworkException e) {
+      throw new InvalidDatabaseException("The database contains an invalid network: " + e.getMessage());
+    }
+    logger.debug("Swept {} networks of the geoip database {}", walked, databaseHandle.getDatabaseKey());
+    return sample;
+  }
+
+  private static Database getDatabase(Reader reader) {
+    final String databaseType = reader.getMetadata().getDatabaseType();
+    final Database database = Database.fromDatabaseType(databaseType);
+
+    if (database == Database.UNKNOWN) {
+      logger.warn("The provided database type {} is not supported", databaseType);
+    }
+
+    return database;
+  }
+
+  private static Set<Field> createDesiredFields(Database database, List<String> fields, final boolean ecsCompatibilityEnabled) {
+    if (fields != null && !fields.isEmpty()) {
+      final Set<Field> desiredFields = fields.stream()
+              .map(Field::parseField)
+              .collect(Collectors.toCollection(() -> EnumSet.noneOf(Field.class)));
+      // the Domain records never carried the IP, don't write it for them
+      if (database == Database.DOMAIN) {
+        desiredFields.remove(Field.IP);
+      }
+      return desiredFields;
+    }
+
+    if (database == Database.CITY) {
+      return createCityDefaultFields(database, ecsCompatibilityEnabled);
+    }
+
+    return database.getDefaultFields();
+  }
+
+  private static Set<Field> createCityDefaultFields(Database database, boolean ecsCompatibilityEnabled) {
+    // When ECS is disabled, change the default region code field from REGION_ISO_CODE to
+    // REGION_CODE (BC)
+    if (!ecsCompatibilityEnabled) {
+      final EnumSet<Field> ecsDisabledFields = EnumSet.copyOf(database.getDefaultFields());
+      ecsDisabledFields.remove(Field.REGION_ISO_CODE);
+      ecsDisabledFields.add(Field.REGION_CODE);
+      return ecsDisabledFields;
+    }
+
+    return database.getDefaultFields();
+  }
+
+  /**
+   * Missing records are reported by the reader with a record without data, without the cost of an exception.
+   *
+   * @return the projected record of the address, or {@code null} if the database has no record for it
+   */
+  LookupResult retrieve(IpAddressKey address) throws GeoIp2Exception, IOException {
+    if (rangeTable != null && rangeTable.answers(address)) {
+      return rangeTable.get(address);
+    }
+
+    final InetAddress ipAddress = address.toInetAddress();
+    switch (database) {
+      case CITY:
+        return retrieveCityGeoData(ipAddress);
+      case COUNTRY:
+        return retrieveCountryGeoData(ipAddress);
+      case ASN:
+        return retrieveAsnGeoData(ipAddress);
+      case ISP:
+        return retrieveIspGeoData(ipAddress);
+      case DOMAIN:
+        return retrieveDomainGeoData(ipAddress);
+      case ENTERPRISE:
+        return retrieveEnterpriseGeoData(ipAddress);
+      case ANONYMOUS_IP:
+        return retrieveAnonymousIpGeoData(ipAddress);
+      default:
+        throw new IllegalStateException("Unsupported database type " + reader.getMetadata().getDatabaseType() + "");
+    }
+  }
+
+  /**
+   * @return the record of the address decoded into the given type, with the network it belongs to,
+   * its data is {@code null} if the database has no record for the address
+   */
+  private <T> DatabaseRecord<T> retrieveRecord(final InetAddress ipAddress, final Class<T> recordType) throws GeoIp2Exception, IOException {
+    try {
+      return reader.getRecord(ipAddress, recordType);
+    } catch (NullPointerException | DeserializationException e) {
+      throw new GeoIPFilter.GeoIp2InvalidCustomFieldException(e);
+    }
+  }
+
+  private LookupResult retrieveCityGeoData(InetAddress ipAddress) throws GeoIp2Exception, IOException {
+    final DatabaseRecord<? extends CompactRecords.Model> record = retrieveRecord(ipAddress, compactRecordType);
+    final CompactRecords.Model response = record.getData();
+    if (response == null) {
+      return null;
+    }
+    CompactRecords.Place country = response.getCountry();
+    CompactRecords.Place city = response.getCity();
+    CompactRecords.Location location = response.getLocation();
+    CompactRecords.Place continent = response.getContinent();
+    CompactRecords.Place postal = response.getPostal();
+    CompactRecords.Place subdivision = response.getMostSpecificSubdivision();
+    Map<Field, Object> geoData = new EnumMap<>(Field.class);
+
+    // if location is empty, there is no point populating geo data
+    // and most likely all other fields are empty as well
+    if (location.getLatitude() == null && location.getLongitude() == null) {
+      return LookupResult.empty(record.getNetwork());
+    }
+
+    for (Field desiredField : this.desiredFields) {
+      switch (desiredField) {
+        case CITY_NAME:
+          String cityName = city.getName(locales);
+          if (cityName != null) {
+            geoData.put(Field.CITY_NAME, cityName);
+          }
+          break;
+        case CONTINENT_CODE:
+          String continentCode = continent.getCode();
+          if (continentCode != null) {
+            geoData.put(Field.CONTINENT_CODE, continentCode);
+          }
+          break;
+        case CONTINENT_NAME:
+          String continentName = continent.getName(locales);
+          if (continentName != null) {
+            geoData.put(Field.CONTINENT_NAME, continentName);
+          }
+          break;
+        case COUNTRY_NAME:
+          String countryName = country.getName(locales);
+          if (countryName != null) {
+            geoData.put(Field.COUNTRY_NAME, countryName);
+          }
+          break;
+        case COUNTRY_CODE2:
+          String countryCode2 = country.getIsoCode();
+          if (countryCode2 != null) {
+            geoData.put(Field.COUNTRY_CODE2, countryCode2);
+          }
+          break;
+        case COUNTRY_CODE3:
+          String countryCode3 = country.getIsoCode();
+          if (countryCode3 != null) {
+            geoData.put(Field.COUNTRY_CODE3, countryCode3);
+          }
+          break;
+        case POSTAL_CODE:
+          String postalCode = postal.getCode();
+          if (postalCode != null) {
+            geoData.put(Field.POSTAL_CODE, postalCode);
+          }
+          break;
+        case DMA_CODE:
+          Integer dmaCode = location.getMetroCode();
+          if (dmaCode != null) {
+            geoData.put(Field.DMA_CODE, dmaCode);
+          }
+          break;
+        case REGION_NAME:
+          String subdivisionName = subdivision.getName(locales);
+          if (subdivisionName != null) {
+            geoData.put(Field.REGION_NAME, subdivisionName);
+          }
+          break;
+        case REGION_CODE:
+          String subdivisionCode = subdivision.getIsoCode();
+          if (subdivisionCode != null) {
+            geoData.put(Field.REGION_CODE, subdivisionCode);
+          }
+          break;
+        case REGION_ISO_CODE:
+          parseRegionIsoCodeField(country, subdivision)
+                  .ifPresent(data -> geoData.put(Field.REGION_ISO_CODE, data));
+          break;
+        case TIMEZONE:
+          String locationTimeZone = location.getTimeZone();
+          if (locationTimeZone != null) {
+            geoData.put(Field.TIMEZONE, locationTimeZone);
+          }
+          break;
+        case LOCATION:
+          parseLocationField(location)
+                  .ifPresent(data -> geoData.put(Field.LOCATION, data));
+          break;
+        case LATITUDE:
+          Double lat = location.getLatitude();
+          if (lat != null) {
+            geoData.put(Field.LATITUDE, lat);
+          }
+          break;
+        case LONGITUDE:
+          Double lon = location.getLongitude();
+          if (lon != null) {
+            geoData.put(Field.LONGITUDE, lon);
+          }
+          break;
+      }
+    }
+
+    return LookupResult.of(geoData, record.getNetwork());
+  }
+
+  private LookupResult retrieveCountryGeoData(InetAddress ipAddress) throws GeoIp2Exception, IOException {
+    final DatabaseRecord<CountryResponse> record = retrieveRecord(ipAddress, CountryResponse.class);
+    final CountryResponse response = record.getData();
+    if (response == null) {
+      return null;
+    }
+    return projectCountryGeoData(response, record.getNetwork());
+  }
+
+  private LookupResult projectCountryGeoData(final CountryResponse response, final Network network) {
+    Country country = response.getCountry();
+    Continent continent = response.getContinent();
+    Map<Field, Object> geoData = new EnumMap<>(Field.class);
+
+    for (Field desiredField : this.desiredFields) {
+      switch (desiredField) {
+        case COUNTRY_CODE2:
+          String countryCode2 = country.getIsoCode();
+          if (countryCode2 != null) {
+            geoData.put(Field.COUNTRY_CODE2, countryCode2);
+          }
+          break;
+        case COUNTRY_NAME:
+          String countryName = localizedName(country.getNames());
+          if (countryName != null) {
+            geoData.put(Field.COUNTRY_NAME, countryName);
+          }
+          break;
+        case CONTINENT_NAME:
+          String continentName = localizedName(continent.getNames());
+          if (continentName != null) {
+            geoData.put(Field.CONTINENT_NAME, continentName);
+          }
+          break;
+      }
+    }
+
+    return LookupResult.of(geoData, network);
+  }
+
+  private LookupResult retrieveIspGeoData(InetAddress ipAddress) throws GeoIp2Exception, IOException {
+    final DatabaseRecord<IspResponse> record = retrieveRecord(ipAddress, IspResponse.class);
+    final IspResponse response = record.getData();
+    if (response == null) {
+      return null;
+    }
+
+    Map<Field, Object> geoData = new EnumMap<>(Field.class);
+    for (Field desiredField : this.desiredFields) {
+      switch (desiredField) {
+        case AUTONOMOUS_SYSTEM_NUMBER:
+          final Long asn = response.getAutonomousSystemNumber();
+          if (asn != null) {
+            geoData.put(desiredField, asn);
+          }
+          break;
+        case AUTONOMOUS_SYSTEM_ORGANIZATION:
+          String aso = response.getAutonomousSystemOrganization();
+          if (aso != null) {
+            geoData.put(desiredField, aso);
+          }
+          break;
+        case ISP:
+          String isp = response.getIsp();
+          if (isp != null) {
+            geoData.put(Field.ISP, isp);
+          }
+          break;
+        case ORGANIZATION:
+          String org = response.getOrganization();
+          if (org != null) {
+            geoData.put(Field.ORGANIZATION, org);
+          }
+          break;
+      }
+    }
+
+    return LookupResult.of(geoData, record.getNetwork());
+  }
+
+  private LookupResult retrieveAsnGeoData(InetAddress ipAddress) throws GeoIp2Exception, IOException {
+    final DatabaseRecord<AsnResponse> record = retrieveRecord(ipAddress, AsnResponse.class);
+    final AsnResponse response = record.getData();
+    if (response == null) {
+      return null;
+    }
+    return projectAsnGeoData(response, record.getNetwork());
+  }
+
+  private LookupResult projectAsnGeoData(final AsnResponse response, final Network network) {
+    Map<Field, Object> geoData = new EnumMap<>(Field.class);
+    for (Field desiredField : this.desiredFields) {
+      switch (desiredField) {
+        case AUTONOMOUS_SYSTEM_NUMBER:
+          final Long asn = response.getAutonomousSystemNumber();
+          if (asn != null) {
+            geoData.put(Field.AUTONOMOUS_SYSTEM_NUMBER, asn);
+          }
+          break;
+        case AUTONOMOUS_SYSTEM_ORGANIZATION:
+          String aso = response.getAutonomousSystemOrganization();
+          if (aso != null) {
+            geoData.put(Field.AUTONOMOUS_SYSTEM_ORGANIZATION, aso);
+          }
+          break;
+        case NETWORK:
+          if (network != null) {
+            geoData.put(Field.NETWORK, network.toString());
+          }
+          break;
+      }
+    }
+
+    return LookupResult.of(geoData, network);
+  }
+
+  private LookupResult retrieveDomainGeoData(InetAddress ipAddress) throws GeoIp2Exception, IOException {
+    final DatabaseRecord<DomainResponse> record = retrieveRecord(ipAddress, DomainResponse.class);
+    final DomainResponse response = record.getData();
+    if (response == null) {
+      return null;
+    }
+    Map<Field, Object> geoData = new EnumMap<>(Field.class);
+    for (Field desiredField : this.desiredFields) {
+      switch (desiredField) {
+        case DOMAIN:
+          String domain = response.getDomain();
+          geoData.put(Field.DOMAIN, domain);
+          break;
+      }
+    }
+
+    return LookupResult.of(geoData, record.getNetwork());
+  }
+
+  private LookupResult retrieveEnterpriseGeoData(InetAddress ipAddress) throws GeoIp2Exception, IOException {
+    final DatabaseRecord<? extends CompactRecords.Model> record = retrieveRecord(ipAddress, compactRecordType);
+    final CompactRecords.Model response = record.getData();
+    if (response == null) {
+      return null;
+    }
+
+    Map<Field, Object> geoData = new EnumMap<>(Field.class);
+    CompactRecords.Place country = response.getCountry();
+    CompactRecords.Place city = response.getCity();
+    CompactRecords.Location location = response.getLocation();
+    CompactRecords.Place continent = response.getContinent();
+    CompactRecords.Place subdivision = response.getMostSpecificSubdivision();
+
+    Long asn = response.getTraits().getAutonomousSystemNumber();
+    String organizationName = response.getTraits().getAutonomousSystemOrganization();
+    Network network = record.getNetwork();
+
+    boolean isHostingProvider = response.getTraits().isHostingProvider();
+    boolean isTorExitNode = response.getTraits().isTorExitNode();
+    boolean isAnonymousVpn = response.getTraits().isAnonymousVpn();
+    boolean isAnonymous = response.getTraits().isAnonymous();
+    boolean isPublicProxy = response.getTraits().isPublicProxy();
+    boolean isResidentialProxy = response.getTraits().isResidentialProxy();
+
+    for (Field desiredField : this.desiredFields) {
+      switch (desiredField) {
+        case COUNTRY_CODE2:
+          String countryIsoCode = country.getIsoCode();
+          if (countryIsoCode != null) {
+            geoData.put(desiredField, countryIsoCode);
+          }
+          break;
+        case COUNTRY_NAME:
+          String countryName = country.getName(locales);
+          if (countryName != null) {
+            geoData.put(desiredField, countryName);
+          }
+          break;
+        case CONTINENT_NAME:
+          String continentName = continent.getName(locales);
+          if (continentName != null) {
+            geoData.put(desiredField, continentName);
+          }
+          break;
+        case REGION_ISO_CODE:
+          parseRegionIsoCodeField(country, subdivision)
+                  .ifPresent(data -> geoData.put(desiredField, data));
+          break;
+        case REGION_NAME:
+          String subdivisionName = subdivision.getName(locales);
+          if (subdivisionName != null) {
+            geoData.put(desiredField, subdivisionName);
+          }
+          break;
+        case CITY_NAME:
+          String cityName = city.getName(locales);
+          if (cityName != null) {
+            geoData.put(desiredField, cityName);
+          }
+          break;
+        case TIMEZONE:
+          String locationTimeZone = location.getTimeZone();
+          if (locationTimeZone != null) {
+            geoData.put(desiredField, locationTimeZone);
+          }
+          break;
+        case LOCATION:
+          parseLocationField(location)
+                  .ifPresent(data -> geoData.put(desiredField, data));
+          break;
+        case AUTONOMOUS_SYSTEM_NUMBER:
+          if (asn != null) {
+            geoData.put(desiredField, asn);
+          }
+          break;
+        case AUTONOMOUS_SYSTEM_ORGANIZATION:
+          if (organizationName != null) {
+            geoData.put(desiredField, organizationName);
+          }
+          break;
+        case NETWORK:
+          if (network != null) {
+            geoData.put(desiredField, network.toString());
+          }
+          break;
+        case HOSTING_PROVIDER:
+          geoData.put(desiredField, isHostingProvider);
+          break;
+        case TOR_EXIT_NODE:
+          geoData.put(desiredField, isTorExitNode);
+          break;
+        case ANONYMOUS_VPN:
+          geoData.put(desiredField, isAnonymousVpn);
+          break;
+        case ANONYMOUS:
+          geoData.put(desiredField, isAnonymous);
+          break;
+        case PUBLIC_PROXY:
+          geoData.put(desiredField, isPublicProxy);
+          break;
+        case RESIDENTIAL_PROXY:
+          geoData.put(desiredField, isResidentialProxy);
+          break;
+      }
+    }
+    return LookupResult.of(geoData, network);
+  }
+
+  private LookupResult retrieveAnonymousIpGeoData(final InetAddress ipAddress) throws GeoIp2Exception, IOException {
+    final DatabaseRecord<AnonymousIpResponse> record = retrieveRecord(ipAddress, AnonymousIpResponse.class);
+    final AnonymousIpResponse response = record.getData();
+    if (response == null) {
+      return null;
+    }
+    return projectAnonymousIpGeoData(response, record.getNetwork());
+  }
+
+  private LookupResult projectAnonymousIpGeoData(final AnonymousIpResponse response, final Network network) {
+    Map<Field, Object> geoData = new EnumMap<>(Field.class);
+    boolean isHostingProvider = response.isHostingProvider();
+    boolean isTorExitNode = response.isTorExitNode();
+    boolean isAnonymousVpn = response.isAnonymousVpn();
+    boolean isAnonymous = response.isAnonymous();
+    boolean isPublicProxy = response.isPublicProxy();
+    boolean isResidentialProxy = response.isResidentialProxy();
+
+    for (Field desiredField : this.desiredFields) {
+      switch (desiredField) {
+        case HOSTING_PROVIDER:
+          geoData.put(desiredField, isHostingProvider);
+          break;
+        case TOR_EXIT_NODE:
+          geoData.put(desiredField, isTorExitNode);
+          break;
+        case ANONYMOUS_VPN:
+          geoData.put(desiredField, isAnonymousVpn);
+          break;
+        case ANONYMOUS:
+          geoData.put(desiredField, isAnonymous);
+          break;
+        case PUBLIC_PROXY:
+          geoData.put(desiredField, isPublicProxy);
+          break;
+        case RESIDENTIAL_PROXY:
+          geoData.put(desiredField, isResidentialProxy);
+          break;
+      }
+    }
+    return LookupResult.of(geoData, network);
+  }
+
+  /**
+   * @return the name in the first of the locales it exists in
+   */
+  private String localizedName(final Map<String, String> names) {
+    for (String locale : locales) {
+      final String name = names.get(locale);
+      if (name != null) {
+        return name;
+      }
+    }
+    return null;
+  }
+
+  private Optional<Map<String, Object>> parseLocationField(CompactRecords.Location location) {
+    Double latitude = location.getLatitude();
+    Double longitude = location.getLongitude();
+    if (latitude != null && longitude != null) {
+      Map<String, Object> locationObject = new HashMap<>();
+      locationObject.put("lat", latitude);
+      locationObject.put("lon", longitude);
+      return Optional.of(locationObject);
+    }
+
+    return Optional.empty();
+  }
+
+  private Optional<String> parseRegionIsoCodeField(final CompactRecords.Place country, final CompactRecords.Place subdivision) {
+    String countryCodeForRegion = country.getIsoCode();
+    String regionCode2 = subdivision.getIsoCode();
+    if (countryCodeForRegion != null && regionCode2 != null) {
+      return Optional.of(String.format("%s-%s", countryCodeForRegion, regionCode2));
+    }
+
+    return Optional.empty();
+  }
+
+  /**
+   * Releases the reference to the shared database, which is closed once no other filter uses it.
+   */
+  @Override
+  public void close() {
+    databaseHandle.close();
+  }
+}
@@ -18,25 +18,15 @@
  */
 package org.logstash.filters.geoip;
 
-import com.maxmind.db.CHMCache;
-import com.maxmind.db.DeserializationException;
-import com.maxmind.db.InvalidDatabaseException;
 import com.maxmind.db.Network;
-import com.maxmind.geoip2.exception.AddressNotFoundException;
 import com.maxmind.geoip2.exception.GeoIp2Exception;
-import com.maxmind.geoip2.model.AnonymousIpResponse;
-import com.maxmind.geoip2.model.AsnResponse;
-import com.maxmind.geoip2.model.CityResponse;
-import com.maxmind.geoip2.model.CountryResponse;
-import com.maxmind.geoip2.model.DomainResponse;
-import com.maxmind.geoip2.model.EnterpriseResponse;
-import com.maxmind.geoip2.model.IspResponse;
-import com.maxmind.geoip2.record.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.logstash.Cloner;
+import org.logstash.ConvertedMap;
 import org.logstash.Event;
-
-import com.maxmind.geoip2.DatabaseReader;
+import org.logstash.FieldReference;
+import org.logstash.Valuefier;
 import org.logstash.ext.JrubyEventExtLibrary.RubyEvent;
 
 import java.io.Closeable;
@@ -45,8 +35,13 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 public class GeoIPFilter implements Closeable {
 
@@ -58,99 +53,491 @@ public class GeoIPFilter implements Closeable {
     }
   }
 
+  static final String HOSTNAME_RESOLUTION_TIMEOUT_TAG = "_geoip_hostname_resolution_timeout";
+  static final String RESERVED_ADDRESS_TAG = "_geoip_reserved_address";
+
   private static final Logger logger = LogManager.getLogger();
-  private final String sourceField;
-  private final String targetField;
+  private static final ExecutorService SWAP_EXECUTOR = createSwapExecutor();
+  // larger databases are not compared on swaps, their cached addresses are looked up again
+  private static final long MAX_DIFF_DATABASE_SIZE = 256L * 1024 * 1024;
+  // the primary source field first
+  private final List<SourceMapping> sourceMappings;
+  private final ArrayMode arrayMode;
   private final Set<Field> desiredFields;
-  private final Database database;
-  private final DatabaseReader databaseReader;
-  private final Function<Field,String> fieldReferenceExtractor;
+  // replaced when the primary database is swapped
+  private volatile DatabaseSet databases;
+  private final Function<String, DatabaseSet> databaseOpener;
+  private boolean closed;
+  private final int warmupLookups;
+  private final long warmupTimeoutMillis;
+  private final CacheCarryOver cacheCarryOver;
+  // IPv6 addresses are cached per prefix of this length, in the 128-bit space
+  private final int ipv6CachePrefixLength;
+  // the results of the latest addresses looked up by each worker thread, in front of the shared caches
+  private final ThreadLocalCache<IpAddressKey, LookupResult> threadCache;
+  // the reference of each desired field relative to the target
+  private final Map<Field, FieldReference> subFieldReferences;
+  private final HostnameResolution hostnameResolution;
+  private final HostnameResolver hostnameResolver;
+  private final LookupMetrics metrics = new LookupMetrics();
 
   public GeoIPFilter(String sourceField, String targetField, List<String> fields, String databasePath, int cacheSize,
                      String ecsCompatibility) {
-    this.sourceField = sourceField;
-    this.targetField = targetField;
+    this(new Builder(sourceField, targetField, databasePath)
+            .withFields(fields)
+            .withCacheSize(cacheSize)
+            .withEcsCompatibility(ecsCompatibility));
+  }
+
+  private GeoIPFilter(Builder builder) {
+    final String ecsCompatibility = builder.ecsCompatibility;
+    final List<String> fields = builder.fields;
+    final List<String> locales = CompactRecords.parseLocales(builder.locales);
+    final int cacheSize = builder.cacheSize;
+
+    this.arrayMode = ArrayMode.parse(builder.arrayMode);
+    this.hostnameResolution = HostnameResolution.parse(builder.hostnameResolution);
+    final LookupEngine lookupEngine = LookupEngine.parse(builder.lookupEngine);
+    final DatabaseFileMode fileMode = DatabaseFileMode.parse(builder.databaseFileMode);
+    if (builder.ipv6CachePrefixLength < 0 || builder.ipv6CachePrefixLength > 128) {
+      throw new IllegalArgumentException("illegal IPv6 cache prefix length " + builder.ipv6CachePrefixLength +
+              ". valid values are between 0 and 128");
+    }
+    this.ipv6CachePrefixLength = builder.ipv6CachePrefixLength;
+    if (builder.threadCacheSize < 0 || builder.threadCacheSize > ThreadLocalCache.MAX_CAPACITY) {
+      throw new IllegalArgumentException("illegal thread cache size " + builder.threadCacheSize +
+              ". valid values are between 0 and " + ThreadLocalCache.MAX_CAPACITY);
+    }
+    this.threadCache = new ThreadLocalCache<>(builder.threadCacheSize);
+    final CacheAdmission cacheAdmission = CacheAdmission.parse(builder.cacheAdmission);
+    if (builder.cacheNetworkCap < 0) {
+      throw new IllegalArgumentException("illegal cache network cap " + builder.cacheNetworkCap + ". valid values are 0 or more");
+    }
+    final int cacheNetworkCap = builder.cacheNetworkCap;
+    if (builder.offHeapCacheSize != 0 && builder.offHeapCacheSize < OffHeapResultCache.MIN_CAPACITY) {
+      throw new IllegalArgumentException("illegal off-heap cache size " + builder.offHeapCacheSize +
+              ". valid values are 0 or at least " + OffHeapResultCache.MIN_CAPACITY + " bytes");
+    }
+    final long offHeapCacheSize = builder.offHeapCacheSize;
+    final Function<Field,String> fieldReferenceExtractor;
     switch (ecsCompatibility) {
       case "disabled":
-        this.fieldReferenceExtractor = Field::getFieldReferenceLegacy;
+        fieldReferenceExtractor = Field::getFieldReferenceLegacy;
         break;
       case "v1":
       case "v8":
-        this.fieldReferenceExtractor = Field::getFieldReferenceECSv1;
+        fieldReferenceExtractor = Field::getFieldReferenceECSv1;
         break;
       default:
         throw new UnsupportedOperationException("Unknown ECS version " + ecsCompatibility);
     }
 
-    final File databaseFile = new File(databasePath);
+    final boolean ecsCompatibilityEnabled = !ecsCompatibility.equals("disabled");
+    final Map<String, List<String>> additionalDatabases = new LinkedHashMap<>(builder.additionalDatabases);
+    this.databaseOpener = (databasePath) -> DatabaseSet.open(databasePath, fields, additionalDatabases, locales, cacheSize,
+            ecsCompatibilityEnabled, lookupEngine, fileMode, cacheAdmission, cacheNetworkCap,
+            offHeapCacheSize);
+    this.databases = databaseOpener.apply(builder.databasePath);
     try {
-      this.databaseReader = new DatabaseReader.Builder(databaseFile).withCache(new CHMCache(cacheSize)).build();
-    } catch (InvalidDatabaseException e) {
-      throw new IllegalArgumentException("The database provided is invalid or corrupted.", e);
-    } catch (IOException e) {
-      throw new IllegalArgumentException("The database provided was not found in the path", e);
+      final Set<Field> desiredFields = databases.getDesiredFields();
+      this.desiredFields = desiredFields;
+      this.subFieldReferences = createFieldReferences("", desiredFields, fieldReferenceExtractor);
+      final List<SourceMapping> sourceMappings = new ArrayList<>(1 + builder.additionalSources.size());
+      sourceMappings.add(new SourceMapping(builder.sourceField, builder.targetField,
+              createFieldReferences("[" + builder.targetField + "]", desiredFields, fieldReferenceExtractor)));
+      for (Map.Entry<String, String> it : builder.additionalSources.entrySet()) {
+        sourceMappings.add(new SourceMapping(it.getKey(), it.getValue(),
+                createFieldReferences("[" + it.getValue() + "]", desiredFields, fieldReferenceExtractor)));
+      }
+      this.sourceMappings = Collections.unmodifiableList(sourceMappings);
+    } catch (RuntimeException e) {
+      databases.close();
+      throw e;
+    }
+
+    this.hostnameResolver = hostnameResolution == HostnameResolution.ASYNC
+            ? new HostnameResolver(builder.hostnameResolutionTimeoutMillis, builder.hostnameCacheTtlMillis,
+                                   builder.hostnameFailedCacheTtlMillis, cacheSize)
+            : null;
+
+    this.warmupLookups = builder.warmupLookups;
+    this.warmupTimeoutMillis = builder.warmupTimeoutMillis;
+    this.cacheCarryOver = CacheCarryOver.parse(builder.cacheCarryOver);
+    if (warmupLookups > 0) {
+      warmUp(databases);
+    }
+  }
+
+  /**
+   * Reads the pages of the databases and runs synthetic lookups through their retrieve and conversion paths,
+   * so the first events don't pay for cold pages and interpreted code. It runs on the calling thread, so it uses
+   * at most one core, until the lookups are done or the timeout elapses. The results are not cached.
+   */
+  private void warmUp(final DatabaseSet databases) {
+    final int lookups = warmupLookups;
+    final long startNanos = System.nanoTime();
+    final long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(warmupTimeoutMillis);
+    final List<IpAddressKey> addresses = new ArrayList<>();
+    try {
+      for (GeoIPDatabase database : databases.getDatabases()) {
+        addresses.addAll(database.sweep(lookups, deadlineNanos));
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Unable to sweep the geoip databases during the warm-up", e);
     }
+    Collections.shuffle(addresses);
 
-    this.database = getDatabase(databaseReader);
-    this.desiredFields = createDesiredFields(fields, !ecsCompatibility.equals("disabled"));
+    int done = 0;
+    try {
+      while (done < lookups && !addresses.isEmpty() && deadlineNanos - System.nanoTime() > 0) {
+        final IpAddressKey address = addresses.get(done % addresses.size());
+        if (!databases.tryAcquire()) {
+          // the filter was closed while warming up
+          break;
+        }
+        try {
+          final LookupResult result = databases.retrieve(address);
+          if (result != null && !result.isEmpty()) {
+            createTargetValue(result.getGeoData());
+          }
+        } catch (GeoIp2Exception | IOException e) {
+          // failed lookups warm up their paths too
+        } finally {
+          databases.release();
+        }
+        done++;
+      }
+    } catch (RuntimeException e) {
+      logger.warn("Unable to run the synthetic lookups of the geoip filter warm-up", e);
+    }
+    logger.info("Warmed up the geoip filter in {} ms, {} synthetic lookups of {} sampled networks",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), done, addresses.size());
   }
 
-  private static Database getDatabase(DatabaseReader reader) {
-    final String databaseType = reader.getMetadata().getDatabaseType();
-    final Database database = Database.fromDatabaseType(databaseType);
+  /**
+   * Database swaps run one at a time, off the pipeline threads.
+   */
+  private static ExecutorService createSwapExecutor() {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (runnable) -> {
+      final Thread thread = new Thread(runnable, "geoip-database-swap");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
 
-    if (database == Database.UNKNOWN) {
-      logger.warn("The provided database type {} is not supported", databaseType);
+  private static Map<Field, FieldReference> createFieldReferences(String parentFieldReference, Set<Field> desiredFields,
+                                                                  Function<Field, String> fieldReferenceExtractor) {
+    final Map<Field, FieldReference> references = new EnumMap<>(Field.class);
+    for (Field field : desiredFields) {
+      final String subFieldReference = fieldReferenceExtractor.apply(field);
+      if (subFieldReference.equals("[]")) {
+        continue; // skip the incompatible ECS field
+      }
+      references.put(field, FieldReference.from(parentFieldReference + subFieldReference));
     }
+    return references;
+  }
 
-    return database;
+  /**
+   * Opens the database at the given path in the background, and swaps it with the primary database once it's ready.
+   * The addresses cached for the current database are looked up in the new one before the swap, for at most the warm-up
+   * timeout, so the swap doesn't cause a burst of cache misses. Lookups in flight finish with the current database,
+   * which is released once they are done. The current database keeps serving events if the new one is invalid or can't be opened.
+   *
+   * @return completes once the new database is used, or exceptionally if it can't be opened
+   */
+  public CompletableFuture<Void> swapDatabase(String databasePath) {
+    return CompletableFuture.runAsync(() -> swap(databasePath), SWAP_EXECUTOR)
+            .whenComplete((ignored, error) -> metrics.increment(error == null
+                    ? LookupMetrics.Counter.DATABASE_SWAPS
+                    : LookupMetrics.Counter.DATABASE_SWAP_FAILURES));
   }
 
-  public static boolean isDatabaseValid(String databasePath) {
-    final File database = new File(databasePath);
-    try (DatabaseReader ignore = new DatabaseReader.Builder(database).build()) {
-      return true;
-    } catch (InvalidDatabaseException e) {
-      logger.debug("The database provided is invalid or corrupted");
-    } catch (IOException e) {
-      logger.debug("The database provided was not found in the path");
+  private void swap(String databasePath) {
+    final long startNanos = System.nanoTime();
+    final DatabaseValidation validation = validateDatabase(databasePath, DatabaseValidation.DEFAULT_SAMPLE_SIZE, false);
+    if (!validation.isValid()) {
+      throw new IllegalArgumentException(validation.getFailure() + " (" + databasePath + ")");
+    }
+    logger.debug("Validated the geoip database {}", validation);
+    final DatabaseSet current = databases;
+    final DatabaseSet next = databaseOpener.apply(databasePath);
+    final int refilled;
+    try {
+      if (!next.getDesiredFields().equals(current.getDesiredFields())) {
+        throw new IllegalArgumentException("The database " + databasePath + " doesn't provide the fields " +
+                current.getDesiredFields() + " of the database it replaces");
+      }
+      final long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(warmupTimeoutMillis);
+      refilled = cacheCarryOver == CacheCarryOver.DIFF
+              ? carryOverCaches(current, next, deadlineNanos)
+              : refillCaches(current, next, deadlineNanos);
+      if (warmupLookups > 0) {
+        warmUp(next);
+      }
+    } catch (RuntimeException e) {
+      next.close();
+      throw e;
+    }
+
+    final DatabaseSet previous;
+    synchronized (this) {
+      if (closed) {
+        next.close();
+        return;
+      }
+      previous = databases;
+      databases = next;
     }
-    return false;
+    previous.close();
+    logger.info("Swapped the geoip database for {} in {} ms, {} cached addresses carried over", databasePath,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), refilled);
   }
 
-  private Set<Field> createDesiredFields(List<String> fields, final boolean ecsCompatibilityEnabled) {
-    if (fields != null && !fields.isEmpty()) {
-      return fields.stream()
-              .map(Field::parseField)
-              .collect(Collectors.toCollection(() -> EnumSet.noneOf(Field.class)));
+  /**
+   * Copies the cached results of the current databases whose networks are the same in the next ones, the others are
+   * dropped. Falls back to looking the cached addresses up again if the primary databases can't be compared in time.
+   */
+  private int carryOverCaches(final DatabaseSet current, final DatabaseSet next, final long deadlineNanos) {
+    final File previousFile = current.getDatabases().get(0).getHandle().getDatabaseFile();
+    final File nextFile = next.getDatabases().get(0).getHandle().getDatabaseFile();
+    DatabaseDiff diff = null;
+    if (previousFile.length() <= MAX_DIFF_DATABASE_SIZE && nextFile.length() <= MAX_DIFF_DATABASE_SIZE) {
+      try {
+        diff = DatabaseDiff.compare(previousFile, nextFile, deadlineNanos);
+      } catch (IOException | RuntimeException e) {
+        logger.warn("Unable to compare the geoip databases {} and {}", previousFile, nextFile, e);
+      }
+    }
+    if (diff == null) {
+      logger.info("The geoip databases {} and {} couldn't be compared in time, the cached addresses are looked up again",
+              previousFile, nextFile);
+      return refillCaches(current, next, deadlineNanos);
     }
 
-    if (database == Database.CITY) {
-      return createCityDefaultFields(ecsCompatibilityEnabled);
+    int carried = 0;
+    // the entries are read without counting them as accessed, which would skew the frequencies of the admission
+    for (Map.Entry<IpAddressKey, LookupResult> entry : current.getResultCache().snapshot().entrySet()) {
+      final IpAddressKey key = entry.getKey();
+      final LookupResult result = entry.getValue();
+      final Network network = result.getNetwork();
+      final boolean unchanged = network == null
+              ? diff.isUnchanged(key, 128)
+              : diff.isUnchanged(IpAddressKey.of(network.getNetworkAddress()), NetworkCache.prefixLength(network));
+      if (unchanged) {
+        next.getResultCache().put(key, result);
+        if (network != null) {
+          next.getNetworkCache().put(network, result);
+        }
+        carried++;
+      }
     }
+    logger.debug("Compared the geoip databases {} and {}: {} changed and {} unchanged networks", previousFile, nextFile,
+            diff.changedNetworks(), diff.unchangedNetworks());
+    return carried;
+  }
 
-    return database.getDefaultFields();
+  /**
+   * Looks the addresses cached for the current databases up in the next ones, in address order, until the deadline.
+   */
+  private int refillCaches(final DatabaseSet current, final DatabaseSet next, final long deadlineNanos) {
+    final List<IpAddressKey> addresses = current.getResultCache().keys();
+    Collections.sort(addresses);
+    int refilled = 0;
+    for (IpAddressKey address : addresses) {
+      if (deadlineNanos - System.nanoTime() <= 0) {
+        break;
+      }
+      try {
+        lookup(address, next, LookupMetrics.NONE);
+      } catch (GeoIp2Exception | IOException e) {
+        // the address isn't cached, as it would be by an event
+      }
+      refilled++;
+    }
+    return refilled;
   }
 
-  private Set<Field> createCityDefaultFields(boolean ecsCompatibilityEnabled) {
-    // When ECS is disabled, change the default region code field from REGION_ISO_CODE to
-    // REGION_CODE (BC)
-    if (!ecsCompatibilityEnabled) {
-      final EnumSet<Field> ecsDisabledFields = EnumSet.copyOf(database.getDefaultFields());
-      ecsDisabledFields.remove(Field.REGION_ISO_CODE);
-      ecsDisabledFields.add(Field.REGION_CODE);
-      return ecsDisabledFields;
+  public static boolean isDatabaseValid(String databasePath) {
+    final DatabaseValidation validation = validateDatabase(databasePath, DatabaseValidation.DEFAULT_SAMPLE_SIZE, false);
+    if (!validation.isValid()) {
+      logger.debug("The database provided is invalid: {}", validation.getFailure());
     }
+    return validation.isValid();
+  }
+
+  /**
+   * Checks the metadata, the search tree bounds and a sample of records of the database, without opening it for lookups.
+   * It can run on any thread, including while the database it would replace serves events.
+   *
+   * @param sampleSize the number of addresses looked up in the database
+   * @param checksum whether the whole file is read to compute its SHA-256 checksum
+   */
+  public static DatabaseValidation validateDatabase(String databasePath, int sampleSize, boolean checksum) {
+    return DatabaseValidation.validate(new File(databasePath), sampleSize, checksum);
+  }
 
-    return database.getDefaultFields();
+  /**
+   * @return the lookup counters and latencies since the filter was created, and the current number of cached
+   *         results and admissions of the caches, by metric name
+   */
+  public Map<String, Long> getMetrics() {
+    final Map<String, Long> snapshot = metrics.snapshot();
+    final DatabaseSet current = databases;
+    snapshot.put("result_cache_size", (long) current.getResultCache().size());
+    snapshot.put("network_cache_size", (long) current.getNetworkCache().size());
+    snapshot.put("cache_admissions", current.getResultCache().admissions() + current.getNotFoundCache().admissions());
+    snapshot.put("cache_rejections", current.getResultCache().rejections() + current.getNotFoundCache().rejections());
+    snapshot.put("off_heap_cache_bytes", current.getOffHeapCache().allocatedBytes());
+    return snapshot;
+  }
+
+  LookupMetrics getLookupMetrics() {
+    return metrics;
   }
 
   public boolean handleEvent(RubyEvent rubyEvent) {
     final Event event = rubyEvent.getEvent();
-    Object input = event.getField(sourceField);
-    if (input == null) {
+    if (sourceMappings.size() > 1 || arrayMode != ArrayMode.FIRST) {
+      // several IPs per event, each distinct address is looked up once
+      final Lookups lookups = new Lookups();
+      final List<SourceIps> sources = collectSourceIps(event, lookups);
+      for (Map.Entry<IpAddressKey, LookupResult> it : lookups.results.entrySet()) {
+        it.setValue(lookupOrEmpty(it.getKey()));
+      }
+      return applySourceIps(sources, lookups, event);
+    }
+
+    final SourceMapping mapping = sourceMappings.get(0);
+    final String ip = extractIp(event.getField(mapping.sourceField));
+    if (ip == null) {
       return false;
     }
+
+    IpAddressKey address = IpAddressParser.parse(ip);
+    // a strictly parsed IPv4 literal is already in its canonical textual form
+    final boolean canonical = address != null && ip.indexOf(':') < 0;
+    if (address == null) {
+      try {
+        address = resolveHostname(ip, mapping, event);
+      } catch (TimeoutException e) {
+        metrics.increment(LookupMetrics.Counter.HOSTNAME_RESOLUTION_TIMEOUTS);
+        logger.debug("Hostname resolution timed out. exception={}, field={}, event={}", e, mapping.sourceField, event);
+        event.tag(HOSTNAME_RESOLUTION_TIMEOUT_TAG);
+      }
+      if (address == null) {
+        return applyGeoData(LookupResult.EMPTY, ip, mapping, event);
+      }
+    }
+    return applyGeoData(lookupOrEmpty(address), canonical ? ip : address.toString(), mapping, event);
+  }
+
+  /**
+   * Enriches a batch of events. Every distinct address of the batch is looked up once,
+   * in address order so consecutive lookups walk neighbouring parts of the database.
+   *
+   * @return for each event, in iteration order, whether it was enriched
+   */
+  public boolean[] handleEvents(Collection<RubyEvent> rubyEvents) {
+    final int size = rubyEvents.size();
+    final Event[] events = new Event[size];
+    final List<List<SourceIps>> sources = new ArrayList<>(size);
+    final Lookups lookups = new Lookups();
+
+    for (RubyEvent rubyEvent : rubyEvents) {
+      final Event event = rubyEvent.getEvent();
+      events[sources.size()] = event;
+      sources.add(collectSourceIps(event, lookups));
+    }
+
+    final IpAddressKey[] distinctAddresses = lookups.results.keySet().toArray(new IpAddressKey[0]);
+    Arrays.sort(distinctAddresses);
+    for (IpAddressKey address : distinctAddresses) {
+      lookups.results.put(address, lookupOrEmpty(address));
+    }
+
+    final boolean[] enriched = new boolean[size];
+    for (int i = 0; i < size; i++) {
+      enriched[i] = applySourceIps(sources.get(i), lookups, events[i]);
+    }
+    return enriched;
+  }
+
+  /**
+   * Parses or resolves the IPs of every source field of the event, and registers their addresses to be looked up.
+   */
+  private List<SourceIps> collectSourceIps(Event event, Lookups lookups) {
+    final List<SourceIps> sources = new ArrayList<>(sourceMappings.size());
+    for (SourceMapping mapping : sourceMappings) {
+      final Object input = event.getField(mapping.sourceField);
+      final List<String> values = extractIps(input);
+      if (values == null) {
+        sources.add(new SourceIps(mapping, null, null, false));
+        continue;
+      }
+
+      final String[] ips = new String[values.size()];
+      final IpAddressKey[] addresses = new IpAddressKey[values.size()];
+      for (int i = 0; i < ips.length; i++) {
+        final String ip = values.get(i);
+        IpAddressKey address = IpAddressParser.parse(ip);
+        final boolean canonical = address != null && ip.indexOf(':') < 0;
+        if (address == null) {
+          // a hostname is resolved once, including when it fails to resolve
+          if (lookups.hostnames.containsKey(ip)) {
+            address = lookups.hostnames.get(ip);
+          } else {
+            try {
+              address = resolveHostname(ip, mapping, event);
+            } catch (TimeoutException e) {
+              metrics.increment(LookupMetrics.Counter.HOSTNAME_RESOLUTION_TIMEOUTS);
+              logger.debug("Hostname resolution timed out. exception={}, field={}, event={}", e, mapping.sourceField, event);
+              lookups.timedOutHostnames.add(ip);
+            }
+            lookups.hostnames.put(ip, address);
+          }
+          if (lookups.timedOutHostnames.contains(ip)) {
+            event.tag(HOSTNAME_RESOLUTION_TIMEOUT_TAG);
+          }
+        }
+        if (address != null) {
+          lookups.results.putIfAbsent(address, null);
+        }
+        addresses[i] = address;
+        ips[i] = address == null || canonical ? ip : address.toString();
+      }
+      sources.add(new SourceIps(mapping, ips, addresses, arrayMode == ArrayMode.ALL && input instanceof List));
+    }
+    return sources;
+  }
+
+  /**
+   * @return whether every source field of the event was enriched
+   */
+  private boolean applySourceIps(List<SourceIps> sources, Lookups lookups, Event event) {
+    boolean enriched = true;
+    for (SourceIps source : sources) {
+      if (source.ips == null) {
+        enriched = false;
+      } else if (source.list) {
+        enriched &= applyAllGeoData(source, lookups, event);
+      } else {
+        final LookupResult result = source.addresses[0] == null ? LookupResult.EMPTY : lookups.results.get(source.addresses[0]);
+        enriched &= applyGeoData(result, source.ips[0], source.mapping, event);
+      }
+    }
+    return enriched;
+  }
+
+  /**
+   * @return the source field value to look up, or {@code null} if the event has none
+   */
+  private String extractIp(Object input) {
+    if (input == null) {
+      return null;
+    }
     String ip;
 
     if (input instanceof List) {
@@ -163,524 +550,562 @@ public class GeoIPFilter implements Closeable {
     }
 
     if (ip.trim().isEmpty()) {
-      return false;
+      return null;
+    }
+    return ip;
+  }
+
+  /**
+   * @return the source field values to look up according to the array mode, or {@code null} if the event has none
+   */
+  private List<String> extractIps(Object input) {
+    if (!(input instanceof List) || arrayMode == ArrayMode.FIRST) {
+      final String ip = extractIp(input);
+      return ip == null ? null : Collections.singletonList(ip);
+    }
+
+    final List<String> ips = new ArrayList<>(((List<?>) input).size());
+    for (Object element : (List<?>) input) {
+      final String ip = (String) element;
+      if (ip == null || ip.trim().isEmpty()) {
+        continue;
+      }
+      if (arrayMode == ArrayMode.FIRST_PUBLIC) {
+        // hostnames can't be classified without resolving them, they are looked up as is
+        final IpAddressKey address = IpAddressParser.parse(ip);
+        if (address == null || !ReservedAddresses.isReserved(address)) {
+          return Collections.singletonList(ip);
+        }
+      }
+      ips.add(ip);
     }
 
-    Map<Field, Object> geoData = new HashMap<>();
+    if (ips.isEmpty()) {
+      return null;
+    }
+    // without any public element, the first one is looked up and reported as a failure
+    return arrayMode == ArrayMode.FIRST_PUBLIC ? ips.subList(0, 1) : ips;
+  }
 
+  /**
+   * @return the address of the hostname, or {@code null} if it can't be resolved
+   * @throws TimeoutException if the {@code async} resolution didn't complete in time
+   */
+  private IpAddressKey resolveHostname(String ip, SourceMapping mapping, Event event) throws TimeoutException {
     try {
-      final InetAddress ipAddress = InetAddress.getByName(ip);
-      switch (database) {
-        case CITY:
-          geoData = retrieveCityGeoData(ipAddress);
-          break;
-        case COUNTRY:
-          geoData = retrieveCountryGeoData(ipAddress);
-          break;
-        case ASN:
-          geoData = retrieveAsnGeoData(ipAddress);
-          break;
-        case ISP:
-          geoData = retrieveIspGeoData(ipAddress);
-          break;
-        case DOMAIN:
-          geoData = retrieveDomainGeoData(ipAddress);
-          break;
-        case ENTERPRISE:
-          geoData = retrieveEnterpriseGeoData(ipAddress);
-          break;
-        case ANONYMOUS_IP:
-          geoData = retrieveAnonymousIpGeoData(ipAddress);
-          break;
+      switch (hostnameResolution) {
+        case BLOCKING:
+          return IpAddressKey.of(InetAddress.getByName(ip));
+        case ASYNC:
+          final IpAddressKey address = hostnameResolver.resolve(ip);
+          if (address == null) {
+            metrics.increment(LookupMetrics.Counter.INVALID_INPUT);
+            logger.debug("IP Field contained a hostname which could not be resolved. field={}, event={}", mapping.sourceField, event);
+          }
+          return address;
+        case DISABLED:
         default:
-          throw new IllegalStateException("Unsupported database type " + databaseReader.getMetadata().getDatabaseType() + "");
+          metrics.increment(LookupMetrics.Counter.INVALID_INPUT);
+          logger.debug("IP Field contained a hostname, but hostname resolution is disabled. field={}, event={}", mapping.sourceField, event);
+          return null;
       }
     } catch (UnknownHostException e) {
-      logger.debug("IP Field contained invalid IP address or hostname. exception={}, field={}, event={}", e, sourceField, event);
-    } catch (AddressNotFoundException e) {
-      logger.debug("IP not found! exception={}, field={}, event={}", e, sourceField, event);
+      metrics.increment(LookupMetrics.Counter.INVALID_INPUT);
+      logger.debug("IP Field contained invalid IP address or hostname. exception={}, field={}, event={}", e, mapping.sourceField, event);
+    }
+    return null;
+  }
+
+  private LookupResult lookupOrEmpty(IpAddressKey address) {
+    final DatabaseSet databases = this.databases;
+    // no database has records for reserved addresses, unless a custom one maps them
+    if (!databases.coversReservedAddresses() && ReservedAddresses.isReserved(address)) {
+      metrics.increment(LookupMetrics.Counter.RESERVED_ADDRESSES);
+      return LookupResult.RESERVED;
+    }
+    // the entries of another database set are dropped by the thread reading them
+    final long generation = databases.getGeneration();
+    final LookupResult cached = threadCache.get(address, generation);
+    if (cached != null) {
+      metrics.increment(LookupMetrics.Counter.THREAD_CACHE_HITS);
+      if (cached == LookupResult.EMPTY) {
+        metrics.increment(LookupMetrics.Counter.ADDRESS_NOT_FOUND);
+      }
+      return cached;
+    }
+    try {
+      final LookupResult result = lookup(address, databases, metrics);
+      if (result != null) {
+        threadCache.put(address, result, generation);
+        return result;
+      }
+      threadCache.put(address, LookupResult.EMPTY, generation);
+      metrics.increment(LookupMetrics.Counter.ADDRESS_NOT_FOUND);
+      logger.debug("IP not found! value={}", address);
+    } catch (GeoIp2InvalidCustomFieldException e) {
+      metrics.increment(LookupMetrics.Counter.INVALID_CUSTOM_FIELD);
+      logger.error("Error from GeoIP database. value={}", address, e);
     } catch (GeoIp2Exception | IOException e) {
-      logger.error("Error from GeoIP database. field={}, value={}", sourceField, ip, e);
+      metrics.increment(LookupMetrics.Counter.DATABASE_ERRORS);
+      logger.error("Error from GeoIP database. value={}", address, e);
+    }
+    return LookupResult.EMPTY;
+  }
+
+  /**
+   * @return the result of the address, or {@code null} if no database has a record for it
+   */
+  private LookupResult lookup(IpAddressKey address, DatabaseSet databases, LookupMetrics metrics) throws GeoIp2Exception, IOException {
+    final LruCache<IpAddressKey, LookupResult> resultCache = databases.getResultCache();
+    // IPv6 clients rotate their addresses within a prefix, which shares one entry when the record's network covers it
+    // the frequency of the admission is recorded once per lookup, for the key that answers or would cache it
+    final IpAddressKey prefixKey = address.isIpv4() ? address : address.truncate(ipv6CachePrefixLength);
+    if (prefixKey == address) {
+      final LookupResult result = resultCache.get(address);
+      if (result != null) {
+        metrics.increment(LookupMetrics.Counter.RESULT_CACHE_HITS);
+        return result;
+      }
+    } else {
+      LookupResult result = resultCache.probe(prefixKey);
+      if (result != null && result.covers(prefixKey, ipv6CachePrefixLength)) {
+        resultCache.recordAccess(prefixKey);
+        metrics.increment(LookupMetrics.Counter.PREFIX_CACHE_HITS);
+        return result;
+      }
+      result = resultCache.probe(address);
+      if (result != null) {
+        resultCache.recordAccess(address);
+        metrics.increment(LookupMetrics.Counter.RESULT_CACHE_HITS);
+        return result;
+      }
+    }
+
+    final LruCache<IpAddressKey, Boolean> notFoundCache = databases.getNotFoundCache();
+    if (notFoundCache.get(address) != null) {
+      metrics.increment(LookupMetrics.Counter.NOT_FOUND_CACHE_HITS);
+      return null;
     }
 
-    return applyGeoData(geoData, event);
+    // a record applies to its whole network, so any cached address of the same network can answer
+    final NetworkCache<LookupResult> networkCache = databases.getNetworkCache();
+    final OffHeapResultCache offHeapCache = databases.getOffHeapCache();
+    LookupResult result = networkCache.get(address);
+    if (result != null) {
+      metrics.increment(LookupMetrics.Counter.NETWORK_CACHE_HITS);
+    } else if ((result = getOffHeap(offHeapCache, address, prefixKey)) != null) {
+      metrics.increment(LookupMetrics.Counter.OFF_HEAP_CACHE_HITS);
+      if (!result.isEmpty()) {
+        result = result.withTargetValue(createTargetValue(result.getGeoData()));
+      }
+    } else {
+      if (!databases.tryAcquire()) {
+        final DatabaseSet current = this.databases;
+        if (current == databases) {
+          // the filter was closed, the databases it holds are released
+          throw new IOException("The geoip filter is closed, unable to look up " + address);
+        }
+        // the databases were swapped and released since the lookup started, the current ones answer
+        return lookup(address, current, metrics);
+      }
+      metrics.increment(LookupMetrics.Counter.CACHE_MISSES);
+      final long startNanos = System.nanoTime();
+      try {
+        result = databases.retrieve(address);
+        if (result != null && !result.isEmpty()) {
+          result = result.withTargetValue(createTargetValue(result.getGeoData()));
+        }
+      } finally {
+        databases.release();
+        metrics.recordDatabaseLookup(System.nanoTime() - startNanos);
+      }
+      if (result == null) {
+        notFoundCache.put(address, Boolean.TRUE);
+        return null;
+      }
+      if (result.getNetwork() != null) {
+        networkCache.put(result.getNetwork(), result);
+      }
+      offHeapCache.put(result.covers(prefixKey, ipv6CachePrefixLength) ? prefixKey : address, result);
+    }
+    // database errors are not cached, they are retried on the next event
+    final IpAddressKey cacheKey = result.covers(prefixKey, ipv6CachePrefixLength) ? prefixKey : address;
+    if (prefixKey != address) {
+      resultCache.recordAccess(cacheKey);
+    }
+    resultCache.put(cacheKey, result);
+    return result;
   }
 
-  private boolean applyGeoData(Map<Field, Object> geoData, Event event) {
-    if (geoData == null) {
-      return false;
+  /**
+   * @return the result the off-heap cache holds for the address or its IPv6 prefix, decoded, or {@code null}
+   */
+  private LookupResult getOffHeap(OffHeapResultCache offHeapCache, IpAddressKey address, IpAddressKey prefixKey) {
+    if (offHeapCache.capacity() == 0) {
+      return null;
     }
-    // only do event.set(@target) if the lookup result is not null
-    if (event.getField(targetField) == null) {
-      event.setField(targetField, Collections.emptyMap());
+    final LookupResult result = offHeapCache.get(prefixKey);
+    if (result != null && (prefixKey == address || result.covers(prefixKey, ipv6CachePrefixLength))) {
+      return result;
     }
+    return prefixKey == address ? null : offHeapCache.get(address);
+  }
+
+  private boolean applyGeoData(LookupResult result, String ip, SourceMapping mapping, Event event) {
+    final Object target = event.getUnconvertedField(mapping.targetFieldReference);
     // don't do anything more if the lookup result is empty
-    if (geoData.isEmpty()) {
+    final Map<Field, Object> geoData = result.getGeoData();
+    final FieldReference ipReference = mapping.targetFieldReferences.get(Field.IP);
+    if (result.isEmpty() || (geoData.isEmpty() && ipReference == null)) {
+      if (result == LookupResult.RESERVED) {
+        event.tag(RESERVED_ADDRESS_TAG);
+      }
+      // only do event.set(@target) if the lookup result is not null
+      if (target == null) {
+        event.setField(mapping.targetFieldReference, Collections.emptyMap());
+      }
       return false;
     }
 
-    String targetFieldReference = "[" + this.targetField + "]";
-    for (Map.Entry<Field, Object> it: geoData.entrySet()) {
-      final Field field = it.getKey();
-      final String subFieldReference = this.fieldReferenceExtractor.apply(field);
-
-      if (subFieldReference.equals("[]")) {
-        continue; // skip the incompatible ECS field
+    // the cached subtree is already converted, each event gets its own copy of it
+    final ConvertedMap targetValue = result.getTargetValue();
+    if (targetValue != null && target == null) {
+      event.setField(mapping.targetFieldReference, Cloner.deep(targetValue));
+    } else if (targetValue != null && target instanceof Map) {
+      mergeInto(Cloner.deep(targetValue), (Map<String, Object>) target);
+    } else {
+      for (Map.Entry<Field, Object> it: geoData.entrySet()) {
+        final FieldReference reference = mapping.targetFieldReferences.get(it.getKey());
+        if (reference != null) {
+          event.setField(reference, it.getValue());
+        }
       }
-
-      event.setField(targetFieldReference + subFieldReference, it.getValue());
+    }
+    // the IP is the only per-address field, the rest of the result is shared by the whole network
+    if (ipReference != null) {
+      event.setField(ipReference, ip);
     }
     return true;
   }
 
-  private Map<Field,Object> retrieveCityGeoData(InetAddress ipAddress) throws GeoIp2Exception, IOException {
-    CityResponse response;
-    try {
-      response = databaseReader.city(ipAddress);
-    } catch (NullPointerException | DeserializationException e) {
-      throw new GeoIp2InvalidCustomFieldException(e);
-    }
-    Country country = response.getCountry();
-    City city = response.getCity();
-    Location location = response.getLocation();
-    Continent continent = response.getContinent();
-    Postal postal = response.getPostal();
-    Subdivision subdivision = response.getMostSpecificSubdivision();
-    Map<Field, Object> geoData = new EnumMap<>(Field.class);
-
-    // if location is empty, there is no point populating geo data
-    // and most likely all other fields are empty as well
-    if (location.getLatitude() == null && location.getLongitude() == null) {
-      return geoData;
-    }
-
-    for (Field desiredField : this.desiredFields) {
-      switch (desiredField) {
-        case CITY_NAME:
-          String cityName = city.getName();
-          if (cityName != null) {
-            geoData.put(Field.CITY_NAME, cityName);
-          }
-          break;
-        case CONTINENT_CODE:
-          String continentCode = continent.getCode();
-          if (continentCode != null) {
-            geoData.put(Field.CONTINENT_CODE, continentCode);
-          }
-          break;
-        case CONTINENT_NAME:
-          String continentName = continent.getName();
-          if (continentName != null) {
-            geoData.put(Field.CONTINENT_NAME, continentName);
-          }
-          break;
-        case COUNTRY_NAME:
-          String countryName = country.getName();
-          if (countryName != null) {
-            geoData.put(Field.COUNTRY_NAME, countryName);
-          }
-          break;
-        case COUNTRY_CODE2:
-          String countryCode2 = country.getIsoCode();
-          if (countryCode2 != null) {
-            geoData.put(Field.COUNTRY_CODE2, countryCode2);
-          }
-          break;
-        case COUNTRY_CODE3:
-          String countryCode3 = country.getIsoCode();
-          if (countryCode3 != null) {
-            geoData.put(Field.COUNTRY_CODE3, countryCode3);
-          }
-          break;
-        case IP:
-          geoData.put(Field.IP, ipAddress.getHostAddress());
-          break;
-        case POSTAL_CODE:
-          String postalCode = postal.getCode();
-          if (postalCode != null) {
-            geoData.put(Field.POSTAL_CODE, postalCode);
-          }
-          break;
-        case DMA_CODE:
-          Integer dmaCode = location.getMetroCode();
-          if (dmaCode != null) {
-            geoData.put(Field.DMA_CODE, dmaCode);
-          }
-          break;
-        case REGION_NAME:
-          String subdivisionName = subdivision.getName();
-          if (subdivisionName != null) {
-            geoData.put(Field.REGION_NAME, subdivisionName);
-          }
-          break;
-        case REGION_CODE:
-          String subdivisionCode = subdivision.getIsoCode();
-          if (subdivisionCode != null) {
-            geoData.put(Field.REGION_CODE, subdivisionCode);
-          }
-          break;
-        case REGION_ISO_CODE:
-          parseRegionIsoCodeField(country, subdivision)
-                  .ifPresent(data -> geoData.put(Field.REGION_ISO_CODE, data));
-          break;
-        case TIMEZONE:
-          String locationTimeZone = location.getTimeZone();
-          if (locationTimeZone != null) {
-            geoData.put(Field.TIMEZONE, locationTimeZone);
-          }
-          break;
-        case LOCATION:
-          parseLocationField(location)
-                  .ifPresent(data -> geoData.put(Field.LOCATION, data));
-          break;
-        case LATITUDE:
-          Double lat = location.getLatitude();
-          if (lat != null) {
-            geoData.put(Field.LATITUDE, lat);
-          }
-          break;
-        case LONGITUDE:
-          Double lon = location.getLongitude();
-          if (lon != null) {
-            geoData.put(Field.LONGITUDE, lon);
-          }
-          break;
+  /**
+   * Sets the target to the list of the results of every IP of the source, with an empty result for each failed lookup.
+   *
+   * @return whether any IP of the source was enriched
+   */
+  private boolean applyAllGeoData(SourceIps source, Lookups lookups, Event event) {
+    final FieldReference ipSubFieldReference = subFieldReferences.get(Field.IP);
+    final List<Map<String, Object>> targetValues = new ArrayList<>(source.ips.length);
+    boolean enriched = false;
+    for (int i = 0; i < source.ips.length; i++) {
+      final LookupResult result = source.addresses[i] == null ? LookupResult.EMPTY : lookups.results.get(source.addresses[i]);
+      if (result == LookupResult.RESERVED) {
+        event.tag(RESERVED_ADDRESS_TAG);
+      }
+      if (result.isEmpty() || result.getTargetValue() == null || (result.getGeoData().isEmpty() && ipSubFieldReference == null)) {
+        targetValues.add(Collections.emptyMap());
+        continue;
       }
+      final ConvertedMap targetValue = Cloner.deep(result.getTargetValue());
+      if (ipSubFieldReference != null) {
+        // the IP field is at the root of the target in every layout
+        targetValue.putInterned(ipSubFieldReference.getKey(), Valuefier.convert(source.ips[i]));
+      }
+      targetValues.add(targetValue);
+      enriched = true;
     }
+    event.setField(source.mapping.targetFieldReference, targetValues);
+    return enriched;
+  }
 
-    return geoData;
+  /**
+   * @return the geo data as the converted value of the target field, with the same layout
+   *         as writing each field to its own reference
+   */
+  @SuppressWarnings("unchecked")
+  private ConvertedMap createTargetValue(Map<Field, Object> geoData) {
+    final Map<String, Object> targetValue = new HashMap<>();
+    for (Map.Entry<Field, Object> it : geoData.entrySet()) {
+      final FieldReference reference = subFieldReferences.get(it.getKey());
+      if (reference == null) {
+        continue;
+      }
+      Map<String, Object> parent = targetValue;
+      for (String key : reference.getPath()) {
+        parent = (Map<String, Object>) parent.compute(key, (ignored, value) -> value instanceof Map ? value : new HashMap<>());
+      }
+      final Object value = it.getValue();
+      parent.put(reference.getKey(), value instanceof Map ? new HashMap<>((Map<String, Object>) value) : value);
+    }
+    return ConvertedMap.newFromMap(targetValue);
   }
 
-  private Map<Field,Object> retrieveCountryGeoData(InetAddress ipAddress) throws GeoIp2Exception, IOException {
-    CountryResponse response;
-    try {
-      response = databaseReader.country(ipAddress);
-    } catch (NullPointerException | DeserializationException e) {
-      throw new GeoIp2InvalidCustomFieldException(e);
-    }
-    Country country = response.getCountry();
-    Continent continent = response.getContinent();
-    Map<Field, Object> geoData = new EnumMap<>(Field.class);
-
-    for (Field desiredField : this.desiredFields) {
-      switch (desiredField) {
-        case IP:
-          geoData.put(Field.IP, ipAddress.getHostAddress());
-          break;
-        case COUNTRY_CODE2:
-          String countryCode2 = country.getIsoCode();
-          if (countryCode2 != null) {
-            geoData.put(Field.COUNTRY_CODE2, countryCode2);
-          }
-          break;
-        case COUNTRY_NAME:
-          String countryName = country.getName();
-          if (countryName != null) {
-            geoData.put(Field.COUNTRY_NAME, countryName);
-          }
-          break;
-        case CONTINENT_NAME:
-          String continentName = continent.getName();
-          if (continentName != null) {
-            geoData.put(Field.CONTINENT_NAME, continentName);
-          }
-          break;
+  @SuppressWarnings("unchecked")
+  private static void mergeInto(Map<String, Object> source, Map<String, Object> target) {
+    for (Map.Entry<String, Object> it : source.entrySet()) {
+      final Object existing = target.get(it.getKey());
+      if (existing instanceof Map && it.getValue() instanceof Map) {
+        mergeInto((Map<String, Object>) it.getValue(), (Map<String, Object>) existing);
+      } else {
+        target.put(it.getKey(), it.getValue());
       }
     }
+  }
 
-    return geoData;
+  /**
+   * Releases this filter's references to the shared databases, which are closed once no other filter uses them.
+   */
+  @Override
+  public void close() {
+    if (hostnameResolver != null) {
+      hostnameResolver.close();
+    }
+    final DatabaseSet databases;
+    synchronized (this) {
+      closed = true;
+      databases = this.databases;
+    }
+    databases.close();
   }
 
-  private Map<Field, Object> retrieveIspGeoData(InetAddress ipAddress) throws GeoIp2Exception, IOException {
-    IspResponse response;
-    try {
-      response = databaseReader.isp(ipAddress);
-    } catch (NullPointerException | DeserializationException e) {
-      throw new GeoIp2InvalidCustomFieldException(e);
+  /**
+   * A source field and the target field its geo data is written to.
+   */
+  private static final class SourceMapping {
+    private final String sourceField;
+    private final FieldReference targetFieldReference;
+    // the full reference of each desired field under the target
+    private final Map<Field, FieldReference> targetFieldReferences;
+
+    private SourceMapping(String sourceField, String targetField, Map<Field, FieldReference> targetFieldReferences) {
+      this.sourceField = sourceField;
+      this.targetFieldReference = FieldReference.from(targetField);
+      this.targetFieldReferences = targetFieldReferences;
     }
+  }
 
-    Map<Field, Object> geoData = new EnumMap<>(Field.class);
-    for (Field desiredField : this.desiredFields) {
-      switch (desiredField) {
-        case IP:
-          geoData.put(Field.IP, ipAddress.getHostAddress());
-          break;
-        case AUTONOMOUS_SYSTEM_NUMBER:
-          final Long asn = response.getAutonomousSystemNumber();
-          if (asn != null) {
-            geoData.put(desiredField, asn);
-          }
-          break;
-        case AUTONOMOUS_SYSTEM_ORGANIZATION:
-          String aso = response.getAutonomousSystemOrganization();
-          if (aso != null) {
-            geoData.put(desiredField, aso);
-          }
-          break;
-        case ISP:
-          String isp = response.getIsp();
-          if (isp != null) {
-            geoData.put(Field.ISP, isp);
-          }
-          break;
-        case ORGANIZATION:
-          String org = response.getOrganization();
-          if (org != null) {
-            geoData.put(Field.ORGANIZATION, org);
-          }
-          break;
-      }
+  /**
+   * The IPs of a source field of an event, in their canonical textual form when they were parsed or resolved,
+   * and their addresses, or {@code null} when they couldn't be parsed or resolved.
+   */
+  private static final class SourceIps {
+    private final SourceMapping mapping;
+    private final String[] ips;
+    private final IpAddressKey[] addresses;
+    // whether the target holds the list of the results of every IP
+    private final boolean list;
+
+    private SourceIps(SourceMapping mapping, String[] ips, IpAddressKey[] addresses, boolean list) {
+      this.mapping = mapping;
+      this.ips = ips;
+      this.addresses = addresses;
+      this.list = list;
     }
+  }
 
-    return geoData;
+  /**
+   * The hostnames and addresses of the events handled together, each resolved and looked up once.
+   */
+  private static final class Lookups {
+    private final Map<String, IpAddressKey> hostnames = new HashMap<>();
+    private final Set<String> timedOutHostnames = new HashSet<>();
+    private final Map<IpAddressKey, LookupResult> results = new HashMap<>();
   }
 
-  private Map<Field, Object> retrieveAsnGeoData(InetAddress ipAddress) throws GeoIp2Exception, IOException {
-    AsnResponse response;
-    try {
-      response = databaseReader.asn(ipAddress);
-    } catch (NullPointerException | DeserializationException e) {
-      throw new GeoIp2InvalidCustomFieldException(e);
+  public static final class Builder {
+    private final String sourceField;
+    private final String targetField;
+    private final String databasePath;
+    private List<String> fields;
+    private List<String> locales;
+    private int cacheSize = 1000;
+    private String cacheAdmission = "lru";
+    private int cacheNetworkCap = 0;
+    private long offHeapCacheSize = 0;
+    private String ecsCompatibility = "disabled";
+    private String hostnameResolution = "blocking";
+    private long hostnameResolutionTimeoutMillis = 500;
+    private long hostnameCacheTtlMillis = 60_000;
+    private long hostnameFailedCacheTtlMillis = 5_000;
+    private final Map<String, List<String>> additionalDatabases = new LinkedHashMap<>();
+    private final Map<String, String> additionalSources = new LinkedHashMap<>();
+    private String arrayMode = "first";
+    private String lookupEngine = "mmdb";
+    private int ipv6CachePrefixLength = 64;
+    private int threadCacheSize = 0;
+    private String databaseFileMode = "mmap";
+    private int warmupLookups = 0;
+    private long warmupTimeoutMillis = 30_000;
+    private String cacheCarryOver = "revalidate";
+
+    public Builder(String sourceField, String targetField, String databasePath) {
+      this.sourceField = sourceField;
+      this.targetField = targetField;
+      this.databasePath = databasePath;
     }
-    Network network = response.getNetwork();
 
-    Map<Field, Object> geoData = new EnumMap<>(Field.class);
-    for (Field desiredField : this.desiredFields) {
-      switch (desiredField) {
-        case IP:
-          geoData.put(Field.IP, ipAddress.getHostAddress());
-          break;
-        case AUTONOMOUS_SYSTEM_NUMBER:
-          final Long asn = response.getAutonomousSystemNumber();
-          if (asn != null) {
-            geoData.put(Field.AUTONOMOUS_SYSTEM_NUMBER, asn);
-          }
-          break;
-        case AUTONOMOUS_SYSTEM_ORGANIZATION:
-          String aso = response.getAutonomousSystemOrganization();
-          if (aso != null) {
-            geoData.put(Field.AUTONOMOUS_SYSTEM_ORGANIZATION, aso);
-          }
-          break;
-        case NETWORK:
-          if (network != null) {
-            geoData.put(Field.NETWORK, network.toString());
-          }
-          break;
-      }
+    public Builder withFields(List<String> fields) {
+      this.fields = fields;
+      return this;
     }
 
-    return geoData;
-  }
+    /**
+     * @param locales the languages of the names, in order of preference, only English names when {@code null} or empty
+     */
+    public Builder withLocales(List<String> locales) {
+      this.locales = locales;
+      return this;
+    }
 
-  private Map<Field, Object> retrieveDomainGeoData(InetAddress ipAddress) throws GeoIp2Exception, IOException {
-    DomainResponse response;
-    try {
-      response = databaseReader.domain(ipAddress);
-    } catch (NullPointerException | DeserializationException e) {
-      throw new GeoIp2InvalidCustomFieldException(e);
-    }
-    Map<Field, Object> geoData = new EnumMap<>(Field.class);
-    for (Field desiredField : this.desiredFields) {
-      switch (desiredField) {
-        case DOMAIN:
-          String domain = response.getDomain();
-          geoData.put(Field.DOMAIN, domain);
-          break;
-      }
+    public Builder withCacheSize(int cacheSize) {
+      this.cacheSize = cacheSize;
+      return this;
     }
 
-    return geoData;
-  }
+    /**
+     * @param cacheAdmission which new addresses are cached once the caches are full, {@code lru} or {@code tinylfu},
+     *                       which only admits addresses looked up more often than the entry they evict
+     */
+    public Builder withCacheAdmission(String cacheAdmission) {
+      this.cacheAdmission = cacheAdmission;
+      return this;
+    }
 
-  private Map<Field, Object> retrieveEnterpriseGeoData(InetAddress ipAddress) throws GeoIp2Exception, IOException {
-    EnterpriseResponse response;
-    try {
-      response = databaseReader.enterprise(ipAddress);
-    } catch (NullPointerException | DeserializationException e) {
-      throw new GeoIp2InvalidCustomFieldException(e);
-    }
-
-    Map<Field, Object> geoData = new EnumMap<>(Field.class);
-    Country country = response.getCountry();
-    City city = response.getCity();
-    Location location = response.getLocation();
-    Continent continent = response.getContinent();
-    Subdivision subdivision = response.getMostSpecificSubdivision();
-
-    Long asn = response.getTraits().getAutonomousSystemNumber();
-    String organizationName = response.getTraits().getAutonomousSystemOrganization();
-    Network network = response.getTraits().getNetwork();
-
-    boolean isHostingProvider = response.getTraits().isHostingProvider();
-    boolean isTorExitNode = response.getTraits().isTorExitNode();
-    boolean isAnonymousVpn = response.getTraits().isAnonymousVpn();
-    boolean isAnonymous = response.getTraits().isAnonymous();
-    boolean isPublicProxy = response.getTraits().isPublicProxy();
-    boolean isResidentialProxy = response.getTraits().isResidentialProxy();
-
-    for (Field desiredField : this.desiredFields) {
-      switch (desiredField) {
-        case IP:
-          geoData.put(Field.IP, ipAddress.getHostAddress());
-          break;
-        case COUNTRY_CODE2:
-          String countryIsoCode = country.getIsoCode();
-          if (countryIsoCode != null) {
-            geoData.put(desiredField, countryIsoCode);
-          }
-          break;
-        case COUNTRY_NAME:
-          String countryName = country.getName();
-          if (countryName != null) {
-            geoData.put(desiredField, countryName);
-          }
-          break;
-        case CONTINENT_NAME:
-          String continentName = continent.getName();
-          if (continentName != null) {
-            geoData.put(desiredField, continentName);
-          }
-          break;
-        case REGION_ISO_CODE:
-          parseRegionIsoCodeField(country, subdivision)
-                  .ifPresent(data -> geoData.put(desiredField, data));
-          break;
-        case REGION_NAME:
-          String subdivisionName = subdivision.getName();
-          if (subdivisionName != null) {
-            geoData.put(desiredField, subdivisionName);
-          }
-          break;
-        case CITY_NAME:
-          String cityName = city.getName();
-          if (cityName != null) {
-            geoData.put(desiredField, cityName);
-          }
-          break;
-        case TIMEZONE:
-          String locationTimeZone = location.getTimeZone();
-          if (locationTimeZone != null) {
-            geoData.put(desiredField, locationTimeZone);
-          }
-          break;
-        case LOCATION:
-          parseLocationField(location)
-                  .ifPresent(data -> geoData.put(desiredField, data));
-          break;
-        case AUTONOMOUS_SYSTEM_NUMBER:
-          if (asn != null) {
-            geoData.put(desiredField, asn);
-          }
-          break;
-        case AUTONOMOUS_SYSTEM_ORGANIZATION:
-          if (organizationName != null) {
-            geoData.put(desiredField, organizationName);
-          }
-          break;
-        case NETWORK:
-          if (network != null) {
-            geoData.put(desiredField, network.toString());
-          }
-          break;
-        case HOSTING_PROVIDER:
-          geoData.put(desiredField, isHostingProvider);
-          break;
-        case TOR_EXIT_NODE:
-          geoData.put(desiredField, isTorExitNode);
-          break;
-        case ANONYMOUS_VPN:
-          geoData.put(desiredField, isAnonymousVpn);
-          break;
-        case ANONYMOUS:
-          geoData.put(desiredField, isAnonymous);
-          break;
-        case PUBLIC_PROXY:
-          geoData.put(desiredField, isPublicProxy);
-          break;
-        case RESIDENTIAL_PROXY:
-          geoData.put(desiredField, isResidentialProxy);
-          break;
-      }
+    /**
+     * @param cacheNetworkCap the number of addresses of a /24 IPv4 or /48 IPv6 source network cached at most,
+     *                        {@code 0} for no cap
+     */
+    public Builder withCacheNetworkCap(int cacheNetworkCap) {
+      this.cacheNetworkCap = cacheNetworkCap;
+      return this;
     }
-    return geoData;
-  }
 
-  private Map<Field, Object> retrieveAnonymousIpGeoData(final InetAddress ipAddress) throws GeoIp2Exception, IOException {
-    AnonymousIpResponse response;
-    try {
-      response = databaseReader.anonymousIp(ipAddress);
-    } catch (NullPointerException | DeserializationException e) {
-      throw new GeoIp2InvalidCustomFieldException(e);
-    }
-
-    Map<Field, Object> geoData = new EnumMap<>(Field.class);
-    boolean isHostingProvider = response.isHostingProvider();
-    boolean isTorExitNode = response.isTorExitNode();
-    boolean isAnonymousVpn = response.isAnonymousVpn();
-    boolean isAnonymous = response.isAnonymous();
-    boolean isPublicProxy = response.isPublicProxy();
-    boolean isResidentialProxy = response.isResidentialProxy();
-
-    for (Field desiredField : this.desiredFields) {
-      switch (desiredField) {
-        case IP:
-          geoData.put(desiredField, ipAddress.getHostAddress());
-          break;
-        case HOSTING_PROVIDER:
-          geoData.put(desiredField, isHostingProvider);
-          break;
-        case TOR_EXIT_NODE:
-          geoData.put(desiredField, isTorExitNode);
-          break;
-        case ANONYMOUS_VPN:
-          geoData.put(desiredField, isAnonymousVpn);
-          break;
-        case ANONYMOUS:
-          geoData.put(desiredField, isAnonymous);
-          break;
-        case PUBLIC_PROXY:
-          geoData.put(desiredField, isPublicProxy);
-          break;
-        case RESIDENTIAL_PROXY:
-          geoData.put(desiredField, isResidentialProxy);
-          break;
-      }
+    /**
+     * @param offHeapCacheSize the number of bytes of direct memory caching the results of the database lookups behind
+     *                         the heap caches, {@code 0} disables the off-heap cache
+     */
+    public Builder withOffHeapCacheSize(long offHeapCacheSize) {
+      this.offHeapCacheSize = offHeapCacheSize;
+      return this;
     }
-    return geoData;
-  }
 
-  private Optional<Map<String, Object>> parseLocationField(Location location) {
-    Double latitude = location.getLatitude();
-    Double longitude = location.getLongitude();
-    if (latitude != null && longitude != null) {
-      Map<String, Object> locationObject = new HashMap<>();
-      locationObject.put("lat", latitude);
-      locationObject.put("lon", longitude);
-      return Optional.of(locationObject);
+    public Builder withEcsCompatibility(String ecsCompatibility) {
+      this.ecsCompatibility = ecsCompatibility;
+      return this;
     }
 
-    return Optional.empty();
-  }
+    /**
+     * @param hostnameResolution how source values that are not IP literals are handled,
+     *                           {@code blocking}, {@code async} or {@code disabled}
+     */
+    public Builder withHostnameResolution(String hostnameResolution) {
+      this.hostnameResolution = hostnameResolution;
+      return this;
+    }
 
-  private Optional<String> parseRegionIsoCodeField(final Country country, final Subdivision subdivision) {
-    String countryCodeForRegion = country.getIsoCode();
-    String regionCode2 = subdivision.getIsoCode();
-    if (countryCodeForRegion != null && regionCode2 != null) {
-      return Optional.of(String.format("%s-%s", countryCodeForRegion, regionCode2));
+    /**
+     * @param timeoutMillis how long an event waits for an {@code async} hostname resolution
+     */
+    public Builder withHostnameResolutionTimeoutMillis(long timeoutMillis) {
+      this.hostnameResolutionTimeoutMillis = timeoutMillis;
+      return this;
     }
 
-    return Optional.empty();
-  }
+    /**
+     * @param ttlMillis how long resolved and failed {@code async} hostname resolutions are cached
+     */
+    public Builder withHostnameCacheTtlMillis(long ttlMillis, long failedTtlMillis) {
+      this.hostnameCacheTtlMillis = ttlMillis;
+      this.hostnameFailedCacheTtlMillis = failedTtlMillis;
+      return this;
+    }
 
-  @Override
-  public void close() {
-    if (databaseReader != null) {
-      try {
-        databaseReader.close();
-      } catch (IOException e) {
-        // Ignore
-      }
+    /**
+     * Adds a database whose records are merged into the same target, looked up with the same parsed IP.
+     * Fields found in several databases are taken from the first one declaring them, starting with the primary database.
+     *
+     * @param fields the fields to project out of this database, its default fields when {@code null} or empty
+     */
+    public Builder withAdditionalDatabase(String databasePath, List<String> fields) {
+      this.additionalDatabases.put(databasePath, fields);
+      return this;
+    }
+
+    /**
+     * Adds a source field looked up with the same databases and caches, its geo data is written to its own target.
+     */
+    public Builder withAdditionalSource(String sourceField, String targetField) {
+      this.additionalSources.put(sourceField, targetField);
+      return this;
+    }
+
+    /**
+     * @param arrayMode which elements of a source field holding a list are looked up,
+     *                  {@code first}, {@code first_public} or {@code all}
+     */
+    public Builder withArrayMode(String arrayMode) {
+      this.arrayMode = arrayMode;
+      return this;
+    }
+
+    /**
+     * @param lookupEngine how records are looked up, {@code mmdb} or {@code range_table}, which preloads
+     *                     the Country, ASN and Anonymous-IP databases and falls back to {@code mmdb} for the others
+     */
+    public Builder withLookupEngine(String lookupEngine) {
+      this.lookupEngine = lookupEngine;
+      return this;
+    }
+
+    /**
+     * @param prefixLength IPv6 addresses sharing a prefix of this length share one cache entry, as long as the
+     *                     network of their database record covers the whole prefix. {@code 128} caches every address
+     */
+    public Builder withIpv6CachePrefixLength(int prefixLength) {
+      this.ipv6CachePrefixLength = prefixLength;
+      return this;
+    }
+
+    /**
+     * @param threadCacheSize the number of results cached by each worker thread in front of the shared caches,
+     *                        rounded up to a power of two, {@code 0} disables the thread caches
+     */
+    public Builder withThreadCacheSize(int threadCacheSize) {
+      this.threadCacheSize = threadCacheSize;
+      return this;
+    }
+
+    /**
+     * @param fileMode how the database files are loaded, {@code mmap}, {@code heap} or {@code mmap_touch}
+     */
+    public Builder withDatabaseFileMode(String fileMode) {
+      this.databaseFileMode = fileMode;
+      return this;
+    }
+
+    /**
+     * Warms the filter up when it is built, reading the database pages and running synthetic lookups.
+     *
+     * @param lookups how many synthetic lookups are run, {@code 0} disables the warm-up
+     * @param timeoutMillis how long the warm-up runs at most
+     */
+    public Builder withWarmup(int lookups, long timeoutMillis) {
+      this.warmupLookups = lookups;
+      this.warmupTimeoutMillis = timeoutMillis;
+      return this;
+    }
+
+    /**
+     * @param cacheCarryOver how cached results survive a database swap, {@code revalidate} looks the cached addresses up
+     *                       in the new database, {@code diff} keeps the results of the networks that didn't change
+     */
+    public Builder withCacheCarryOver(String cacheCarryOver) {
+      this.cacheCarryOver = cacheCarryOver;
+      return this;
+    }
+
+    public GeoIPFilter build() {
+      return new GeoIPFilter(this);
     }
   }
 }
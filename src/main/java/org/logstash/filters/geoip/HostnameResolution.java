@@ -0,0 +1,44 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * How source values that are not IP literals are handled.
+ */
+enum HostnameResolution {
+
+  // resolve hostnames on the pipeline worker thread (legacy behavior)
+  BLOCKING,
+  // resolve hostnames on a bounded executor, with a timeout and a TTL cache of the answers
+  ASYNC,
+  // only accept IP literals, hostnames are reported as lookup failures
+  DISABLED;
+
+  static HostnameResolution parse(final String value) {
+    try {
+      return HostnameResolution.valueOf(value.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("illegal hostname resolution value " + value + ". valid values are " +
+              Arrays.toString(HostnameResolution.values()));
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Resolves hostnames off the pipeline worker threads, waiting at most a configured timeout for the answer.
+ * Answers, including failed resolutions, are kept in a TTL cache. Resolutions that time out keep running
+ * in the background and populate the cache for the next events carrying the same hostname.
+ */
+final class HostnameResolver implements Closeable {
+
+  private static final Logger logger = LogManager.getLogger();
+
+  static final int DEFAULT_CONCURRENCY = 16;
+  private static final int MAX_PENDING_RESOLUTIONS = 10_000;
+
+  @FunctionalInterface
+  interface NameService {
+    InetAddress resolve(String hostname) throws UnknownHostException;
+  }
+
+  private final NameService nameService;
+  private final long timeoutNanos;
+  private final long ttlNanos;
+  private final long failedTtlNanos;
+  private final LongSupplier clock;
+  private final LruCache<String, Resolution> cache;
+  private final ConcurrentMap<String, CompletableFuture<Resolution>> pending = new ConcurrentHashMap<>();
+  private final Semaphore permits;
+  private final ExecutorService executor;
+
+  HostnameResolver(final long timeoutMillis, final long ttlMillis, final long failedTtlMillis, final int cacheSize) {
+    this(InetAddress::getByName, timeoutMillis, ttlMillis, failedTtlMillis, cacheSize, DEFAULT_CONCURRENCY, System::nanoTime);
+  }
+
+  HostnameResolver(final NameService nameService, final long timeoutMillis, final long ttlMillis, final long failedTtlMillis,
+                   final int cacheSize, final int concurrency, final LongSupplier clock) {
+    this.nameService = nameService;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.failedTtlNanos = TimeUnit.MILLISECONDS.toNanos(failedTtlMillis);
+    this.clock = clock;
+    this.cache = new LruCache<>(cacheSize);
+    this.permits = new Semaphore(concurrency);
+    this.executor = createExecutor(concurrency);
+  }
+
+  /**
+   * @return the resolved address, or {@code null} if the hostname doesn't resolve
+   * @throws TimeoutException if the hostname couldn't be resolved within the timeout
+   */
+  IpAddressKey resolve(final String hostname) throws TimeoutException {
+    final Resolution cached = cache.get(hostname);
+    if (cached != null && cached.expiresAt - clock.getAsLong() > 0) {
+      return cached.address;
+    }
+
+    CompletableFuture<Resolution> resolution = pending.get(hostname);
+    if (resolution == null) {
+      if (pending.size() >= MAX_PENDING_RESOLUTIONS) {
+        throw new TimeoutException("Too many pending hostname resolutions, unable to resolve " + hostname);
+      }
+      final CompletableFuture<Resolution> created = new CompletableFuture<>();
+      resolution = pending.putIfAbsent(hostname, created);
+      if (resolution == null) {
+        resolution = created;
+        schedule(hostname, created);
+      }
+    }
+
+    try {
+      return resolution.get(timeoutNanos, TimeUnit.NANOSECONDS).address;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TimeoutException("Interrupted while resolving " + hostname);
+    } catch (ExecutionException e) {
+      throw new TimeoutException("Unable to schedule the resolution of " + hostname + ": " + e.getCause());
+    }
+  }
+
+  private void schedule(final String hostname, final CompletableFuture<Resolution> resolution) {
+    try {
+      executor.execute(() -> complete(hostname, resolution));
+    } catch (RejectedExecutionException e) {
+      pending.remove(hostname, resolution);
+      resolution.completeExceptionally(e);
+    }
+  }
+
+  private void complete(final String hostname, final CompletableFuture<Resolution> resolution) {
+    Resolution result;
+    try {
+      permits.acquire();
+      try {
+        final InetAddress address = nameService.resolve(hostname);
+        result = new Resolution(IpAddressKey.of(address), clock.getAsLong() + ttlNanos);
+      } finally {
+        permits.release();
+      }
+    } catch (UnknownHostException e) {
+      result = new Resolution(null, clock.getAsLong() + failedTtlNanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      pending.remove(hostname, resolution);
+      resolution.completeExceptionally(e);
+      return;
+    } catch (RuntimeException e) {
+      logger.debug("Unexpected error while resolving hostname {}", hostname, e);
+      result = new Resolution(null, clock.getAsLong() + failedTtlNanos);
+    }
+    cache.put(hostname, result);
+    pending.remove(hostname, resolution);
+    resolution.complete(result);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Uses virtual threads when the JVM supports them, blocked resolutions then don't hold a platform thread.
+   * The concurrency is bounded by the semaphore in both cases.
+   */
+  private static ExecutorService createExecutor(final int concurrency) {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.debug("Virtual threads are not available, resolving hostnames on platform threads");
+    }
+
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ThreadFactory threadFactory = (runnable) -> {
+      final Thread thread = new Thread(runnable, "geoip-hostname-resolver-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(MAX_PENDING_RESOLUTIONS), threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static final class Resolution {
+    private final IpAddressKey address;
+    private final long expiresAt;
+
+    private Resolution(final IpAddressKey address, final long expiresAt) {
+      this.address = address;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
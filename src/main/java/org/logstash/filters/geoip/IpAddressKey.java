@@ -0,0 +1,204 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A canonical, 128-bit representation of an IP address used as lookup cache key.
+ * IPv4 addresses (including IPv4-mapped IPv6 addresses) are stored in the
+ * IPv4-mapped IPv6 space ({@code ::ffff:a.b.c.d}), so both notations share a single key.
+ * Keys are ordered numerically, which is also the order of the database search tree.
+ */
+final class IpAddressKey implements Comparable<IpAddressKey> {
+
+  private static final long IPV4_MAPPED_PREFIX = 0x0000_ffff_0000_0000L;
+  private static final long IPV4_MASK = 0xffff_ffffL;
+
+  private final long high;
+  private final long low;
+
+  IpAddressKey(final long high, final long low) {
+    this.high = high;
+    this.low = low;
+  }
+
+  static IpAddressKey ofIpv4(final int address) {
+    return new IpAddressKey(0L, IPV4_MAPPED_PREFIX | (address & IPV4_MASK));
+  }
+
+  static IpAddressKey of(final InetAddress address) {
+    return of(address.getAddress());
+  }
+
+  static IpAddressKey of(final byte[] address) {
+    if (address.length == 4) {
+      return ofIpv4(readInt(address, 0));
+    }
+    if (address.length != 16) {
+      throw new IllegalArgumentException("Invalid address length " + address.length);
+    }
+    return new IpAddressKey(readLong(address, 0), readLong(address, 8));
+  }
+
+  long high() {
+    return high;
+  }
+
+  long low() {
+    return low;
+  }
+
+  boolean isIpv4() {
+    return high == 0L && (low & ~IPV4_MASK) == IPV4_MAPPED_PREFIX;
+  }
+
+  /**
+   * @param prefixLength a prefix length in the 128-bit space
+   * @return the first address of the network of the given prefix length containing this address
+   */
+  IpAddressKey truncate(final int prefixLength) {
+    final long truncatedHigh = high & mask(prefixLength);
+    final long truncatedLow = low & mask(prefixLength - 64);
+    return truncatedHigh == high && truncatedLow == low ? this : new IpAddressKey(truncatedHigh, truncatedLow);
+  }
+
+  /**
+   * @param prefixLength a prefix length in the 128-bit space
+   */
+  boolean isInNetwork(final IpAddressKey networkAddress, final int prefixLength) {
+    return (high & mask(prefixLength)) == networkAddress.high && (low & mask(prefixLength - 64)) == networkAddress.low;
+  }
+
+  /**
+   * @return the 4 (IPv4) or 16 (IPv6) bytes of this address, in network byte order
+   */
+  byte[] toBytes() {
+    if (isIpv4()) {
+      final byte[] bytes = new byte[4];
+      writeInt(bytes, 0, (int) low);
+      return bytes;
+    }
+    final byte[] bytes = new byte[16];
+    writeLong(bytes, 0, high);
+    writeLong(bytes, 8, low);
+    return bytes;
+  }
+
+  InetAddress toInetAddress() {
+    try {
+      // literal bytes never trigger a name service lookup
+      return InetAddress.getByAddress(toBytes());
+    } catch (UnknownHostException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public int compareTo(final IpAddressKey other) {
+    final int result = Long.compareUnsigned(high, other.high);
+    return result != 0 ? result : Long.compareUnsigned(low, other.low);
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof IpAddressKey)) {
+      return false;
+    }
+    final IpAddressKey that = (IpAddressKey) o;
+    return high == that.high && low == that.low;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash(high, low);
+  }
+
+  static int hash(final long high, final long low) {
+    // mix both halves, so keys differing only in the low bits still spread across segments
+    long h = high * 0x9E3779B97F4A7C15L ^ low;
+    h ^= (h >>> 33);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+    return (int) h;
+  }
+
+  /**
+   * @return the address in the same textual form as {@link InetAddress#getHostAddress()}
+   */
+  @Override
+  public String toString() {
+    final StringBuilder builder = new StringBuilder(39);
+    if (isIpv4()) {
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        builder.append((low >>> shift) & 0xff);
+        if (shift > 0) {
+          builder.append('.');
+        }
+      }
+      return builder.toString();
+    }
+    for (int group = 0; group < 8; group++) {
+      final long half = group < 4 ? high : low;
+      builder.append(Integer.toHexString((int) ((half >>> (48 - 16 * (group & 3))) & 0xffff)));
+      if (group < 7) {
+        builder.append(':');
+      }
+    }
+    return builder.toString();
+  }
+
+  // a mask with the given number of leading one bits, clamped to [0, 64]
+  static long mask(final int leadingOnes) {
+    if (leadingOnes <= 0) {
+      return 0L;
+    }
+    if (leadingOnes >= 64) {
+      return -1L;
+    }
+    return -1L << (64 - leadingOnes);
+  }
+
+  private static int readInt(final byte[] bytes, final int offset) {
+    return ((bytes[offset] & 0xff) << 24)
+            | ((bytes[offset + 1] & 0xff) << 16)
+            | ((bytes[offset + 2] & 0xff) << 8)
+            | (bytes[offset + 3] & 0xff);
+  }
+
+  private static long readLong(final byte[] bytes, final int offset) {
+    return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & IPV4_MASK);
+  }
+
+  private static void writeInt(final byte[] bytes, final int offset, final int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  private static void writeLong(final byte[] bytes, final int offset, final long value) {
+    writeInt(bytes, offset, (int) (value >>> 32));
+    writeInt(bytes, offset + 4, (int) value);
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+/**
+ * A strict IPv4 and IPv6 literal parser, which never falls back to a name service lookup.
+ * It parses directly into the primitive {@link IpAddressKey} representation, without the intermediate
+ * {@link java.net.InetAddress} and byte array allocations of {@link java.net.InetAddress#getByName(String)}.
+ *
+ * Only the unambiguous forms are accepted: dotted-quad IPv4 without leading zeros, and IPv6 with optional
+ * {@code ::} compression and trailing dotted-quad. Anything else (hostnames, zone ids, brackets, legacy IPv4
+ * shorthands) is reported as not being a literal.
+ */
+final class IpAddressParser {
+
+  // 8 groups of 4 hex digits with 7 colons, or 6 groups followed by a dotted quad
+  private static final int MAX_LITERAL_LENGTH = 45;
+  private static final long INVALID = -1L;
+
+  private IpAddressParser() { /* empty */ }
+
+  /**
+   * @return the parsed address, or {@code null} if the value is not a strict IP literal
+   */
+  static IpAddressKey parse(final String value) {
+    final int length = value.length();
+    if (length == 0 || length > MAX_LITERAL_LENGTH) {
+      return null;
+    }
+    if (value.indexOf(':') >= 0) {
+      return parseIpv6(value, length);
+    }
+    final long ipv4 = parseIpv4(value, 0, length);
+    return ipv4 == INVALID ? null : IpAddressKey.ofIpv4((int) ipv4);
+  }
+
+  /**
+   * @return the unsigned 32 bits of the dotted-quad between {@code from} and {@code to}, or {@link #INVALID}
+   */
+  private static long parseIpv4(final String value, final int from, final int to) {
+    long address = 0;
+    int separators = 0;
+    int octet = 0;
+    int digits = 0;
+    for (int i = from; i < to; i++) {
+      final char c = value.charAt(i);
+      if (c == '.') {
+        if (digits == 0 || ++separators > 3) {
+          return INVALID;
+        }
+        address = (address << 8) | octet;
+        octet = 0;
+        digits = 0;
+      } else if (c >= '0' && c <= '9') {
+        if (digits > 0 && octet == 0) {
+          return INVALID; // leading zeros are ambiguous (octal or decimal)
+        }
+        octet = octet * 10 + (c - '0');
+        if (octet > 255) {
+          return INVALID;
+        }
+        digits++;
+      } else {
+        return INVALID;
+      }
+    }
+    if (digits == 0 || separators != 3) {
+      return INVALID;
+    }
+    return (address << 8) | octet;
+  }
+
+  private static IpAddressKey parseIpv6(final String value, final int length) {
+    // groups before the "::" are accumulated in head, groups after it in tail
+    long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+    int headGroups = 0, tailGroups = 0;
+    boolean compressed = false;
+
+    int i = 0;
+    if (value.charAt(0) == ':') {
+      if (length < 2 || value.charAt(1) != ':') {
+        return null;
+      }
+      compressed = true;
+      i = 2;
+    }
+
+    while (i < length) {
+      final int groupStart = i;
+      int group = 0;
+      int digits = 0;
+      int hex;
+      while (i < length && (hex = hexDigit(value.charAt(i))) >= 0) {
+        if (++digits > 4) {
+          return null;
+        }
+        group = (group << 4) | hex;
+        i++;
+      }
+
+      if (i < length && value.charAt(i) == '.') {
+        // a trailing dotted quad fills the last two groups
+        final long ipv4 = parseIpv4(value, groupStart, length);
+        if (ipv4 == INVALID) {
+          return null;
+        }
+        for (int shift = 16; shift >= 0; shift -= 16) {
+          final int embeddedGroup = (int) ((ipv4 >>> shift) & 0xffff);
+          if (compressed) {
+            tailHigh = (tailHigh << 16) | (tailLow >>> 48);
+            tailLow = (tailLow << 16) | embeddedGroup;
+            tailGroups++;
+          } else {
+            headHigh = (headHigh << 16) | (headLow >>> 48);
+            headLow = (headLow << 16) | embeddedGroup;
+            headGroups++;
+          }
+        }
+        break;
+      }
+
+      if (digits == 0) {
+        return null;
+      }
+      if (compressed) {
+        tailHigh = (tailHigh << 16) | (tailLow >>> 48);
+        tailLow = (tailLow << 16) | group;
+        tailGroups++;
+      } else {
+        headHigh = (headHigh << 16) | (headLow >>> 48);
+        headLow = (headLow << 16) | group;
+        headGroups++;
+      }
+
+      if (i == length) {
+        break;
+      }
+      if (value.charAt(i++) != ':' || i == length) {
+        return null; // unexpected character or trailing single colon
+      }
+      if (value.charAt(i) == ':') {
+        if (compressed) {
+          return null; // only one "::" is allowed
+        }
+        compressed = true;
+        i++;
+      }
+    }
+
+    final int groups = headGroups + tailGroups;
+    if (compressed ? groups > 7 : groups != 8) {
+      return null;
+    }
+
+    // move the head groups to the most significant bits, the tail groups are already in place
+    final int shift = 16 * (8 - headGroups);
+    final long high;
+    final long low;
+    if (shift >= 128) {
+      high = 0;
+      low = 0;
+    } else if (shift >= 64) {
+      high = headLow << (shift - 64);
+      low = 0;
+    } else if (shift > 0) {
+      high = (headHigh << shift) | (headLow >>> (64 - shift));
+      low = headLow << shift;
+    } else {
+      high = headHigh;
+      low = headLow;
+    }
+    return new IpAddressKey(high | tailHigh, low | tailLow);
+  }
+
+  private static int hexDigit(final char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    if (c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
+    }
+    return -1;
+  }
+}
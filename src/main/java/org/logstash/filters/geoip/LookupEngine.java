@@ -0,0 +1,42 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * How the records of a database are looked up.
+ */
+enum LookupEngine {
+
+  // walk the database tree and decode the record of every looked up address
+  MMDB,
+  // preload the projected records of the whole database into sorted ranges, for the database types with small records
+  RANGE_TABLE;
+
+  static LookupEngine parse(final String value) {
+    try {
+      return LookupEngine.valueOf(value.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("illegal lookup engine value " + value + ". valid values are " +
+              Arrays.toString(LookupEngine.values()));
+    }
+  }
+}
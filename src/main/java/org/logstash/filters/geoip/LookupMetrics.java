@@ -0,0 +1,114 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The outcomes of the lookups of a filter, counted with striped counters so the pipeline workers don't contend on them.
+ * The time spent in the databases is recorded for the lookups that miss every cache, cache hits are only counted.
+ */
+final class LookupMetrics {
+
+  /**
+   * Lookups run in the background, to refill or warm up the caches, are recorded here and never reported.
+   */
+  static final LookupMetrics NONE = new LookupMetrics();
+
+  enum Counter {
+    THREAD_CACHE_HITS(true),
+    PREFIX_CACHE_HITS(true),
+    RESULT_CACHE_HITS(true),
+    NETWORK_CACHE_HITS(true),
+    OFF_HEAP_CACHE_HITS(true),
+    NOT_FOUND_CACHE_HITS(true),
+    RESERVED_ADDRESSES(true),
+    CACHE_MISSES(true),
+    ADDRESS_NOT_FOUND(false),
+    INVALID_INPUT(false),
+    HOSTNAME_RESOLUTION_TIMEOUTS(false),
+    INVALID_CUSTOM_FIELD(false),
+    DATABASE_ERRORS(false),
+    DATABASE_SWAPS(false),
+    DATABASE_SWAP_FAILURES(false);
+
+    private final String metricName = name().toLowerCase(Locale.ROOT);
+    // every lookup ends with exactly one of these outcomes
+    private final boolean lookupOutcome;
+
+    Counter(final boolean lookupOutcome) {
+      this.lookupOutcome = lookupOutcome;
+    }
+  }
+
+  private final LongAdder[] counters = new LongAdder[Counter.values().length];
+  private final LatencyHistogram databaseLookups = new LatencyHistogram();
+
+  LookupMetrics() {
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new LongAdder();
+    }
+  }
+
+  void increment(final Counter counter) {
+    counters[counter.ordinal()].increment();
+  }
+
+  long get(final Counter counter) {
+    return counters[counter.ordinal()].sum();
+  }
+
+  /**
+   * @param nanos the time spent looking an address up in the databases, projecting and converting its record
+   */
+  void recordDatabaseLookup(final long nanos) {
+    databaseLookups.record(nanos);
+  }
+
+  LatencyHistogram databaseLookups() {
+    return databaseLookups;
+  }
+
+  /**
+   * @return the current value of every metric, by metric name
+   */
+  Map<String, Long> snapshot() {
+    final Map<String, Long> snapshot = new LinkedHashMap<>();
+    long lookups = 0;
+    for (Counter counter : Counter.values()) {
+      final long value = get(counter);
+      snapshot.put(counter.metricName, value);
+      if (counter.lookupOutcome) {
+        lookups += value;
+      }
+    }
+    snapshot.put("lookups", lookups);
+    snapshot.put("database_lookup_count", databaseLookups.count());
+    snapshot.put("database_lookup_mean_nanos", databaseLookups.mean());
+    snapshot.put("database_lookup_p50_nanos", databaseLookups.percentile(50));
+    snapshot.put("database_lookup_p90_nanos", databaseLookups.percentile(90));
+    snapshot.put("database_lookup_p99_nanos", databaseLookups.percentile(99));
+    snapshot.put("database_lookup_p999_nanos", databaseLookups.percentile(99.9));
+    snapshot.put("database_lookup_max_nanos", databaseLookups.max());
+    return snapshot;
+  }
+}
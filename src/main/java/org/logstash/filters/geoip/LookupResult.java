@@ -0,0 +1,109 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.Network;
+import org.logstash.ConvertedMap;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The projected geo data of a database record, shared by every address of the record's network.
+ * The per-address {@link Field#IP} value is not part of the result and is added when it is applied to an event.
+ * Results that are cached also carry the geo data already converted to the target field value.
+ */
+final class LookupResult {
+
+  static final LookupResult EMPTY = new LookupResult(Collections.emptyMap(), null, true, null);
+  // the empty result of reserved addresses, which aren't looked up
+  static final LookupResult RESERVED = new LookupResult(Collections.emptyMap(), null, true, null);
+
+  private final Map<Field, Object> geoData;
+  private final Network network;
+  // the network in the 128-bit space of IpAddressKey, null and -1 when unknown
+  private final IpAddressKey networkAddress;
+  private final int networkPrefixLength;
+  private final boolean empty;
+  private final ConvertedMap targetValue;
+
+  private LookupResult(final Map<Field, Object> geoData, final Network network, final boolean empty,
+                       final ConvertedMap targetValue) {
+    this.geoData = geoData;
+    this.network = network;
+    this.networkAddress = network == null ? null : IpAddressKey.of(network.getNetworkAddress());
+    this.networkPrefixLength = network == null ? -1 : NetworkCache.prefixLength(network);
+    this.empty = empty;
+    this.targetValue = targetValue;
+  }
+
+  static LookupResult of(final Map<Field, Object> geoData, final Network network) {
+    return new LookupResult(Collections.unmodifiableMap(geoData), network, false, null);
+  }
+
+  /**
+   * @return a result for a record that exists but can't be used to enrich events
+   */
+  static LookupResult empty(final Network network) {
+    return new LookupResult(Collections.emptyMap(), network, true, null);
+  }
+
+  /**
+   * @param targetValue the geo data converted to the value of the target field, which must not be modified
+   */
+  LookupResult withTargetValue(final ConvertedMap targetValue) {
+    return new LookupResult(geoData, network, empty, targetValue);
+  }
+
+  LookupResult withNetwork(final Network network) {
+    return new LookupResult(geoData, network, empty, targetValue);
+  }
+
+  Map<Field, Object> getGeoData() {
+    return geoData;
+  }
+
+  /**
+   * @return the network the record applies to, or {@code null} if the database didn't report it
+   */
+  Network getNetwork() {
+    return network;
+  }
+
+  /**
+   * @param prefixLength a prefix length in the 128-bit space
+   * @return whether every address of the network of the given prefix length containing the address is in the network
+   *         of this result, which then answers all of them
+   */
+  boolean covers(final IpAddressKey address, final int prefixLength) {
+    return networkPrefixLength >= 0 && networkPrefixLength <= prefixLength
+            && address.isInNetwork(networkAddress, networkPrefixLength);
+  }
+
+  /**
+   * @return the converted target field value, or {@code null} if the result wasn't converted
+   */
+  ConvertedMap getTargetValue() {
+    return targetValue;
+  }
+
+  boolean isEmpty() {
+    return empty;
+  }
+}
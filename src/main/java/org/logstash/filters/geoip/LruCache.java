@@ -0,0 +1,265 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A bounded, thread-safe cache that evicts the least recently used entry once full.
+ * Entries are spread across independently locked segments to keep the pipeline workers
+ * from contending on a single lock.
+ *
+ * With frequency admission (TinyLFU), a new key only evicts the least recently used entry if it was requested
+ * more often recently, so a scan of addresses seen once can't flush the hot entries. Keys can also be grouped,
+ * for example by source network, with a cap on the number of entries of each group.
+ */
+final class LruCache<K, V> {
+
+  private static final int MAX_SEGMENTS = 16;
+  private static final int MIN_SEGMENT_CAPACITY = 64;
+
+  private final Segment<K, V>[] segments;
+  private final int segmentMask;
+  private final int capacity;
+  private final Function<? super K, ?> group;
+
+  LruCache(final int capacity) {
+    this(capacity, false, null, 0);
+  }
+
+  /**
+   * @param frequencyAdmission whether a new key must be more frequent than the entry it would evict to be admitted
+   * @param group the group of a key, or {@code null} if keys are not grouped
+   * @param maxEntriesPerGroup the number of entries of a group above which its new keys are rejected, 0 for no cap
+   */
+  @SuppressWarnings("unchecked")
+  LruCache(final int capacity, final boolean frequencyAdmission, final Function<? super K, ?> group, final int maxEntriesPerGroup) {
+    this.capacity = Math.max(capacity, 0);
+    this.group = maxEntriesPerGroup > 0 ? group : null;
+
+    int segmentCount = 1;
+    while (segmentCount < MAX_SEGMENTS && (long) segmentCount * 2 * MIN_SEGMENT_CAPACITY <= this.capacity) {
+      segmentCount <<= 1;
+    }
+    final int segmentCapacity = (this.capacity + segmentCount - 1) / segmentCount;
+
+    this.segments = new Segment[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      this.segments[i] = new Segment<>(segmentCapacity, frequencyAdmission, this.group, maxEntriesPerGroup);
+    }
+    this.segmentMask = segmentCount - 1;
+  }
+
+  /**
+   * Looks the key up, recording the access in the frequencies of the admission.
+   */
+  V get(final K key) {
+    if (capacity == 0) {
+      return null;
+    }
+    final Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.recordAccess(key);
+      return segment.entries.get(key);
+    }
+  }
+
+  /**
+   * Looks the key up like {@link #get}, without recording the access in the frequencies of the admission, so a lookup
+   * probing several keys records the one it uses with {@link #recordAccess}.
+   */
+  V probe(final K key) {
+    if (capacity == 0) {
+      return null;
+    }
+    final Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      return segment.entries.get(key);
+    }
+  }
+
+  void recordAccess(final K key) {
+    if (capacity == 0) {
+      return;
+    }
+    final Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.recordAccess(key);
+    }
+  }
+
+  void put(final K key, final V value) {
+    if (capacity == 0) {
+      return;
+    }
+    final Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.put(key, value);
+    }
+  }
+
+  void invalidateAll() {
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * @return a snapshot of the entries of the cache, taken without recording an access to them nor changing their order
+   */
+  Map<K, V> snapshot() {
+    final Map<K, V> snapshot = new HashMap<>();
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        snapshot.putAll(segment.entries);
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * @return a snapshot of the keys of the cache
+   */
+  List<K> keys() {
+    final List<K> keys = new ArrayList<>();
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        keys.addAll(segment.entries.keySet());
+      }
+    }
+    return keys;
+  }
+
+  int size() {
+    int size = 0;
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        size += segment.entries.size();
+      }
+    }
+    return size;
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the number of new keys that were added to the cache
+   */
+  long admissions() {
+    long admissions = 0;
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        admissions += segment.admissions;
+      }
+    }
+    return admissions;
+  }
+
+  /**
+   * @return the number of new keys that were not added, by the frequency admission or the cap of their group
+   */
+  long rejections() {
+    long rejections = 0;
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        rejections += segment.rejections;
+      }
+    }
+    return rejections;
+  }
+
+  // the keys of a group share a segment, so each segment counts the entries of its groups
+  private Segment<K, V> segmentFor(final K key) {
+    final int hash = group == null ? key.hashCode() : group.apply(key).hashCode();
+    return segments[(hash ^ (hash >>> 16)) & segmentMask];
+  }
+
+  private static final class Segment<K, V> {
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxEntries;
+    private final FrequencySketch sketch;
+    private final Function<? super K, ?> group;
+    private final int maxEntriesPerGroup;
+    private final Map<Object, Integer> groupSizes;
+    private long admissions;
+    private long rejections;
+
+    Segment(final int maxEntries, final boolean frequencyAdmission, final Function<? super K, ?> group, final int maxEntriesPerGroup) {
+      this.maxEntries = maxEntries;
+      this.sketch = frequencyAdmission ? new FrequencySketch(maxEntries) : null;
+      this.group = group;
+      this.maxEntriesPerGroup = maxEntriesPerGroup;
+      this.groupSizes = group == null ? null : new HashMap<>();
+    }
+
+    void recordAccess(final K key) {
+      if (sketch != null) {
+        sketch.increment(key);
+      }
+    }
+
+    void put(final K key, final V value) {
+      if (entries.containsKey(key)) {
+        entries.put(key, value);
+        return;
+      }
+
+      final Object keyGroup = group == null ? null : group.apply(key);
+      if (keyGroup != null && groupSizes.getOrDefault(keyGroup, 0) >= maxEntriesPerGroup) {
+        rejections++;
+        return;
+      }
+      if (entries.size() >= maxEntries) {
+        final Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+        final K eldestKey = eldest.next().getKey();
+        if (sketch != null && sketch.frequency(key) <= sketch.frequency(eldestKey)) {
+          rejections++;
+          return;
+        }
+        eldest.remove();
+        if (groupSizes != null) {
+          groupSizes.computeIfPresent(group.apply(eldestKey), (ignored, size) -> size > 1 ? size - 1 : null);
+        }
+      }
+
+      entries.put(key, value);
+      if (keyGroup != null) {
+        groupSizes.merge(keyGroup, 1, Integer::sum);
+      }
+      admissions++;
+    }
+
+    void clear() {
+      entries.clear();
+      if (groupSizes != null) {
+        groupSizes.clear();
+      }
+    }
+  }
+}
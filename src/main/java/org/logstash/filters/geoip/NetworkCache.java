@@ -0,0 +1,137 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.Network;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded cache keyed by network prefix, answering every address that falls into a cached network.
+ * Lookups use longest-prefix-match: one hash probe per prefix length currently present in the cache,
+ * starting from the most specific one. Prefixes are expressed in the same 128-bit space as
+ * {@link IpAddressKey}, so IPv4 networks are stored as their IPv4-mapped IPv6 counterpart.
+ */
+final class NetworkCache<V> {
+
+  private static final int MAX_PREFIX_LENGTH = 128;
+
+  private final LruCache<Prefix, V> entries;
+  // bitset of the prefix lengths (0..128) that were ever cached since the last invalidation
+  private final AtomicLongArray prefixLengths = new AtomicLongArray(3);
+
+  NetworkCache(final int capacity) {
+    this.entries = new LruCache<>(capacity);
+  }
+
+  V get(final IpAddressKey address) {
+    if (entries.capacity() == 0) {
+      return null;
+    }
+    for (int word = prefixLengths.length() - 1; word >= 0; word--) {
+      long lengths = prefixLengths.get(word);
+      while (lengths != 0) {
+        final int bit = 63 - Long.numberOfLeadingZeros(lengths);
+        lengths &= ~(1L << bit);
+
+        final V value = entries.get(Prefix.of(address.high(), address.low(), (word << 6) + bit));
+        if (value != null) {
+          return value;
+        }
+      }
+    }
+    return null;
+  }
+
+  void put(final Network network, final V value) {
+    if (entries.capacity() == 0) {
+      return;
+    }
+    final IpAddressKey networkAddress = IpAddressKey.of(network.getNetworkAddress());
+    final int prefixLength = prefixLength(network);
+    if (prefixLength < 0 || prefixLength > MAX_PREFIX_LENGTH) {
+      return;
+    }
+    registerPrefixLength(prefixLength);
+    entries.put(Prefix.of(networkAddress.high(), networkAddress.low(), prefixLength), value);
+  }
+
+  void invalidateAll() {
+    for (int word = 0; word < prefixLengths.length(); word++) {
+      prefixLengths.set(word, 0L);
+    }
+    entries.invalidateAll();
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the network prefix length in the 128-bit address space
+   */
+  static int prefixLength(final Network network) {
+    final boolean ipv4 = network.getNetworkAddress().getAddress().length == 4;
+    return network.getPrefixLength() + (ipv4 ? 96 : 0);
+  }
+
+  private void registerPrefixLength(final int prefixLength) {
+    final int word = prefixLength >>> 6;
+    final long bit = 1L << (prefixLength & 63);
+    long current;
+    while (((current = prefixLengths.get(word)) & bit) == 0) {
+      if (prefixLengths.compareAndSet(word, current, current | bit)) {
+        return;
+      }
+    }
+  }
+
+  private static final class Prefix {
+    private final long high;
+    private final long low;
+    private final int length;
+
+    private Prefix(final long high, final long low, final int length) {
+      this.high = high;
+      this.low = low;
+      this.length = length;
+    }
+
+    static Prefix of(final long high, final long low, final int length) {
+      return new Prefix(high & IpAddressKey.mask(length), low & IpAddressKey.mask(length - 64), length);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Prefix)) {
+        return false;
+      }
+      final Prefix that = (Prefix) o;
+      return high == that.high && low == that.low && length == that.length;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * IpAddressKey.hash(high, low) + length;
+    }
+  }
+}
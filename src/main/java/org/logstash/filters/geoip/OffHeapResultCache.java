@@ -0,0 +1,423 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.Network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A cache of lookup results held in direct memory, bounded by a number of bytes instead of entries, for caches too
+ * large to keep on the heap. Each segment appends its entries to a ring buffer, overwriting the oldest ones once
+ * full, and indexes them in an off-heap table of 8-slot buckets. Keys are the 16 bytes of the address and values
+ * the binary encoding of the projected fields, which is only decoded on a hit.
+ *
+ * Memory is allocated segment by segment as they are first written to. The buffers are dropped once the database
+ * owning the cache is closed, and their memory is then returned by the garbage collector, which frees the direct
+ * memory of unreachable buffers.
+ */
+final class OffHeapResultCache {
+
+  static final long MIN_CAPACITY = 1L << 20;
+
+  private static final int MIN_SEGMENTS = 16;
+  private static final int MAX_SEGMENT_CAPACITY = 1 << 30;
+  // one index slot for every 64 bytes of the segment
+  private static final int SLOT_BYTES_RATIO = 64;
+  private static final int BUCKET_SLOTS = 8;
+  // the address and the length of the value
+  private static final int ENTRY_HEADER_BYTES = 8 + 8 + 4;
+
+  private static final byte NOT_EMPTY = 0;
+  private static final byte EMPTY = 1;
+  private static final byte NO_NETWORK = 0;
+  private static final byte STRING = 0;
+  private static final byte DOUBLE = 1;
+  private static final byte INTEGER = 2;
+  private static final byte LONG = 3;
+  private static final byte TRUE = 4;
+  private static final byte FALSE = 5;
+  private static final byte LOCATION = 6;
+
+  private static final Field[] FIELDS = Field.values();
+
+  private final Segment[] segments;
+  private final int segmentMask;
+  private final long capacity;
+
+  /**
+   * @param capacity the number of bytes of direct memory the cache uses at most, {@code 0} disables the cache
+   */
+  OffHeapResultCache(final long capacity) {
+    this.capacity = Math.max(capacity, 0);
+
+    int segmentCount = this.capacity == 0 ? 0 : MIN_SEGMENTS;
+    while (segmentCount > 0 && this.capacity / segmentCount > MAX_SEGMENT_CAPACITY) {
+      segmentCount <<= 1;
+    }
+    this.segments = new Segment[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      this.segments[i] = new Segment((int) (this.capacity / segmentCount));
+    }
+    this.segmentMask = segmentCount - 1;
+  }
+
+  /**
+   * @return the cached result of the key, or {@code null} if it isn't cached
+   */
+  LookupResult get(final IpAddressKey key) {
+    if (capacity == 0) {
+      return null;
+    }
+    final long hash = hash(key);
+    final Segment segment = segments[(int) (hash >>> 48) & segmentMask];
+    final byte[] value;
+    synchronized (segment) {
+      value = segment.get(key.high(), key.low(), hash);
+    }
+    return value == null ? null : decode(value);
+  }
+
+  /**
+   * Caches the result, unless one of its values can't be encoded. The converted target value is not cached.
+   */
+  void put(final IpAddressKey key, final LookupResult result) {
+    if (capacity == 0) {
+      return;
+    }
+    final byte[] value = encode(result);
+    if (value == null) {
+      return;
+    }
+    final long hash = hash(key);
+    final Segment segment = segments[(int) (hash >>> 48) & segmentMask];
+    synchronized (segment) {
+      segment.put(key.high(), key.low(), hash, value);
+    }
+  }
+
+  // the segment is picked by the 16 high bits, the bucket by the low bits and the index tag by 8 bits in between
+  private static long hash(final IpAddressKey key) {
+    long h = key.high() * 0x9E3779B97F4A7C15L ^ key.low();
+    h ^= (h >>> 33);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+    h *= 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+
+  long capacity() {
+    return capacity;
+  }
+
+  /**
+   * Drops the buffers of every segment, which are no longer counted as allocated, and disables the cache.
+   * Their direct memory is freed once the garbage collector finds them unreachable.
+   */
+  void release() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.release();
+      }
+    }
+  }
+
+  /**
+   * @return the number of bytes of direct memory allocated and not released
+   */
+  long allocatedBytes() {
+    long allocated = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        allocated += segment.data == null ? 0 : segment.capacity;
+      }
+    }
+    return allocated;
+  }
+
+  /**
+   * @return the encoded result, or {@code null} if one of its values has a type that can't be encoded
+   */
+  static byte[] encode(final LookupResult result) {
+    final Map<Field, Object> geoData = result.getGeoData();
+    final byte[][] strings = new byte[geoData.size()][];
+    int size = networkSize(result.getNetwork()) + 2;
+    int i = 0;
+    for (Object value : geoData.values()) {
+      size += 2;
+      if (value instanceof String) {
+        strings[i] = ((String) value).getBytes(StandardCharsets.UTF_8);
+        if (strings[i].length > 0xffff) {
+          return null;
+        }
+        size += 2 + strings[i].length;
+      } else if (value instanceof Double || value instanceof Long) {
+        size += 8;
+      } else if (value instanceof Integer) {
+        size += 4;
+      } else if (value instanceof Map && isLocation((Map<?, ?>) value)) {
+        size += 16;
+      } else if (!(value instanceof Boolean)) {
+        return null;
+      }
+      i++;
+    }
+
+    final ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.put(result.isEmpty() ? EMPTY : NOT_EMPTY);
+    putNetwork(buffer, result.getNetwork());
+    buffer.put((byte) geoData.size());
+    i = 0;
+    for (Map.Entry<Field, Object> entry : geoData.entrySet()) {
+      buffer.put((byte) entry.getKey().ordinal());
+      final Object value = entry.getValue();
+      if (value instanceof String) {
+        buffer.put(STRING).putShort((short) strings[i].length).put(strings[i]);
+      } else if (value instanceof Double) {
+        buffer.put(DOUBLE).putDouble((Double) value);
+      } else if (value instanceof Long) {
+        buffer.put(LONG).putLong((Long) value);
+      } else if (value instanceof Integer) {
+        buffer.put(INTEGER).putInt((Integer) value);
+      } else if (value instanceof Boolean) {
+        buffer.put((Boolean) value ? TRUE : FALSE);
+      } else {
+        final Map<?, ?> location = (Map<?, ?>) value;
+        buffer.put(LOCATION).putDouble((Double) location.get("lat")).putDouble((Double) location.get("lon"));
+      }
+      i++;
+    }
+    return buffer.array();
+  }
+
+  static LookupResult decode(final byte[] value) {
+    final ByteBuffer buffer = ByteBuffer.wrap(value);
+    final boolean empty = buffer.get() == EMPTY;
+    final Network network = getNetwork(buffer);
+    if (empty) {
+      return LookupResult.empty(network);
+    }
+
+    final int size = buffer.get();
+    final Map<Field, Object> geoData = new EnumMap<>(Field.class);
+    for (int i = 0; i < size; i++) {
+      final Field field = FIELDS[buffer.get()];
+      final byte type = buffer.get();
+      switch (type) {
+        case STRING:
+          final int length = buffer.getShort() & 0xffff;
+          geoData.put(field, new String(value, buffer.position(), length, StandardCharsets.UTF_8));
+          buffer.position(buffer.position() + length);
+          break;
+        case DOUBLE:
+          geoData.put(field, buffer.getDouble());
+          break;
+        case LONG:
+          geoData.put(field, buffer.getLong());
+          break;
+        case INTEGER:
+          geoData.put(field, buffer.getInt());
+          break;
+        case TRUE:
+        case FALSE:
+          geoData.put(field, type == TRUE);
+          break;
+        case LOCATION:
+          final Map<String, Object> location = new HashMap<>();
+          location.put("lat", buffer.getDouble());
+          location.put("lon", buffer.getDouble());
+          geoData.put(field, location);
+          break;
+        default:
+          throw new IllegalStateException("Unknown encoded value type " + type);
+      }
+    }
+    return LookupResult.of(geoData, network);
+  }
+
+  private static boolean isLocation(final Map<?, ?> value) {
+    return value.size() == 2 && value.get("lat") instanceof Double && value.get("lon") instanceof Double;
+  }
+
+  private static int networkSize(final Network network) {
+    return network == null ? 1 : 1 + network.getNetworkAddress().getAddress().length + 1;
+  }
+
+  private static void putNetwork(final ByteBuffer buffer, final Network network) {
+    if (network == null) {
+      buffer.put(NO_NETWORK);
+      return;
+    }
+    final byte[] address = network.getNetworkAddress().getAddress();
+    buffer.put((byte) address.length).put(address).put((byte) network.getPrefixLength());
+  }
+
+  private static Network getNetwork(final ByteBuffer buffer) {
+    final int length = buffer.get();
+    if (length == NO_NETWORK) {
+      return null;
+    }
+    final byte[] address = new byte[length];
+    buffer.get(address);
+    final int prefixLength = buffer.get() & 0xff;
+    try {
+      return new Network(InetAddress.getByAddress(address), prefixLength);
+    } catch (UnknownHostException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * A ring buffer of entries and its index. Index slots hold the position of an entry, counted in bytes written to
+   * the segment since it was created, plus one so that 0 is an empty slot, and a tag of 8 bits of the key hash.
+   * An entry is overwritten once the segment has written more than its data capacity after it, its slots are then stale.
+   */
+  private static final class Segment {
+    private final int capacity;
+    private ByteBuffer index;
+    private ByteBuffer data;
+    private int bucketMask;
+    private int dataCapacity;
+    private long writePosition;
+    private boolean released;
+
+    Segment(final int capacity) {
+      this.capacity = capacity;
+    }
+
+    byte[] get(final long high, final long low, final long hash) {
+      if (data == null) {
+        return null;
+      }
+      final int slot = findSlot(high, low, hash);
+      if (slot < 0) {
+        return null;
+      }
+      final int offset = (int) (position(index.getLong(slot)) % dataCapacity);
+      final byte[] value = new byte[data.getInt(offset + 16)];
+      data.position(offset + ENTRY_HEADER_BYTES);
+      data.get(value);
+      return value;
+    }
+
+    void put(final long high, final long low, final long hash, final byte[] value) {
+      if (released) {
+        return;
+      }
+      if (data == null) {
+        allocate();
+      }
+      final int length = ENTRY_HEADER_BYTES + value.length;
+      if (length > dataCapacity) {
+        return;
+      }
+
+      // entries don't wrap around the end of the buffer
+      int offset = (int) (writePosition % dataCapacity);
+      if (offset + length > dataCapacity) {
+        writePosition += dataCapacity - offset;
+        offset = 0;
+      }
+      final long position = writePosition;
+      data.putLong(offset, high);
+      data.putLong(offset + 8, low);
+      data.putInt(offset + 16, value.length);
+      data.position(offset + ENTRY_HEADER_BYTES);
+      data.put(value);
+      writePosition += length;
+
+      int slot = findSlot(high, low, hash);
+      if (slot < 0) {
+        slot = replaceableSlot(hash);
+      }
+      index.putLong(slot, ((position + 1) << 8) | tag(hash));
+    }
+
+    /**
+     * @return the byte offset in the index of the live slot of the key, or -1
+     */
+    private int findSlot(final long high, final long low, final long hash) {
+      final int bucket = ((int) hash & bucketMask) * BUCKET_SLOTS;
+      for (int i = 0; i < BUCKET_SLOTS; i++) {
+        final int slot = (bucket + i) * Long.BYTES;
+        final long entry = index.getLong(slot);
+        if (entry == 0 || (entry & 0xff) != tag(hash) || !isLive(position(entry))) {
+          continue;
+        }
+        final int offset = (int) (position(entry) % dataCapacity);
+        if (data.getLong(offset) == high && data.getLong(offset + 8) == low) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * @return the byte offset in the index of an empty or stale slot of the bucket, or of its oldest entry
+     */
+    private int replaceableSlot(final long hash) {
+      final int bucket = ((int) hash & bucketMask) * BUCKET_SLOTS;
+      int oldest = bucket * Long.BYTES;
+      for (int i = 0; i < BUCKET_SLOTS; i++) {
+        final int slot = (bucket + i) * Long.BYTES;
+        final long entry = index.getLong(slot);
+        if (entry == 0 || !isLive(position(entry))) {
+          return slot;
+        }
+        if (position(entry) < position(index.getLong(oldest))) {
+          oldest = slot;
+        }
+      }
+      return oldest;
+    }
+
+    private boolean isLive(final long position) {
+      return writePosition - position <= dataCapacity;
+    }
+
+    private static long tag(final long hash) {
+      return (hash >>> 40) & 0xff;
+    }
+
+    private static long position(final long entry) {
+      return (entry >>> 8) - 1;
+    }
+
+    void release() {
+      released = true;
+      index = null;
+      data = null;
+      writePosition = 0;
+    }
+
+    private void allocate() {
+      final int slots = Integer.highestOneBit(Math.max(BUCKET_SLOTS, capacity / SLOT_BYTES_RATIO));
+      this.index = ByteBuffer.allocateDirect(slots * Long.BYTES);
+      this.bucketMask = slots / BUCKET_SLOTS - 1;
+      this.dataCapacity = capacity - slots * Long.BYTES;
+      this.data = ByteBuffer.allocateDirect(dataCapacity);
+    }
+  }
+}
@@ -0,0 +1,389 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.DatabaseRecord;
+import com.maxmind.db.DeserializationException;
+import com.maxmind.db.InvalidDatabaseException;
+import com.maxmind.db.InvalidNetworkException;
+import com.maxmind.db.Network;
+import com.maxmind.db.Networks;
+import com.maxmind.db.Reader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.IntBinaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * A preloaded copy of a database, answering lookups with a binary search over sorted primitive arrays
+ * instead of walking the database tree and decoding its records.
+ * The networks of the database are disjoint, each one is stored as its first address and its prefix length,
+ * pointing into a table of the distinct projected results. IPv4 networks are stored as 32-bit values,
+ * IPv6 networks as pairs of 64-bit values.
+ */
+final class RangeTable {
+
+  private static final Logger logger = LogManager.getLogger();
+  // 2002::/16 and 2001::/32, aliasing the IPv4 networks
+  private static final long SIX_TO_FOUR_PREFIX = 0x2002L;
+  private static final long TEREDO_PREFIX = 0x2001_0000L;
+
+  // first addresses with the sign bit flipped, so the signed order of the array is the unsigned order of the addresses
+  private final int[] ipv4Starts;
+  private final byte[] ipv4PrefixLengths;
+  private final int[] ipv4Values;
+  private final long[] ipv6StartsHigh;
+  private final long[] ipv6StartsLow;
+  private final byte[] ipv6PrefixLengths;
+  private final int[] ipv6Values;
+  // the distinct results, without their network
+  private final LookupResult[] values;
+  // whether the addresses aliasing the IPv4 networks in an IPv6 database are left to the database
+  private final boolean ipv4Aliases;
+  // the networks whose records couldn't be decoded, left to the database, in the 128-bit space
+  private final IpAddressKey[] undecodableNetworks;
+  private final int[] undecodablePrefixLengths;
+
+  private RangeTable(final int[] ipv4Starts, final byte[] ipv4PrefixLengths, final int[] ipv4Values,
+                     final long[] ipv6StartsHigh, final long[] ipv6StartsLow, final byte[] ipv6PrefixLengths,
+                     final int[] ipv6Values, final LookupResult[] values, final boolean ipv4Aliases,
+                     final IpAddressKey[] undecodableNetworks, final int[] undecodablePrefixLengths) {
+    this.ipv4Starts = ipv4Starts;
+    this.ipv4PrefixLengths = ipv4PrefixLengths;
+    this.ipv4Values = ipv4Values;
+    this.ipv6StartsHigh = ipv6StartsHigh;
+    this.ipv6StartsLow = ipv6StartsLow;
+    this.ipv6PrefixLengths = ipv6PrefixLengths;
+    this.ipv6Values = ipv6Values;
+    this.values = values;
+    this.ipv4Aliases = ipv4Aliases;
+    this.undecodableNetworks = undecodableNetworks;
+    this.undecodablePrefixLengths = undecodablePrefixLengths;
+  }
+
+  /**
+   * Walks every network of the database once, projecting each record. The records the projected type can't be
+   * decoded from, such as customized ones, are left to the database, which fails their lookups like without the table.
+   *
+   * @param projection builds the result of a record out of its decoded data and its network
+   */
+  static <T> RangeTable load(final File databaseFile, final Class<T> recordType,
+                             final BiFunction<T, Network, LookupResult> projection) throws IOException {
+    final long startNanos = System.nanoTime();
+    final Builder builder = new Builder();
+    try (Reader reader = new Reader(databaseFile)) {
+      // the aliases of the IPv4 subtree would only duplicate its networks, their addresses are looked up in the database
+      builder.withIpv4Aliases(reader.getMetadata().getIpVersion() == 6);
+      final Networks<T> networks = reader.networks(false, recordType);
+      // the position of the networks in the walk, the iterator moves past a record that fails to be decoded
+      final List<Integer> undecodablePositions = new ArrayList<>();
+      for (int position = 0; networks.hasNext(); position++) {
+        final DatabaseRecord<T> record;
+        try {
+          record = networks.next();
+        } catch (DeserializationException e) {
+          undecodablePositions.add(position);
+          continue;
+        }
+        builder.add(record.getNetwork(), projection.apply(record.getData(), record.getNetwork()));
+      }
+      if (!undecodablePositions.isEmpty()) {
+        addUndecodableNetworks(reader, undecodablePositions, builder);
+        logger.warn("The geoip database {} has {} records the range table can't decode, their networks are looked up " +
+                "in the database", databaseFile, undecodablePositions.size());
+      }
+    } catch (InvalidNetworkException e) {
+      throw new InvalidDatabaseException("The database contains an invalid network: " + e.getMessage());
+    }
+    final RangeTable table = builder.build();
+    logger.info("Loaded geoip database {} into a range table of {} IPv4 and {} IPv6 networks, {} distinct results, " +
+                    "~{} bytes of ranges, in {} ms", databaseFile, table.ipv4Starts.length, table.ipv6StartsHigh.length,
+            table.values.length, table.rangesSizeInBytes(), (System.nanoTime() - startNanos) / 1_000_000);
+    return table;
+  }
+
+  /**
+   * Walks the networks again, undecoded, in the same order, to find the networks at the given positions.
+   */
+  private static void addUndecodableNetworks(final Reader reader, final List<Integer> positions, final Builder builder)
+          throws IOException, InvalidNetworkException {
+    final Networks<Map> networks = reader.networks(false, Map.class);
+    int undecodable = 0;
+    for (int position = 0; undecodable < positions.size() && networks.hasNext(); position++) {
+      final DatabaseRecord<Map> record = networks.next();
+      if (positions.get(undecodable) == position) {
+        builder.addUndecodable(record.getNetwork());
+        undecodable++;
+      }
+    }
+  }
+
+  /**
+   * The 6to4, Teredo and IPv4-compatible addresses of an IPv6 database reach the IPv4 networks through aliases of the
+   * database tree, which the table doesn't hold, so the database answers them with the network it reports for them.
+   * The database also answers the networks whose records the table couldn't decode.
+   *
+   * @return whether the table answers the address, the database has to be looked up otherwise
+   */
+  boolean answers(final IpAddressKey address) {
+    for (int i = 0; i < undecodableNetworks.length; i++) {
+      if (address.isInNetwork(undecodableNetworks[i], undecodablePrefixLengths[i])) {
+        return false;
+      }
+    }
+    if (!ipv4Aliases) {
+      return true;
+    }
+    final long high = address.high();
+    return (high >>> 48) != SIX_TO_FOUR_PREFIX
+            && (high >>> 32) != TEREDO_PREFIX
+            && (high != 0L || (address.low() >>> 32) != 0L);
+  }
+
+  /**
+   * @return the result of the network containing the address, or {@code null} if no network contains it
+   */
+  LookupResult get(final IpAddressKey address) {
+    if (address.isIpv4()) {
+      final LookupResult result = getIpv4((int) address.low());
+      if (result != null) {
+        return result;
+      }
+    }
+    return getIpv6(address.high(), address.low());
+  }
+
+  int size() {
+    return ipv4Starts.length + ipv6StartsHigh.length;
+  }
+
+  private LookupResult getIpv4(final int address) {
+    int index = Arrays.binarySearch(ipv4Starts, address ^ Integer.MIN_VALUE);
+    if (index < 0) {
+      index = -index - 2; // the last network starting before the address
+    }
+    if (index < 0) {
+      return null;
+    }
+    final int start = ipv4Starts[index] ^ Integer.MIN_VALUE;
+    final int prefixLength = ipv4PrefixLengths[index];
+    final int mask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+    if ((address & mask) != start) {
+      return null;
+    }
+    return values[ipv4Values[index]].withNetwork(network(IpAddressKey.ofIpv4(start), prefixLength));
+  }
+
+  private LookupResult getIpv6(final long high, final long low) {
+    // the last network starting at or before the address
+    int from = 0;
+    int to = ipv6StartsHigh.length - 1;
+    int index = -1;
+    while (from <= to) {
+      final int middle = (from + to) >>> 1;
+      int comparison = Long.compareUnsigned(ipv6StartsHigh[middle], high);
+      if (comparison == 0) {
+        comparison = Long.compareUnsigned(ipv6StartsLow[middle], low);
+      }
+      if (comparison <= 0) {
+        index = middle;
+        from = middle + 1;
+      } else {
+        to = middle - 1;
+      }
+    }
+    if (index < 0) {
+      return null;
+    }
+    final int prefixLength = ipv6PrefixLengths[index] & 0xff;
+    if ((high & IpAddressKey.mask(prefixLength)) != ipv6StartsHigh[index] || (low & IpAddressKey.mask(prefixLength - 64)) != ipv6StartsLow[index]) {
+      return null;
+    }
+    return values[ipv6Values[index]].withNetwork(
+            network(new IpAddressKey(ipv6StartsHigh[index], ipv6StartsLow[index]), prefixLength));
+  }
+
+  private long rangesSizeInBytes() {
+    return (long) ipv4Starts.length * (Integer.BYTES + Byte.BYTES + Integer.BYTES)
+            + (long) ipv6StartsHigh.length * (Long.BYTES + Long.BYTES + Byte.BYTES + Integer.BYTES);
+  }
+
+  private static Network network(final IpAddressKey networkAddress, final int prefixLength) {
+    return new Network(networkAddress.toInetAddress(), prefixLength);
+  }
+
+  /**
+   * Accumulates disjoint networks, in any order.
+   */
+  static final class Builder {
+    private final Map<List<Object>, Integer> valueIndexes = new HashMap<>();
+    private LookupResult[] values = new LookupResult[16];
+    private int valueCount;
+
+    private int[] ipv4Starts = new int[1024];
+    private byte[] ipv4PrefixLengths = new byte[1024];
+    private int[] ipv4Values = new int[1024];
+    private int ipv4Count;
+
+    private long[] ipv6StartsHigh = new long[1024];
+    private long[] ipv6StartsLow = new long[1024];
+    private byte[] ipv6PrefixLengths = new byte[1024];
+    private int[] ipv6Values = new int[1024];
+    private int ipv6Count;
+
+    private boolean ipv4Aliases;
+    private final List<IpAddressKey> undecodableNetworks = new ArrayList<>();
+    private final List<Integer> undecodablePrefixLengths = new ArrayList<>();
+
+    Builder withIpv4Aliases(final boolean ipv4Aliases) {
+      this.ipv4Aliases = ipv4Aliases;
+      return this;
+    }
+
+    /**
+     * @param network a network whose record couldn't be decoded, which the table leaves to the database
+     */
+    Builder addUndecodable(final Network network) {
+      undecodableNetworks.add(IpAddressKey.of(network.getNetworkAddress()));
+      undecodablePrefixLengths.add(NetworkCache.prefixLength(network));
+      return this;
+    }
+
+    Builder add(final Network network, final LookupResult result) {
+      final int value = valueIndex(result);
+      final IpAddressKey networkAddress = IpAddressKey.of(network.getNetworkAddress());
+      final int prefixLength = NetworkCache.prefixLength(network);
+      if (networkAddress.isIpv4() && prefixLength >= 96) {
+        if (ipv4Count == ipv4Starts.length) {
+          final int capacity = ipv4Count * 2;
+          ipv4Starts = Arrays.copyOf(ipv4Starts, capacity);
+          ipv4PrefixLengths = Arrays.copyOf(ipv4PrefixLengths, capacity);
+          ipv4Values = Arrays.copyOf(ipv4Values, capacity);
+        }
+        ipv4Starts[ipv4Count] = ((int) networkAddress.low()) ^ Integer.MIN_VALUE;
+        ipv4PrefixLengths[ipv4Count] = (byte) (prefixLength - 96);
+        ipv4Values[ipv4Count] = value;
+        ipv4Count++;
+      } else {
+        if (ipv6Count == ipv6StartsHigh.length) {
+          final int capacity = ipv6Count * 2;
+          ipv6StartsHigh = Arrays.copyOf(ipv6StartsHigh, capacity);
+          ipv6StartsLow = Arrays.copyOf(ipv6StartsLow, capacity);
+          ipv6PrefixLengths = Arrays.copyOf(ipv6PrefixLengths, capacity);
+          ipv6Values = Arrays.copyOf(ipv6Values, capacity);
+        }
+        ipv6StartsHigh[ipv6Count] = networkAddress.high();
+        ipv6StartsLow[ipv6Count] = networkAddress.low();
+        ipv6PrefixLengths[ipv6Count] = (byte) prefixLength;
+        ipv6Values[ipv6Count] = value;
+        ipv6Count++;
+      }
+      return this;
+    }
+
+    RangeTable build() {
+      // the networks of a database are iterated in address order, sorting is only needed for other sources
+      int[] ipv4Order = IntStream.range(0, ipv4Count).toArray();
+      if (!isSorted(ipv4Order, this::compareIpv4)) {
+        ipv4Order = sort(ipv4Order, this::compareIpv4);
+      }
+      int[] ipv6Order = IntStream.range(0, ipv6Count).toArray();
+      if (!isSorted(ipv6Order, this::compareIpv6)) {
+        ipv6Order = sort(ipv6Order, this::compareIpv6);
+      }
+
+      return new RangeTable(
+              permute(ipv4Starts, ipv4Order), permute(ipv4PrefixLengths, ipv4Order), permute(ipv4Values, ipv4Order),
+              permute(ipv6StartsHigh, ipv6Order), permute(ipv6StartsLow, ipv6Order),
+              permute(ipv6PrefixLengths, ipv6Order), permute(ipv6Values, ipv6Order),
+              Arrays.copyOf(values, valueCount), ipv4Aliases, undecodableNetworks.toArray(new IpAddressKey[0]),
+              undecodablePrefixLengths.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private int valueIndex(final LookupResult result) {
+      // results are stored without their network, so identical records of different networks share one entry
+      final LookupResult value = result.withNetwork(null);
+      return valueIndexes.computeIfAbsent(List.of(value.getGeoData(), value.isEmpty()), (key) -> {
+        if (valueCount == values.length) {
+          values = Arrays.copyOf(values, valueCount * 2);
+        }
+        values[valueCount] = value;
+        return valueCount++;
+      });
+    }
+
+    private int compareIpv4(final int a, final int b) {
+      return Integer.compare(ipv4Starts[a], ipv4Starts[b]);
+    }
+
+    private int compareIpv6(final int a, final int b) {
+      final int comparison = Long.compareUnsigned(ipv6StartsHigh[a], ipv6StartsHigh[b]);
+      return comparison != 0 ? comparison : Long.compareUnsigned(ipv6StartsLow[a], ipv6StartsLow[b]);
+    }
+
+    private static boolean isSorted(final int[] order, final IntBinaryOperator comparator) {
+      for (int i = 1; i < order.length; i++) {
+        if (comparator.applyAsInt(order[i - 1], order[i]) > 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static int[] sort(final int[] order, final IntBinaryOperator comparator) {
+      return Arrays.stream(order).boxed()
+              .sorted(comparator::applyAsInt)
+              .mapToInt(Integer::intValue)
+              .toArray();
+    }
+
+    private static int[] permute(final int[] array, final int[] order) {
+      final int[] permuted = new int[order.length];
+      for (int i = 0; i < order.length; i++) {
+        permuted[i] = array[order[i]];
+      }
+      return permuted;
+    }
+
+    private static long[] permute(final long[] array, final int[] order) {
+      final long[] permuted = new long[order.length];
+      for (int i = 0; i < order.length; i++) {
+        permuted[i] = array[order[i]];
+      }
+      return permuted;
+    }
+
+    private static byte[] permute(final byte[] array, final int[] order) {
+      final byte[] permuted = new byte[order.length];
+      for (int i = 0; i < order.length; i++) {
+        permuted[i] = array[order[i]];
+      }
+      return permuted;
+    }
+  }
+}
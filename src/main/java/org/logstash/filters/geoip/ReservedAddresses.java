@@ -0,0 +1,109 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.Network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Classifies the addresses of the special-purpose ranges (private, loopback, link-local, shared CGNAT,
+ * multicast and reserved), which no geoip database covers. The documentation ranges are left out, test and custom
+ * databases have records for them.
+ */
+final class ReservedAddresses {
+
+  // IPv4 networks and their prefix length
+  private static final int[][] IPV4_RANGES = {
+          {ipv4(0, 0, 0, 0), 8},
+          {ipv4(10, 0, 0, 0), 8},
+          {ipv4(100, 64, 0, 0), 10},
+          {ipv4(127, 0, 0, 0), 8},
+          {ipv4(169, 254, 0, 0), 16},
+          {ipv4(172, 16, 0, 0), 12},
+          {ipv4(192, 0, 0, 0), 24},
+          {ipv4(192, 168, 0, 0), 16},
+          {ipv4(198, 18, 0, 0), 15},
+          {ipv4(224, 0, 0, 0), 4},
+          {ipv4(240, 0, 0, 0), 4},
+  };
+
+  // the IPv6 networks matched by isReserved
+  private static final String[][] IPV6_RANGES = {
+          {"::", "127"},
+          {"fc00::", "7"},
+          {"fe80::", "10"},
+          {"ff00::", "8"},
+          {"100::", "64"},
+  };
+
+  private ReservedAddresses() { /* empty */ }
+
+  /**
+   * @return every reserved network, the IPv4 ones first
+   */
+  static List<Network> networks() {
+    final List<Network> networks = new ArrayList<>(IPV4_RANGES.length + IPV6_RANGES.length);
+    try {
+      for (int[] range : IPV4_RANGES) {
+        final int ipv4 = range[0];
+        networks.add(new Network(InetAddress.getByAddress(new byte[]{
+                (byte) (ipv4 >>> 24), (byte) (ipv4 >>> 16), (byte) (ipv4 >>> 8), (byte) ipv4}), range[1]));
+      }
+      for (String[] range : IPV6_RANGES) {
+        networks.add(new Network(IpAddressParser.parse(range[0]).toInetAddress(), Integer.parseInt(range[1])));
+      }
+    } catch (UnknownHostException e) {
+      throw new IllegalStateException(e);
+    }
+    return Collections.unmodifiableList(networks);
+  }
+
+  static boolean isReserved(final IpAddressKey address) {
+    if (address.isIpv4()) {
+      final int ipv4 = (int) address.low();
+      for (int[] range : IPV4_RANGES) {
+        final int mask = -1 << (32 - range[1]);
+        if ((ipv4 & mask) == range[0]) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    final long high = address.high();
+    final long low = address.low();
+    if (high == 0L && (low == 0L || low == 1L)) {
+      return true; // unspecified and loopback
+    }
+    final int firstGroup = (int) (high >>> 48);
+    return (firstGroup & 0xfe00) == 0xfc00            // fc00::/7 unique local
+            || (firstGroup & 0xffc0) == 0xfe80        // fe80::/10 link-local
+            || (firstGroup & 0xff00) == 0xff00        // ff00::/8 multicast
+            || high == 0x0100_0000_0000_0000L;        // 100::/64 discard-only
+  }
+
+  private static int ipv4(final int a, final int b, final int c, final int d) {
+    return (a << 24) | (b << 16) | (c << 8) | d;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.geoip;
+
+import java.util.Arrays;
+
+/**
+ * A small direct-mapped cache per thread, in front of the caches shared by the pipeline workers.
+ * Each thread only reads and writes its own slots, so repeated keys are answered without locking or
+ * writing to memory shared with the other threads. A key evicts the key mapped to the same slot.
+ *
+ * Entries belong to a generation, the slots of a thread are cleared the first time it reads them with another one,
+ * so bumping the generation when the database is swapped invalidates every thread's entries.
+ */
+final class ThreadLocalCache<K, V> {
+
+  static final int MAX_CAPACITY = 1 << 16;
+
+  private final int mask;
+  private final ThreadLocal<Slots> slots;
+
+  /**
+   * @param capacity the number of entries per thread, up to {@link #MAX_CAPACITY} and rounded up to a power of two,
+   *                 {@code 0} disables the cache
+   */
+  ThreadLocalCache(final int capacity) {
+    final int slotCount = capacity <= 0 ? 0 : Integer.highestOneBit(Math.min(capacity, MAX_CAPACITY) * 2 - 1);
+    this.mask = slotCount - 1;
+    this.slots = slotCount == 0 ? null : ThreadLocal.withInitial(() -> new Slots(slotCount));
+  }
+
+  int capacity() {
+    return mask + 1;
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(final K key, final long generation) {
+    if (slots == null) {
+      return null;
+    }
+    final Slots local = slots.get();
+    if (local.generation != generation) {
+      local.clear(generation);
+      return null;
+    }
+    final int index = index(key);
+    return key.equals(local.keys[index]) ? (V) local.values[index] : null;
+  }
+
+  void put(final K key, final V value, final long generation) {
+    if (slots == null) {
+      return;
+    }
+    final Slots local = slots.get();
+    if (local.generation != generation) {
+      local.clear(generation);
+    }
+    final int index = index(key);
+    local.keys[index] = key;
+    local.values[index] = value;
+  }
+
+  private int index(final K key) {
+    final int hash = key.hashCode();
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  private static final class Slots {
+    private final Object[] keys;
+    private final Object[] values;
+    private long generation;
+
+    private Slots(final int slotCount) {
+      this.keys = new Object[slotCount];
+      this.values = new Object[slotCount];
+    }
+
+    private void clear(final long generation) {
+      Arrays.fill(keys, null);
+      Arrays.fill(values, null);
+      this.generation = generation;
+    }
+  }
+}
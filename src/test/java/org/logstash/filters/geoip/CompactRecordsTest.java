@@ -0,0 +1,92 @@
+package org.logstash.filters.geoip;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CompactRecordsTest {
+
+    private static final List<String> ENGLISH = List.of("en");
+
+    @Test
+    void givenLocationFieldsThenOnlyTheLocationIsDecoded() {
+        assertEquals(CompactRecords.LocationRecord.class,
+                CompactRecords.recordType(Database.CITY, EnumSet.of(Field.IP, Field.LOCATION, Field.TIMEZONE), ENGLISH));
+        assertEquals(CompactRecords.LocationRecord.class,
+                CompactRecords.recordType(Database.ENTERPRISE, EnumSet.of(Field.LATITUDE, Field.LONGITUDE), ENGLISH));
+    }
+
+    @Test
+    void givenCountryAndLocationFieldsThenOnlyTheCountryAndLocationAreDecoded() {
+        assertEquals(CompactRecords.CountryRecord.class,
+                CompactRecords.recordType(Database.CITY, EnumSet.of(Field.COUNTRY_CODE2, Field.LOCATION), ENGLISH));
+        assertEquals(CompactRecords.CountryRecord.class,
+                CompactRecords.recordType(Database.ENTERPRISE, EnumSet.of(Field.COUNTRY_CODE2, Field.LOCATION), ENGLISH));
+    }
+
+    @Test
+    void givenTraitsFieldsThenOnlyTheEnterpriseTraitsAreDecoded() {
+        assertEquals(CompactRecords.TraitsRecord.class,
+                CompactRecords.recordType(Database.ENTERPRISE, EnumSet.of(Field.AUTONOMOUS_SYSTEM_NUMBER, Field.NETWORK), ENGLISH));
+        assertEquals(CompactRecords.EnterpriseRecord.class,
+                CompactRecords.recordType(Database.ENTERPRISE, EnumSet.of(Field.AUTONOMOUS_SYSTEM_NUMBER, Field.CITY_NAME), ENGLISH));
+    }
+
+    @Test
+    void givenDefaultFieldsThenEveryProjectedRecordIsDecoded() {
+        assertEquals(CompactRecords.CityRecord.class,
+                CompactRecords.recordType(Database.CITY, Database.CITY.getDefaultFields(), ENGLISH));
+        assertEquals(CompactRecords.EnterpriseRecord.class,
+                CompactRecords.recordType(Database.ENTERPRISE, Database.ENTERPRISE.getDefaultFields(), ENGLISH));
+    }
+
+    @Test
+    void givenOtherDatabasesThenNoCompactRecordIsUsed() {
+        assertNull(CompactRecords.recordType(Database.COUNTRY, Database.COUNTRY.getDefaultFields(), ENGLISH));
+        assertNull(CompactRecords.recordType(Database.ASN, Database.ASN.getDefaultFields(), ENGLISH));
+    }
+
+    @Test
+    void givenMissingRecordsThenEmptyRecordsAreReturned() {
+        final CompactRecords.Model model = new CompactRecords.LocationRecord(null);
+        assertNull(model.getCountry().getIsoCode());
+        assertNull(model.getLocation().getLatitude());
+        assertNull(model.getMostSpecificSubdivision().getName(ENGLISH));
+        assertFalse(model.getTraits().isAnonymous());
+    }
+
+    @Test
+    void givenOtherLocalesThenLocalizedNamesAreDecoded() {
+        final List<String> locales = List.of("fr", "en");
+        assertEquals(CompactRecords.LocalizedCityRecord.class,
+                CompactRecords.recordType(Database.CITY, Database.CITY.getDefaultFields(), locales));
+        assertEquals(CompactRecords.LocalizedCountryRecord.class,
+                CompactRecords.recordType(Database.ENTERPRISE, EnumSet.of(Field.COUNTRY_NAME), locales));
+        // no names are projected
+        assertEquals(CompactRecords.CountryRecord.class,
+                CompactRecords.recordType(Database.CITY, EnumSet.of(Field.COUNTRY_CODE2, Field.LOCATION), locales));
+    }
+
+    @Test
+    void givenNamesThenTheFirstLocaleWithANameWins() {
+        final CompactRecords.Place place = new CompactRecords.LocalizedPlace("US", null,
+                new CompactRecords.LocalizedNames(null, "United States", null, null, null, null, null, null));
+        assertEquals("United States", place.getName(List.of("fr", "en")));
+        assertNull(place.getName(List.of("fr")));
+        assertNull(new CompactRecords.Place("US", null, new CompactRecords.EnglishNames("United States")).getName(List.of("de")));
+    }
+
+    @Test
+    void parseLocalesShouldDefaultToEnglishAndRejectUnknownLocales() {
+        assertEquals(ENGLISH, CompactRecords.parseLocales(null));
+        assertEquals(ENGLISH, CompactRecords.parseLocales(List.of()));
+        assertEquals(List.of("pt-BR", "en"), CompactRecords.parseLocales(List.of("pt-BR", "en", "pt-BR")));
+        assertThrows(IllegalArgumentException.class, () -> CompactRecords.parseLocales(List.of("en-US")));
+    }
+}
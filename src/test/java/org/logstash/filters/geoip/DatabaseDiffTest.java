@@ -0,0 +1,64 @@
+package org.logstash.filters.geoip;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DatabaseDiffTest {
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE / 2;
+
+    @Test
+    void givenSameDatabaseThenNoNetworkChanged() throws IOException {
+        final DatabaseDiff diff = DatabaseDiff.compare(MaxMindDatabases.GEOIP2_CITY.toFile(), MaxMindDatabases.GEOIP2_CITY.toFile(),
+                System.nanoTime() + NO_DEADLINE);
+
+        assertNotNull(diff);
+        assertEquals(0, diff.changedNetworks());
+        assertTrue(diff.unchangedNetworks() > 0);
+        assertTrue(diff.isUnchanged(IpAddressParser.parse("216.160.83.58"), 128));
+        assertTrue(diff.isUnchanged(IpAddressParser.parse("::"), 0));
+    }
+
+    @Test
+    void givenDifferentRecordsThenTheirNetworksChanged() throws IOException {
+        final DatabaseDiff diff = DatabaseDiff.compare(MaxMindDatabases.GEOIP2_CITY.toFile(), MaxMindDatabases.GEOIP2_COUNTRY.toFile(),
+                System.nanoTime() + NO_DEADLINE);
+
+        assertNotNull(diff);
+        assertTrue(diff.changedNetworks() > 0);
+        // City records hold a city, Country records don't
+        assertFalse(diff.isUnchanged(IpAddressParser.parse("216.160.83.58"), 128));
+        assertFalse(diff.isUnchanged(IpAddressParser.parse("::"), 0));
+    }
+
+    @Test
+    void givenAliasedNetworksThenTheyChangedWithTheirIpv4Network() throws IOException {
+        final DatabaseDiff same = DatabaseDiff.compare(MaxMindDatabases.GEOIP2_CITY.toFile(), MaxMindDatabases.GEOIP2_CITY.toFile(),
+                System.nanoTime() + NO_DEADLINE);
+        final DatabaseDiff diff = DatabaseDiff.compare(MaxMindDatabases.GEOIP2_CITY.toFile(), MaxMindDatabases.GEOIP2_COUNTRY.toFile(),
+                System.nanoTime() + NO_DEADLINE);
+
+        assertNotNull(same);
+        assertNotNull(diff);
+        // 6to4 and Teredo addresses of 216.160.83.58, and their networks
+        for (String alias : new String[]{"2002:d8a0:533a::", "2001:0:d8a0:533a::", "::216.160.83.58"}) {
+            assertTrue(same.isUnchanged(IpAddressParser.parse(alias), 128), alias);
+            assertFalse(diff.isUnchanged(IpAddressParser.parse(alias), 128), alias);
+        }
+        assertFalse(diff.isUnchanged(IpAddressParser.parse("2002:d8a0:5338::"), 45));
+        assertFalse(diff.isUnchanged(IpAddressParser.parse("2001:0:d8a0:5338::"), 61));
+    }
+
+    @Test
+    void givenExpiredDeadlineThenDatabasesAreNotCompared() throws IOException {
+        assertNull(DatabaseDiff.compare(MaxMindDatabases.GEOIP2_CITY.toFile(), MaxMindDatabases.GEOIP2_COUNTRY.toFile(),
+                System.nanoTime() - 1));
+    }
+}
@@ -0,0 +1,108 @@
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.ClosedDatabaseException;
+import com.maxmind.geoip2.model.AnonymousIpResponse;
+import com.maxmind.geoip2.model.CountryResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DatabaseRegistryTest {
+
+    private static final List<String> ENGLISH = List.of("en");
+    private static final CacheAdmission LRU = CacheAdmission.LRU;
+
+    private final DatabaseRegistry registry = DatabaseRegistry.getInstance();
+
+    @Test
+    void givenSameDatabaseFileThenReaderAndCachesAreShared() throws IOException {
+        try (DatabaseRegistry.Handle first = registry.acquire(MaxMindDatabases.GEOIP2_CITY.toFile(), 1000, DatabaseFileMode.MMAP);
+             DatabaseRegistry.Handle second = registry.acquire(MaxMindDatabases.GEOIP2_CITY.toFile(), 10, DatabaseFileMode.MMAP)) {
+            assertSame(first.getReader(), second.getReader());
+            assertSame(first.getCaches(EnumSet.of(Field.CITY_NAME), ENGLISH, true, LRU, 0, 0), second.getCaches(EnumSet.of(Field.CITY_NAME), ENGLISH, true, LRU, 0, 0));
+            assertNotSame(first.getCaches(EnumSet.of(Field.CITY_NAME), ENGLISH, true, LRU, 0, 0), second.getCaches(EnumSet.of(Field.LOCATION), ENGLISH, true, LRU, 0, 0));
+            assertNotSame(first.getCaches(EnumSet.of(Field.CITY_NAME), ENGLISH, true, LRU, 0, 0), second.getCaches(EnumSet.of(Field.CITY_NAME), ENGLISH, false, LRU, 0, 0));
+            assertNotSame(first.getCaches(EnumSet.of(Field.CITY_NAME), ENGLISH, true, LRU, 0, 0), second.getCaches(EnumSet.of(Field.CITY_NAME), List.of("fr", "en"), true, LRU, 0, 0));
+        }
+    }
+
+    @Test
+    void givenDifferentDatabaseFilesThenReadersAreNotShared() throws IOException {
+        try (DatabaseRegistry.Handle city = registry.acquire(MaxMindDatabases.GEOIP2_CITY.toFile(), 1000, DatabaseFileMode.MMAP);
+             DatabaseRegistry.Handle asn = registry.acquire(MaxMindDatabases.GEOLITE2_ASN.toFile(), 1000, DatabaseFileMode.MMAP)) {
+            assertNotSame(city.getReader(), asn.getReader());
+        }
+    }
+
+    @Test
+    void givenSharedDatabaseThenReaderIsClosedOnlyWhenTheLastHandleIsReleased() throws IOException {
+        final DatabaseRegistry.Handle first = registry.acquire(MaxMindDatabases.GEOIP2_COUNTRY.toFile(), 1000, DatabaseFileMode.MMAP);
+        final DatabaseRegistry.Handle second = registry.acquire(MaxMindDatabases.GEOIP2_COUNTRY.toFile(), 1000, DatabaseFileMode.MMAP);
+        final InetAddress address = InetAddress.getByName("216.160.83.58");
+
+        first.close();
+        // releasing the same handle twice must not release the reference of another one
+        first.close();
+        assertDoesNotThrow(() -> second.getReader().get(address, CountryResponse.class));
+
+        second.close();
+        assertThrows(ClosedDatabaseException.class, () -> second.getReader().get(address, CountryResponse.class));
+    }
+
+    @Test
+    void givenReleasedDatabaseThenItsOffHeapCachesAreReleased() throws IOException {
+        final DatabaseRegistry.Handle handle = registry.acquire(MaxMindDatabases.GEOLITE2_ASN.toFile(), 1000, DatabaseFileMode.MMAP);
+        final OffHeapResultCache offHeap = handle.getCaches(EnumSet.noneOf(Field.class), ENGLISH, true, LRU, 0,
+                OffHeapResultCache.MIN_CAPACITY).offHeap();
+        offHeap.put(IpAddressKey.ofIpv4(1), LookupResult.EMPTY);
+        assertTrue(offHeap.allocatedBytes() > 0);
+
+        handle.close();
+        assertEquals(0, offHeap.allocatedBytes());
+    }
+
+    @Test
+    void givenReleasedDatabaseThenItIsOpenedAgainOnNextAcquire() throws IOException {
+        final DatabaseRegistry.Handle first = registry.acquire(MaxMindDatabases.GEOIP2_ISP.toFile(), 1000, DatabaseFileMode.MMAP);
+        first.close();
+
+        try (DatabaseRegistry.Handle second = registry.acquire(MaxMindDatabases.GEOIP2_ISP.toFile(), 1000, DatabaseFileMode.MMAP)) {
+            assertNotSame(first.getReader(), second.getReader());
+        }
+    }
+
+    @Test
+    void givenFileModeThenTouchedBytesAreReported() throws IOException {
+        final long size = MaxMindDatabases.GEOIP2_ANONYMOUS_IP.toFile().length();
+        try (DatabaseRegistry.Handle heap = registry.acquire(MaxMindDatabases.GEOIP2_ANONYMOUS_IP.toFile(), 1000, DatabaseFileMode.HEAP)) {
+            assertEquals(DatabaseFileMode.HEAP, heap.getFileMode());
+            assertEquals(size, heap.getTouchedBytes());
+            assertDoesNotThrow(() -> heap.getReader().get(InetAddress.getByName("1.2.0.1"), AnonymousIpResponse.class));
+        }
+        try (DatabaseRegistry.Handle touched = registry.acquire(MaxMindDatabases.GEOIP2_ANONYMOUS_IP.toFile(), 1000, DatabaseFileMode.MMAP_TOUCH)) {
+            assertEquals(size, touched.getTouchedBytes());
+        }
+        try (DatabaseRegistry.Handle mapped = registry.acquire(MaxMindDatabases.GEOIP2_ANONYMOUS_IP.toFile(), 1000, DatabaseFileMode.MMAP)) {
+            assertEquals(0L, mapped.getTouchedBytes());
+        }
+    }
+
+    @Test
+    void givenDatabaseAlreadyOpenedThenItsFileModeIsKept() throws IOException {
+        try (DatabaseRegistry.Handle first = registry.acquire(MaxMindDatabases.GEOIP2_DOMAIN.toFile(), 1000, DatabaseFileMode.HEAP);
+             DatabaseRegistry.Handle second = registry.acquire(MaxMindDatabases.GEOIP2_DOMAIN.toFile(), 1000, DatabaseFileMode.MMAP)) {
+            assertSame(first.getReader(), second.getReader());
+            assertEquals(DatabaseFileMode.HEAP, second.getFileMode());
+        }
+    }
+}
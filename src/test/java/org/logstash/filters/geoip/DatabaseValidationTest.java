@@ -0,0 +1,87 @@
+package org.logstash.filters.geoip;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DatabaseValidationTest {
+
+    @Test
+    void givenValidDatabaseThenReportDescribesIt() {
+        final DatabaseValidation validation = DatabaseValidation.validate(MaxMindDatabases.GEOIP2_CITY.toFile(), 100, false);
+
+        assertTrue(validation.isValid(), validation.toString());
+        assertNull(validation.getFailure());
+        assertEquals("GeoIP2-City", validation.getDatabaseType());
+        assertEquals(6, validation.getIpVersion());
+        assertTrue(validation.getNodeCount() > 0);
+        assertTrue(validation.getBuildEpoch() > 0);
+        assertEquals(100, validation.getSampledRecords());
+        assertNull(validation.getChecksum());
+    }
+
+    @Test
+    void givenChecksumThenSameFileHasSameChecksum() {
+        final DatabaseValidation first = DatabaseValidation.validate(MaxMindDatabases.GEOLITE2_ASN.toFile(), 10, true);
+        final DatabaseValidation second = DatabaseValidation.validate(MaxMindDatabases.GEOLITE2_ASN.toFile(), 10, true);
+        final DatabaseValidation other = DatabaseValidation.validate(MaxMindDatabases.GEOIP2_ISP.toFile(), 10, true);
+
+        assertNotNull(first.getChecksum());
+        assertEquals(64, first.getChecksum().length());
+        assertEquals(first.getChecksum(), second.getChecksum());
+        assertFalse(first.getChecksum().equals(other.getChecksum()));
+    }
+
+    @Test
+    void givenTruncatedDatabaseThenItIsInvalid() throws IOException {
+        final byte[] content = Files.readAllBytes(MaxMindDatabases.GEOIP2_CITY);
+        final Path truncated = Files.createTempFile("truncated", ".mmdb");
+        try {
+            Files.write(truncated, Arrays.copyOf(content, content.length / 2));
+
+            final DatabaseValidation validation = DatabaseValidation.validate(truncated.toFile(), 100, true);
+            assertFalse(validation.isValid());
+            assertNotNull(validation.getFailure());
+            assertNull(validation.getChecksum());
+        } finally {
+            Files.deleteIfExists(truncated);
+        }
+    }
+
+    @Test
+    void givenCorruptedSearchTreeThenItIsInvalid() throws IOException {
+        final DatabaseValidation valid = DatabaseValidation.validate(MaxMindDatabases.GEOIP2_CITY.toFile(), 0, false);
+        final byte[] content = Files.readAllBytes(MaxMindDatabases.GEOIP2_CITY);
+        // the first nodes point far past the end of the file
+        Arrays.fill(content, 0, (int) Math.min(valid.getNodeCount(), 64) * 8, (byte) 0xff);
+        final Path corrupted = Files.createTempFile("corrupted", ".mmdb");
+        try {
+            Files.write(corrupted, content);
+
+            final DatabaseValidation validation = DatabaseValidation.validate(corrupted.toFile(), 100, false);
+            assertFalse(validation.isValid());
+            assertEquals("GeoIP2-City", validation.getDatabaseType());
+        } finally {
+            Files.deleteIfExists(corrupted);
+        }
+    }
+
+    @Test
+    void givenMissingFileThenItIsInvalid() {
+        final DatabaseValidation validation = DatabaseValidation.validate(new File("/not/a/database.mmdb"), 100, false);
+
+        assertFalse(validation.isValid());
+        assertNull(validation.getDatabaseType());
+        assertFalse(GeoIPFilter.isDatabaseValid("/not/a/database.mmdb"));
+    }
+}
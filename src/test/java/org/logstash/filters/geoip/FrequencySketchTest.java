@@ -0,0 +1,38 @@
+package org.logstash.filters.geoip;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrequencySketchTest {
+
+    @Test
+    void givenIncrementedKeyThenItsFrequencyIsCountedUpTo15() {
+        final FrequencySketch sketch = new FrequencySketch(1000);
+        assertEquals(0, sketch.frequency("a"));
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("a");
+        }
+        assertEquals(5, sketch.frequency("a"));
+
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("a");
+        }
+        assertEquals(15, sketch.frequency("a"));
+    }
+
+    @Test
+    void givenSampleSizeReachedThenFrequenciesAreHalved() {
+        final FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment("a");
+        }
+        // 10 times the capacity of increments in total
+        for (int i = 0; i < 152; i++) {
+            sketch.increment(i);
+        }
+        final int frequency = sketch.frequency("a");
+        assertTrue(frequency >= 4 && frequency < 8, () -> "unexpected frequency after reset: " + frequency);
+    }
+}
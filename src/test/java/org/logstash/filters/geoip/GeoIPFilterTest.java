@@ -12,11 +12,17 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.logstash.RubyUtil.RUBY;
 import static org.logstash.ext.JrubyEventExtLibrary.RubyEvent;
 
@@ -32,6 +38,14 @@ class GeoIPFilterTest {
             MaxMindDatabases.GEOIP2_ENTERPRISE, MaxMindDatabases.GEOIP2_ISP,
             MaxMindDatabases.GEOLITE2_ASN};
 
+    // used as parameters of handleEventWithProjectedFieldsShouldOnlyAddThoseFields
+    @SuppressWarnings("unused")
+    static Path[] COMPACT_RECORD_DATABASES = {MaxMindDatabases.GEOIP2_CITY, MaxMindDatabases.GEOIP2_ENTERPRISE};
+
+    // used as parameters of handleEventWithLocalesShouldAddNamesInTheFirstLocaleTheyExistIn
+    @SuppressWarnings("unused")
+    static Path[] LOCALIZED_DATABASES = {MaxMindDatabases.GEOIP2_CITY, MaxMindDatabases.GEOIP2_COUNTRY};
+
     @ParameterizedTest
     @ValueSource(booleans = {true, false})
     void handleEventWithGeoIp2CityDatabaseShouldProperlyCreateEvent(boolean ecsEnabled) {
@@ -175,6 +189,38 @@ class GeoIPFilterTest {
         }
     }
 
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void handleEventWithGeoIp2DomainDatabaseShouldNotAddTheIp(boolean ecsEnabled) {
+        try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOIP2_DOMAIN, ecsEnabled, Arrays.asList(Field.IP, Field.DOMAIN))) {
+            final RubyEvent rubyEvent = createRubyEvent("1.2.0.1");
+            assertTrue(filter.handleEvent(rubyEvent));
+
+            final Event event = rubyEvent.getEvent();
+            assertEquals("maxmind.com", getField(event, Field.DOMAIN, ecsEnabled));
+            assertNull(getField(event, Field.IP, ecsEnabled));
+        }
+
+        try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOIP2_DOMAIN, ecsEnabled, Collections.singletonList(Field.IP))) {
+            final RubyEvent rubyEvent = createRubyEvent("1.2.0.1");
+            assertFalse(filter.handleEvent(rubyEvent), "Lookup without any field the Domain database provides should report as failed");
+            assertNull(getField(rubyEvent.getEvent(), Field.IP, ecsEnabled));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    void handleEventWithGeoIp2AnonymousIpDatabaseShouldAddTheIp(boolean ecsEnabled) {
+        try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOIP2_ANONYMOUS_IP, ecsEnabled, Arrays.asList(Field.IP, Field.ANONYMOUS))) {
+            final RubyEvent rubyEvent = createRubyEvent("81.2.69.1");
+            assertTrue(filter.handleEvent(rubyEvent));
+
+            final Event event = rubyEvent.getEvent();
+            assertEquals("81.2.69.1", getField(event, Field.IP, ecsEnabled));
+            assertEquals(true, getField(event, Field.ANONYMOUS, ecsEnabled));
+        }
+    }
+
     @ParameterizedTest
     @ValueSource(booleans = {true, false})
     void handleEventWithGeoIp2EnterpriseDatabaseShouldProperlyCreateEvent(boolean ecsEnabled) {
@@ -289,6 +335,59 @@ class GeoIPFilterTest {
         }
     }
 
+    @Test
+    void givenEnterpriseDatabaseWithCustomizedFieldWhenItsRecordIsNotDecodedThenTheLookupSucceeds() {
+        // the customized traits.is_in_european_union field is not decoded by the compact Enterprise records without traits
+        try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOIP2_ENTERPRISE, true, Arrays.asList(Field.COUNTRY_CODE2, Field.LOCATION))) {
+            final RubyEvent rubyEvent = createRubyEvent("216.160.83.60");
+            assertTrue(filter.handleEvent(rubyEvent));
+            assertEquals("US", getField(rubyEvent.getEvent(), Field.COUNTRY_CODE2, true));
+        }
+    }
+
+    @ParameterizedTest
+    @FieldSource("COMPACT_RECORD_DATABASES")
+    void handleEventWithProjectedFieldsShouldOnlyAddThoseFields(Path database) {
+        try (final GeoIPFilter filter = createFilter(database, true, Arrays.asList(Field.COUNTRY_CODE2, Field.LOCATION))) {
+            final RubyEvent rubyEvent = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(rubyEvent));
+
+            final Event event = rubyEvent.getEvent();
+            assertEquals("US", getField(event, Field.COUNTRY_CODE2, true));
+            assertEquals(createLocationMap(47.2513, -122.3149), getField(event, Field.LOCATION, true));
+            assertFalse(event.includes(getFieldReference(Field.CITY_NAME, true)));
+            assertFalse(event.includes(getFieldReference(Field.COUNTRY_NAME, true)));
+        }
+    }
+
+    @ParameterizedTest
+    @FieldSource("LOCALIZED_DATABASES")
+    void handleEventWithLocalesShouldAddNamesInTheFirstLocaleTheyExistIn(Path database) {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, database.toString())
+                .withFields(Arrays.asList("country_name", "continent_name", "city_name"))
+                .withLocales(Arrays.asList("de", "en"))
+                .withEcsCompatibility("v1")
+                .build()) {
+            final RubyEvent rubyEvent = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(rubyEvent));
+
+            final Event event = rubyEvent.getEvent();
+            assertEquals("USA", getField(event, Field.COUNTRY_NAME, true));
+            assertEquals("Nordamerika", getField(event, Field.CONTINENT_NAME, true));
+            if (database.equals(MaxMindDatabases.GEOIP2_CITY)) {
+                // the city has no German name
+                assertEquals("Milton", getField(event, Field.CITY_NAME, true));
+            }
+        }
+    }
+
+    @Test
+    void givenUnknownLocaleThenFilterCreationFails() {
+        final GeoIPFilter.Builder builder = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_CITY.toString())
+                .withLocales(Collections.singletonList("en-GB"));
+        assertThrows(IllegalArgumentException.class, builder::build);
+    }
+
     @Test
     void handleEventWithListSourceFieldShouldParseFirstIp() {
         try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOIP2_COUNTRY, true, Collections.emptyList())) {
@@ -301,6 +400,504 @@ class GeoIPFilterTest {
         }
     }
 
+    @ParameterizedTest
+    @ValueSource(strings = {"216.160.83.58", "::ffff:216.160.83.58"})
+    void handleEventWithCachedResultShouldProperlyCreateEvent(String ipAddress) {
+        try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOIP2_CITY, true, Collections.emptyList())) {
+            assertTrue(filter.handleEvent(createRubyEvent("216.160.83.58")));
+
+            final RubyEvent rubyEvent = createRubyEvent(ipAddress);
+            assertTrue(filter.handleEvent(rubyEvent));
+
+            final Event event = rubyEvent.getEvent();
+            assertEquals("216.160.83.58", getField(event, Field.IP, true));
+            assertEquals("Milton", getField(event, Field.CITY_NAME, true));
+            assertEquals(createLocationMap(47.2513, -122.3149), getField(event, Field.LOCATION, true));
+        }
+    }
+
+    @Test
+    void handleEventWithAddressOfAnAlreadyResolvedNetworkShouldProperlyCreateEvent() {
+        final List<Field> fields = Arrays.asList(Field.IP, Field.AUTONOMOUS_SYSTEM_NUMBER, Field.NETWORK);
+        try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOLITE2_ASN, true, fields)) {
+            assertTrue(filter.handleEvent(createRubyEvent("12.81.92.1")));
+
+            final RubyEvent rubyEvent = createRubyEvent("12.81.95.254");
+            assertTrue(filter.handleEvent(rubyEvent));
+
+            final Event event = rubyEvent.getEvent();
+            assertEquals("12.81.95.254", getField(event, Field.IP, true));
+            assertEquals(7018L, getField(event, Field.AUTONOMOUS_SYSTEM_NUMBER, true));
+            assertEquals("12.81.92.0/22", getField(event, Field.NETWORK, true));
+        }
+    }
+
+    @Test
+    void handleEventWithHostnameShouldFailWhenHostnameResolutionIsDisabled() {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_CITY.toString())
+                .withEcsCompatibility("v1")
+                .withHostnameResolution("disabled")
+                .build()) {
+            assertFalse(filter.handleEvent(createRubyEvent("localhost")));
+
+            final RubyEvent rubyEvent = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(rubyEvent));
+            assertEquals("Milton", getField(rubyEvent.getEvent(), Field.CITY_NAME, true));
+        }
+    }
+
+    @Test
+    void handleEventWithIpv6LiteralShouldReportCanonicalIp() {
+        try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOIP2_COUNTRY, true, Arrays.asList(Field.IP, Field.COUNTRY_CODE2))) {
+            final RubyEvent rubyEvent = createRubyEvent("2a02:D5C0::");
+            assertTrue(filter.handleEvent(rubyEvent));
+
+            final Event event = rubyEvent.getEvent();
+            assertEquals("2a02:d5c0:0:0:0:0:0:0", getField(event, Field.IP, true));
+            assertEquals("ES", getField(event, Field.COUNTRY_CODE2, true));
+        }
+    }
+
+    @Test
+    void handleEventsShouldEnrichEveryEventOfTheBatch() {
+        try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOIP2_COUNTRY, true, Arrays.asList(Field.IP, Field.COUNTRY_CODE2))) {
+            final List<RubyEvent> rubyEvents = Arrays.asList(
+                    createRubyEvent("216.160.83.58"),
+                    createRubyEvent("N/A"),
+                    createRubyEvent("2a02:D5C0::"),
+                    createRubyEvent("216.160.83.58"),
+                    createRubyEvent(new Event(Collections.singletonMap("message", "no ip")))
+            );
+
+            final boolean[] enriched = filter.handleEvents(rubyEvents);
+
+            assertEquals(rubyEvents.size(), enriched.length);
+            assertTrue(enriched[0]);
+            assertEquals("US", getField(rubyEvents.get(0).getEvent(), Field.COUNTRY_CODE2, true));
+            assertFalse(enriched[1]);
+            assertEquals(Collections.emptyMap(), rubyEvents.get(1).getEvent().getField(TARGET_FIELD));
+            assertTrue(enriched[2]);
+            assertEquals("2a02:d5c0:0:0:0:0:0:0", getField(rubyEvents.get(2).getEvent(), Field.IP, true));
+            assertEquals("ES", getField(rubyEvents.get(2).getEvent(), Field.COUNTRY_CODE2, true));
+            assertTrue(enriched[3]);
+            assertEquals("216.160.83.58", getField(rubyEvents.get(3).getEvent(), Field.IP, true));
+            assertEquals("US", getField(rubyEvents.get(3).getEvent(), Field.COUNTRY_CODE2, true));
+            assertFalse(enriched[4]);
+            assertNull(rubyEvents.get(4).getEvent().getField(TARGET_FIELD));
+        }
+    }
+
+    @Test
+    void handleEventWithExistingTargetShouldMergeGeoData() {
+        try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOIP2_CITY, true, Arrays.asList(Field.CITY_NAME, Field.LOCATION))) {
+            final Event event = new Event();
+            event.setField(SOURCE_FIELD, "216.160.83.58");
+            event.setField("[" + TARGET_FIELD + "][geo][name]", "edge");
+            event.setField("[" + TARGET_FIELD + "][domain]", "example.com");
+
+            assertTrue(filter.handleEvent(createRubyEvent(event)));
+
+            assertEquals("Milton", getField(event, Field.CITY_NAME, true));
+            assertEquals(createLocationMap(47.2513, -122.3149), getField(event, Field.LOCATION, true));
+            assertEquals("edge", event.getField("[" + TARGET_FIELD + "][geo][name]"));
+            assertEquals("example.com", event.getField("[" + TARGET_FIELD + "][domain]"));
+        }
+    }
+
+    @Test
+    void handleEventWithCachedResultShouldNotShareTargetValueBetweenEvents() {
+        try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOIP2_CITY, true, Arrays.asList(Field.CITY_NAME, Field.LOCATION))) {
+            final RubyEvent first = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(first));
+            first.getEvent().setField(getFieldReference(Field.CITY_NAME, true), "Tacoma");
+            first.getEvent().setField(getFieldReference(Field.LATITUDE, true), 0.0);
+
+            final RubyEvent second = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(second));
+            assertEquals("Milton", getField(second.getEvent(), Field.CITY_NAME, true));
+            assertEquals(createLocationMap(47.2513, -122.3149), getField(second.getEvent(), Field.LOCATION, true));
+        }
+    }
+
+    @Test
+    void handleEventWithAdditionalDatabasesShouldMergeEveryRecord() {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_CITY.toString())
+                .withFields(Arrays.asList(Field.IP.name(), Field.CITY_NAME.name(), Field.COUNTRY_CODE2.name()))
+                .withEcsCompatibility("v1")
+                .withAdditionalDatabase(MaxMindDatabases.GEOIP2_COUNTRY.toString(), Arrays.asList(Field.COUNTRY_CODE2.name(), Field.CONTINENT_NAME.name()))
+                .withAdditionalDatabase(MaxMindDatabases.GEOLITE2_ASN.toString(), null)
+                .build()) {
+            final RubyEvent cityEvent = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(cityEvent));
+            assertEquals("216.160.83.58", getField(cityEvent.getEvent(), Field.IP, true));
+            assertEquals("Milton", getField(cityEvent.getEvent(), Field.CITY_NAME, true));
+            assertEquals("US", getField(cityEvent.getEvent(), Field.COUNTRY_CODE2, true));
+            assertEquals("North America", getField(cityEvent.getEvent(), Field.CONTINENT_NAME, true));
+
+            // only found in the ASN database
+            final RubyEvent asnEvent = createRubyEvent("12.81.92.1");
+            assertTrue(filter.handleEvent(asnEvent));
+            assertEquals(7018L, getField(asnEvent.getEvent(), Field.AUTONOMOUS_SYSTEM_NUMBER, true));
+            assertEquals("12.81.92.0/22", getField(asnEvent.getEvent(), Field.NETWORK, true));
+
+            assertFalse(filter.handleEvent(createRubyEvent("127.0.0.1")));
+        }
+    }
+
+    @Test
+    void handleEventWithRangeTableLookupEngineShouldEnrichEvents() {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                .withFields(Arrays.asList(Field.IP.name(), Field.COUNTRY_CODE2.name(), Field.CONTINENT_NAME.name()))
+                .withEcsCompatibility("v1")
+                .withAdditionalDatabase(MaxMindDatabases.GEOLITE2_ASN.toString(), null)
+                .withLookupEngine("range_table")
+                .build()) {
+            final RubyEvent countryEvent = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(countryEvent));
+            assertEquals("US", getField(countryEvent.getEvent(), Field.COUNTRY_CODE2, true));
+            assertEquals("North America", getField(countryEvent.getEvent(), Field.CONTINENT_NAME, true));
+
+            final RubyEvent ipv6Event = createRubyEvent("2a02:d5c0::");
+            assertTrue(filter.handleEvent(ipv6Event));
+            assertEquals("ES", getField(ipv6Event.getEvent(), Field.COUNTRY_CODE2, true));
+
+            final RubyEvent asnEvent = createRubyEvent("12.81.92.1");
+            assertTrue(filter.handleEvent(asnEvent));
+            assertEquals(7018L, getField(asnEvent.getEvent(), Field.AUTONOMOUS_SYSTEM_NUMBER, true));
+            assertEquals("12.81.92.0/22", getField(asnEvent.getEvent(), Field.NETWORK, true));
+
+            assertFalse(filter.handleEvent(createRubyEvent("127.0.0.1")));
+        }
+    }
+
+    @Test
+    void givenIpv4AliasedAddressThenRangeTableAndDatabaseLookupEnginesAgree() {
+        // the 6to4 and Teredo addresses of 216.160.83.58, and the 6to4 address of 12.81.92.1
+        for (String ip : Arrays.asList("2002:d8a0:533a::", "2001:0:d8a0:533a::", "2002:c51:5c01::")) {
+            final Map<String, List<Object>> fieldsByEngine = new HashMap<>();
+            for (String engine : Arrays.asList("mmdb", "range_table")) {
+                try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                        .withFields(Arrays.asList(Field.IP.name(), Field.COUNTRY_CODE2.name()))
+                        .withEcsCompatibility("v1")
+                        .withAdditionalDatabase(MaxMindDatabases.GEOLITE2_ASN.toString(), null)
+                        .withLookupEngine(engine)
+                        .build()) {
+                    final RubyEvent event = createRubyEvent(ip);
+                    assertTrue(filter.handleEvent(event), ip);
+                    fieldsByEngine.put(engine, Arrays.asList(getField(event.getEvent(), Field.COUNTRY_CODE2, true),
+                            getField(event.getEvent(), Field.AUTONOMOUS_SYSTEM_NUMBER, true),
+                            getField(event.getEvent(), Field.NETWORK, true)));
+                }
+            }
+            assertNotNull(fieldsByEngine.get("mmdb").get(1), ip);
+            assertEquals(fieldsByEngine.get("mmdb"), fieldsByEngine.get("range_table"), ip);
+        }
+    }
+
+    @Test
+    void givenUnsupportedDatabaseRangeTableLookupEngineShouldFallBackToTheDatabase() {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_CITY.toString())
+                .withEcsCompatibility("v1")
+                .withLookupEngine("range_table")
+                .build()) {
+            final RubyEvent event = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(event));
+            assertEquals("Milton", getField(event.getEvent(), Field.CITY_NAME, true));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {64, 128})
+    void handleEventWithIpv6AddressesOfTheSamePrefixShouldKeepTheirOwnIp(int prefixLength) {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                .withFields(Arrays.asList(Field.IP.name(), Field.COUNTRY_CODE2.name()))
+                .withEcsCompatibility("v1")
+                .withIpv6CachePrefixLength(prefixLength)
+                .build()) {
+            for (String ip : Arrays.asList("2a02:d5c0:0:0:0:0:0:1", "2a02:d5c0:0:0:0:0:0:2", "2a02:d5c0:0:0:0:0:0:0")) {
+                final RubyEvent event = createRubyEvent(ip);
+                assertTrue(filter.handleEvent(event));
+                assertEquals("ES", getField(event.getEvent(), Field.COUNTRY_CODE2, true));
+                assertEquals(ip, getField(event.getEvent(), Field.IP, true));
+            }
+        }
+    }
+
+    @Test
+    void handleEventAfterWarmupShouldNotServeWarmupResults() {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_CITY.toString())
+                .withEcsCompatibility("v1")
+                .withAdditionalDatabase(MaxMindDatabases.GEOLITE2_ASN.toString(), null)
+                .withWarmup(1000, 10_000)
+                .build()) {
+            final RubyEvent event = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(event));
+            assertEquals("Milton", getField(event.getEvent(), Field.CITY_NAME, true));
+            assertEquals("216.160.83.58", getField(event.getEvent(), Field.IP, true));
+        }
+    }
+
+    @Test
+    void swapDatabaseShouldKeepEnrichingEventsWithTheNewDatabase() throws Exception {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_CITY.toString())
+                .withFields(Arrays.asList(Field.IP.name(), Field.CITY_NAME.name(), Field.COUNTRY_CODE2.name()))
+                .withEcsCompatibility("v1")
+                .build()) {
+            assertTrue(filter.handleEvent(createRubyEvent("216.160.83.58")));
+
+            filter.swapDatabase(MaxMindDatabases.GEOLITE2_CITY.toString()).get(10, TimeUnit.SECONDS);
+
+            final RubyEvent event = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(event));
+            assertEquals("Milton", getField(event.getEvent(), Field.CITY_NAME, true));
+            assertEquals("US", getField(event.getEvent(), Field.COUNTRY_CODE2, true));
+        }
+    }
+
+    @Test
+    void swapDatabaseWithDiffCacheCarryOverShouldKeepEnrichingEvents() throws Exception {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_CITY.toString())
+                .withFields(Arrays.asList(Field.IP.name(), Field.CITY_NAME.name(), Field.COUNTRY_CODE2.name()))
+                .withEcsCompatibility("v1")
+                .withCacheCarryOver("diff")
+                .build()) {
+            assertTrue(filter.handleEvent(createRubyEvent("216.160.83.58")));
+            filter.handleEvent(createRubyEvent("2a02:d5c0::"));
+
+            // swapping to the same file keeps every result, swapping to another one drops the changed ones
+            filter.swapDatabase(MaxMindDatabases.GEOIP2_CITY.toString()).get(10, TimeUnit.SECONDS);
+            filter.swapDatabase(MaxMindDatabases.GEOLITE2_CITY.toString()).get(10, TimeUnit.SECONDS);
+
+            final RubyEvent event = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(event));
+            assertEquals("Milton", getField(event.getEvent(), Field.CITY_NAME, true));
+        }
+    }
+
+    @Test
+    void swapDatabaseWithDifferentFieldsShouldKeepTheCurrentDatabase() throws Exception {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_CITY.toString())
+                .withEcsCompatibility("v1")
+                .build()) {
+            final ExecutionException failure = assertThrows(ExecutionException.class, () ->
+                    filter.swapDatabase(MaxMindDatabases.GEOLITE2_ASN.toString()).get(10, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, failure.getCause());
+
+            final RubyEvent event = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(event));
+            assertEquals("Milton", getField(event.getEvent(), Field.CITY_NAME, true));
+        }
+    }
+
+    @Test
+    void handleEventWithAdditionalSourceShouldEnrichEveryTarget() {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                .withFields(Arrays.asList(Field.IP.name(), Field.COUNTRY_CODE2.name()))
+                .withEcsCompatibility("v1")
+                .withAdditionalSource("[destination][ip]", "[destination]")
+                .build()) {
+            final Event event = new Event();
+            event.setField(SOURCE_FIELD, "216.160.83.58");
+            event.setField("[destination][ip]", "2a02:d5c0::");
+
+            assertTrue(filter.handleEvent(createRubyEvent(event)));
+
+            assertEquals("US", getField(event, Field.COUNTRY_CODE2, true));
+            assertEquals("ES", event.getField("[destination][geo][country_iso_code]"));
+            assertEquals("2a02:d5c0:0:0:0:0:0:0", event.getField("[destination][ip]"));
+
+            final Event missingDestination = new Event(Collections.singletonMap(SOURCE_FIELD, "216.160.83.58"));
+            assertFalse(filter.handleEvent(createRubyEvent(missingDestination)));
+            assertEquals("US", getField(missingDestination, Field.COUNTRY_CODE2, true));
+        }
+    }
+
+    @Test
+    void handleEventWithFirstPublicArrayModeShouldSkipReservedAddresses() {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                .withFields(Arrays.asList(Field.IP.name(), Field.COUNTRY_CODE2.name()))
+                .withEcsCompatibility("v1")
+                .withArrayMode("first_public")
+                .build()) {
+            final RubyEvent rubyEvent = createRubyEvent(new Event(Collections.singletonMap(SOURCE_FIELD,
+                    Arrays.asList("10.0.0.1", "192.168.1.20", "216.160.83.58", "2a02:d5c0::"))));
+            assertTrue(filter.handleEvent(rubyEvent));
+
+            assertEquals("216.160.83.58", getField(rubyEvent.getEvent(), Field.IP, true));
+            assertEquals("US", getField(rubyEvent.getEvent(), Field.COUNTRY_CODE2, true));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void handleEventWithAllArrayModeShouldEnrichEveryElement() {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                .withFields(Arrays.asList(Field.IP.name(), Field.COUNTRY_CODE2.name()))
+                .withEcsCompatibility("v1")
+                .withArrayMode("all")
+                .build()) {
+            final RubyEvent rubyEvent = createRubyEvent(new Event(Collections.singletonMap(SOURCE_FIELD,
+                    Arrays.asList("216.160.83.58", "N/A", "2a02:D5C0::", "216.160.83.58"))));
+            assertTrue(filter.handleEvent(rubyEvent));
+
+            final List<Map<String, Object>> targets = (List<Map<String, Object>>) rubyEvent.getEvent().getField(TARGET_FIELD);
+            assertEquals(4, targets.size());
+            assertEquals("216.160.83.58", targets.get(0).get("ip"));
+            assertEquals("US", ((Map<String, Object>) targets.get(0).get("geo")).get("country_iso_code"));
+            assertEquals(Collections.emptyMap(), targets.get(1));
+            assertEquals("2a02:d5c0:0:0:0:0:0:0", targets.get(2).get("ip"));
+            assertEquals("ES", ((Map<String, Object>) targets.get(2).get("geo")).get("country_iso_code"));
+            assertEquals(targets.get(0), targets.get(3));
+        }
+    }
+
+    @Test
+    void handleEventWithReservedAddressShouldBeTaggedWithoutLookup() {
+        try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOIP2_CITY, true, Collections.emptyList())) {
+            final RubyEvent rubyEvent = createRubyEvent("192.168.1.1");
+            assertFalse(filter.handleEvent(rubyEvent));
+            assertEquals(Collections.emptyMap(), rubyEvent.getEvent().getField(TARGET_FIELD));
+            assertTrue(((List<?>) rubyEvent.getEvent().getField("tags")).contains(GeoIPFilter.RESERVED_ADDRESS_TAG));
+            assertEquals(0L, filter.getMetrics().get("cache_misses"));
+
+            final RubyEvent notFound = createRubyEvent("1.1.1.1");
+            assertFalse(filter.handleEvent(notFound));
+            assertNull(notFound.getEvent().getField("tags"));
+        }
+    }
+
+    @Test
+    void handleEventWithDatabaseCoveringReservedAddressesShouldLookThemUp() {
+        // the Anonymous-IP test database has records in 192.0.0.0/24
+        try (final GeoIPFilter filter = createFilter(MaxMindDatabases.GEOIP2_ANONYMOUS_IP, true, Collections.emptyList())) {
+            final RubyEvent rubyEvent = createRubyEvent("192.168.1.1");
+            assertFalse(filter.handleEvent(rubyEvent));
+            assertNull(rubyEvent.getEvent().getField("tags"));
+            assertEquals(0L, filter.getMetrics().get("reserved_addresses"));
+        }
+    }
+
+    @Test
+    void handleEventWithThreadCacheShouldAnswerRepeatedAddressesUntilTheDatabaseIsSwapped() throws Exception {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                .withEcsCompatibility("v1")
+                .withThreadCacheSize(16)
+                .build()) {
+            assertTrue(filter.handleEvent(createRubyEvent("216.160.83.58")));
+            assertTrue(filter.handleEvent(createRubyEvent("216.160.83.58")));
+            assertFalse(filter.handleEvent(createRubyEvent("1.1.1.1")));
+            assertFalse(filter.handleEvent(createRubyEvent("1.1.1.1")));
+            assertEquals(2L, filter.getMetrics().get("thread_cache_hits"));
+            assertEquals(0L, filter.getMetrics().get("result_cache_hits"));
+            assertEquals(2L, filter.getMetrics().get("address_not_found"));
+
+            filter.swapDatabase(MaxMindDatabases.GEOLITE2_COUNTRY.toString()).get(10, TimeUnit.SECONDS);
+            final RubyEvent rubyEvent = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(rubyEvent));
+            assertEquals(2L, filter.getMetrics().get("thread_cache_hits"));
+            assertEquals("US", getField(rubyEvent.getEvent(), Field.COUNTRY_CODE2, true));
+        }
+    }
+
+    @Test
+    void givenIllegalThreadCacheSizeThenFilterCreationFails() {
+        final GeoIPFilter.Builder builder = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                .withThreadCacheSize(-1);
+        assertThrows(IllegalArgumentException.class, builder::build);
+    }
+
+    @Test
+    void handleEventWithCacheNetworkCapShouldNotCacheMoreAddressesOfASourceNetwork() throws Exception {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                .withEcsCompatibility("v1")
+                .withCacheAdmission("tinylfu")
+                .withCacheNetworkCap(1)
+                .build()) {
+            assertTrue(filter.handleEvent(createRubyEvent("216.160.83.58")));
+            assertTrue(filter.handleEvent(createRubyEvent("216.160.83.59")));
+            assertTrue(filter.handleEvent(createRubyEvent("216.160.83.59")));
+
+            final Map<String, Long> metrics = filter.getMetrics();
+            assertEquals(1L, metrics.get("cache_admissions"));
+            assertEquals(2L, metrics.get("cache_rejections"));
+            assertEquals(1L, metrics.get("result_cache_size"));
+            assertEquals(2L, metrics.get("network_cache_hits"));
+        }
+    }
+
+    @Test
+    void givenIllegalCacheAdmissionThenFilterCreationFails() {
+        final GeoIPFilter.Builder builder = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                .withCacheAdmission("lfu");
+        assertThrows(IllegalArgumentException.class, builder::build);
+    }
+
+    @Test
+    void handleEventWithOffHeapCacheShouldAnswerFromItWhenTheHeapCachesAreDisabled() {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_CITY.toString())
+                .withEcsCompatibility("v1")
+                .withCacheSize(0)
+                .withOffHeapCacheSize(OffHeapResultCache.MIN_CAPACITY)
+                .build()) {
+            final RubyEvent first = createRubyEvent("216.160.83.58");
+            final RubyEvent second = createRubyEvent("216.160.83.58");
+            assertTrue(filter.handleEvent(first));
+            assertTrue(filter.handleEvent(second));
+
+            assertEquals(first.getEvent().getField(TARGET_FIELD), second.getEvent().getField(TARGET_FIELD));
+            assertEquals(1L, filter.getMetrics().get("cache_misses"));
+            assertEquals(1L, filter.getMetrics().get("off_heap_cache_hits"));
+            assertTrue(filter.getMetrics().get("off_heap_cache_bytes") > 0);
+        }
+    }
+
+    @Test
+    void givenTooSmallOffHeapCacheSizeThenFilterCreationFails() {
+        final GeoIPFilter.Builder builder = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                .withOffHeapCacheSize(1024);
+        assertThrows(IllegalArgumentException.class, builder::build);
+    }
+
+    @Test
+    void handleEventAfterCloseShouldFailTheLookupInsteadOfRetryingIt() {
+        final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                .withEcsCompatibility("v1")
+                .build();
+        filter.close();
+
+        assertFalse(filter.handleEvent(createRubyEvent("216.160.83.58")));
+        assertEquals(1L, filter.getMetrics().get("database_errors"));
+    }
+
+    @Test
+    void handleEventShouldRecordLookupMetrics() throws Exception {
+        try (final GeoIPFilter filter = new GeoIPFilter.Builder(SOURCE_FIELD, TARGET_FIELD, MaxMindDatabases.GEOIP2_COUNTRY.toString())
+                .withEcsCompatibility("v1")
+                .withHostnameResolution("disabled")
+                .build()) {
+            assertTrue(filter.handleEvent(createRubyEvent("216.160.83.58")));
+            assertTrue(filter.handleEvent(createRubyEvent("216.160.83.58")));
+            assertFalse(filter.handleEvent(createRubyEvent("10.0.0.1")));
+            assertFalse(filter.handleEvent(createRubyEvent("1.1.1.1")));
+            assertFalse(filter.handleEvent(createRubyEvent("1.1.1.1")));
+            assertFalse(filter.handleEvent(createRubyEvent("example.com")));
+            filter.swapDatabase(MaxMindDatabases.GEOLITE2_COUNTRY.toString()).get(10, TimeUnit.SECONDS);
+
+            final Map<String, Long> metrics = filter.getMetrics();
+            assertEquals(5L, metrics.get("lookups"));
+            assertEquals(1L, metrics.get("result_cache_hits"));
+            assertEquals(1L, metrics.get("reserved_addresses"));
+            assertEquals(1L, metrics.get("not_found_cache_hits"));
+            assertEquals(2L, metrics.get("cache_misses"));
+            assertEquals(2L, metrics.get("address_not_found"));
+            assertEquals(1L, metrics.get("invalid_input"));
+            assertEquals(1L, metrics.get("database_swaps"));
+            assertEquals(2L, metrics.get("database_lookup_count"));
+            assertTrue(metrics.get("database_lookup_max_nanos") > 0);
+            assertTrue(metrics.get("database_lookup_p50_nanos") <= metrics.get("database_lookup_max_nanos"));
+        }
+    }
+
     private Map<String, Double> createLocationMap(Double lat, Double lon) {
         final Map<String, Double> map = new HashMap<>(2);
         map.put("lat", lat);
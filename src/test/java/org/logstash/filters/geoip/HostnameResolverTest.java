@@ -0,0 +1,111 @@
+package org.logstash.filters.geoip;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HostnameResolverTest {
+
+    private static final InetAddress ADDRESS = address(8, 8, 8, 8);
+
+    @Test
+    void givenResolvableHostnameThenAddressIsReturnedAndCached() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        try (HostnameResolver resolver = new HostnameResolver((hostname) -> {
+            calls.incrementAndGet();
+            return ADDRESS;
+        }, 1000, 60_000, 5_000, 10, 4, System::nanoTime)) {
+            assertEquals(IpAddressKey.of(ADDRESS), resolver.resolve("dns.google"));
+            assertEquals(IpAddressKey.of(ADDRESS), resolver.resolve("dns.google"));
+            assertEquals(1, calls.get());
+        }
+    }
+
+    @Test
+    void givenUnresolvableHostnameThenFailureIsCached() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        try (HostnameResolver resolver = new HostnameResolver((hostname) -> {
+            calls.incrementAndGet();
+            throw new UnknownHostException(hostname);
+        }, 1000, 60_000, 5_000, 10, 4, System::nanoTime)) {
+            assertNull(resolver.resolve("unknown.invalid"));
+            assertNull(resolver.resolve("unknown.invalid"));
+            assertEquals(1, calls.get());
+        }
+    }
+
+    @Test
+    void givenExpiredEntryThenHostnameIsResolvedAgain() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicLong clock = new AtomicLong();
+        try (HostnameResolver resolver = new HostnameResolver((hostname) -> {
+            calls.incrementAndGet();
+            throw new UnknownHostException(hostname);
+        }, 1000, 60_000, 5_000, 10, 4, clock::get)) {
+            assertNull(resolver.resolve("unknown.invalid"));
+
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(4));
+            assertNull(resolver.resolve("unknown.invalid"));
+            assertEquals(1, calls.get());
+
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+            assertNull(resolver.resolve("unknown.invalid"));
+            assertEquals(2, calls.get());
+        }
+    }
+
+    @Test
+    void givenSlowNameServiceThenResolutionTimesOutAndCompletesInBackground() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch resolved = new CountDownLatch(1);
+        try (HostnameResolver resolver = new HostnameResolver((hostname) -> {
+            try {
+                release.await();
+                return ADDRESS;
+            } catch (InterruptedException e) {
+                throw new UnknownHostException(hostname);
+            } finally {
+                resolved.countDown();
+            }
+        }, 10, 60_000, 5_000, 10, 4, System::nanoTime)) {
+            assertThrows(TimeoutException.class, () -> resolver.resolve("slow.example"));
+
+            release.countDown();
+            assertTrue(resolved.await(5, TimeUnit.SECONDS));
+
+            // the background resolution populates the cache once it completes
+            IpAddressKey address = null;
+            for (int attempt = 0; attempt < 100 && address == null; attempt++) {
+                try {
+                    address = resolver.resolve("slow.example");
+                } catch (TimeoutException e) {
+                    // still completing
+                }
+            }
+            assertEquals(IpAddressKey.of(ADDRESS), address);
+        }
+    }
+
+    private static InetAddress address(final int... octets) {
+        final byte[] bytes = new byte[octets.length];
+        for (int i = 0; i < octets.length; i++) {
+            bytes[i] = (byte) octets[i];
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.logstash.filters.geoip;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IpAddressKeyTest {
+
+    @Test
+    void ipv4AndIpv4MappedIpv6AddressesShouldShareTheSameKey() throws UnknownHostException {
+        final IpAddressKey ipv4 = IpAddressKey.of(InetAddress.getByName("216.160.83.58"));
+        final IpAddressKey mapped = IpAddressKey.of(new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff, (byte) 216, (byte) 160, 83, 58});
+
+        assertEquals(ipv4, mapped);
+        assertEquals(ipv4.hashCode(), mapped.hashCode());
+        assertTrue(mapped.isIpv4());
+        assertEquals("216.160.83.58", mapped.toString());
+    }
+
+    @Test
+    void ipv6AddressesShouldRoundTrip() throws UnknownHostException {
+        final IpAddressKey key = IpAddressKey.of(InetAddress.getByName("2a02:d5c0::1"));
+
+        assertFalse(key.isIpv4());
+        assertEquals("2a02:d5c0:0:0:0:0:0:1", key.toString());
+        assertEquals(InetAddress.getByName("2a02:d5c0::1"), key.toInetAddress());
+        assertNotEquals(IpAddressKey.of(InetAddress.getByName("2a02:d5c0::2")), key);
+    }
+
+    @Test
+    void keysShouldBeOrderedAsUnsignedAddresses() {
+        final IpAddressKey low = IpAddressParser.parse("1.2.3.4");
+        final IpAddressKey high = IpAddressParser.parse("200.2.3.4");
+        final IpAddressKey ipv6 = IpAddressParser.parse("fe80::1");
+
+        assertTrue(low.compareTo(high) < 0);
+        assertTrue(high.compareTo(ipv6) < 0);
+        assertTrue(ipv6.compareTo(low) > 0);
+        assertEquals(0, low.compareTo(IpAddressParser.parse("::ffff:1.2.3.4")));
+    }
+
+    @Test
+    void truncatedKeyShouldBeTheFirstAddressOfItsNetwork() {
+        final IpAddressKey key = IpAddressParser.parse("2001:db8:1:2:aaaa:bbbb:cccc:dddd");
+
+        assertEquals(IpAddressParser.parse("2001:db8:1:2::"), key.truncate(64));
+        assertEquals(IpAddressParser.parse("2001:db8:1::"), key.truncate(48));
+        assertEquals(IpAddressParser.parse("2001:db8:1:2:aaaa::"), key.truncate(80));
+        assertSame(key, key.truncate(128));
+        assertEquals(IpAddressParser.parse("::"), key.truncate(0));
+    }
+
+    @Test
+    void keysShouldBeInTheNetworksContainingThem() {
+        final IpAddressKey key = IpAddressParser.parse("2001:db8:1:2::1");
+
+        assertTrue(key.isInNetwork(IpAddressParser.parse("2001:db8::"), 32));
+        assertTrue(key.isInNetwork(IpAddressParser.parse("2001:db8:1:2::"), 64));
+        assertFalse(key.isInNetwork(IpAddressParser.parse("2001:db8:1:3::"), 64));
+        assertTrue(IpAddressParser.parse("203.0.113.5").isInNetwork(IpAddressParser.parse("203.0.113.0"), 120));
+        assertFalse(IpAddressParser.parse("203.0.114.5").isInNetwork(IpAddressParser.parse("203.0.113.0"), 120));
+    }
+}
@@ -0,0 +1,45 @@
+package org.logstash.filters.geoip;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class IpAddressParserTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "0.0.0.0", "216.160.83.58", "255.255.255.255",
+            "::", "::1", "1::", "2a02:d5c0::", "2a02:d5c0:0:0:0:0:0:0", "1:2:3:4:5:6:7:8", "1:2:3:4:5:6:7::",
+            "::2:3:4:5:6:7:8", "ABCD:ef01::1", "::ffff:216.160.83.58", "::ffff:d8a0:533a", "::1.2.3.4",
+            "1:2:3:4:5:6:1.2.3.4"
+    })
+    void givenIpLiteralThenItIsParsedAsInetAddressWould(String literal) throws UnknownHostException {
+        final InetAddress expected = InetAddress.getByName(literal);
+        final IpAddressKey parsed = IpAddressParser.parse(literal);
+
+        assertEquals(IpAddressKey.of(expected), parsed);
+        assertEquals(expected.getHostAddress(), parsed.toString());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "", "localhost", "example.com", "a.b.c.d", "256.1.1.1", "1.2.3", "1.2.3.4.", "01.2.3.4", " 1.2.3.4",
+            ":", ":::", "1:::2", "1::2::3", "12345::", "1:2", "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7::8",
+            "1:2:3:4:5:6:7:1.2.3.4", "::ffff:256.1.1.1", "fe80::1%eth0", "[::1]", "1.2.3.\u0664"
+    })
+    void givenValueWhichIsNotAStrictIpLiteralThenItIsNotParsed(String value) {
+        assertNull(IpAddressParser.parse(value));
+    }
+
+    @Test
+    void ipv4MappedIpv6LiteralShouldBeCollapsedToIpv4() {
+        assertEquals(IpAddressParser.parse("216.160.83.58"), IpAddressParser.parse("::ffff:216.160.83.58"));
+        assertEquals("216.160.83.58", IpAddressParser.parse("::ffff:216.160.83.58").toString());
+    }
+}
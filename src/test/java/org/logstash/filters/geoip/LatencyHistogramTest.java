@@ -0,0 +1,63 @@
+package org.logstash.filters.geoip;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void givenNoValueThenEveryStatisticIsZero() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.mean());
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.percentile(99));
+    }
+
+    @Test
+    void givenSmallValuesThenTheyAreExact() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 0; value < 16; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(16, histogram.count());
+        assertEquals(7, histogram.percentile(50));
+        assertEquals(15, histogram.percentile(100));
+        assertEquals(15, histogram.max());
+    }
+
+    @Test
+    void givenLargeValuesThenPercentilesAreWithinTheBucketPrecision() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.count());
+        assertEquals(500_500, histogram.mean());
+        assertEquals(1_000_000, histogram.max());
+        assertWithinPrecision(500_000, histogram.percentile(50));
+        assertWithinPrecision(990_000, histogram.percentile(99));
+        assertEquals(1_000_000, histogram.percentile(100));
+    }
+
+    @Test
+    void givenAnyValueThenItsBucketContainsIt() {
+        long previousHighest = -1;
+        for (int index = 0; index < 600; index++) {
+            final long highest = LatencyHistogram.highestValue(index);
+            assertTrue(highest > previousHighest);
+            assertEquals(index, LatencyHistogram.bucketIndex(highest));
+            assertEquals(index, LatencyHistogram.bucketIndex(previousHighest + 1));
+            previousHighest = highest;
+        }
+    }
+
+    private static void assertWithinPrecision(final long expected, final long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 16, "expected about " + expected + " but was " + actual);
+    }
+}
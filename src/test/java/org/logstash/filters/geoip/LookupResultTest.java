@@ -0,0 +1,51 @@
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.Network;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LookupResultTest {
+
+    @Test
+    void givenNetworkWiderThanThePrefixThenThePrefixIsCovered() throws UnknownHostException {
+        final LookupResult result = result(new Network(InetAddress.getByName("2a02:d5c0::"), 29));
+
+        assertTrue(result.covers(IpAddressParser.parse("2a02:d5c0:0:1::"), 64));
+        assertTrue(result.covers(IpAddressParser.parse("2a02:d5c0::"), 29));
+        assertFalse(result.covers(IpAddressParser.parse("2a02:d5c0::"), 28));
+        assertFalse(result.covers(IpAddressParser.parse("2a02:d5c8::"), 64));
+    }
+
+    @Test
+    void givenNetworkNarrowerThanThePrefixThenThePrefixIsNotCovered() throws UnknownHostException {
+        final LookupResult result = result(new Network(InetAddress.getByName("2001:db8:1:2:8000::"), 65));
+
+        assertFalse(result.covers(IpAddressParser.parse("2001:db8:1:2::"), 64));
+        assertTrue(result.covers(IpAddressParser.parse("2001:db8:1:2:8000::"), 80));
+    }
+
+    @Test
+    void givenIpv4NetworkThenItIsComparedInTheIpv4MappedSpace() throws UnknownHostException {
+        final LookupResult result = result(new Network(InetAddress.getByName("203.0.113.0"), 24));
+
+        assertTrue(result.covers(IpAddressParser.parse("203.0.113.0"), 128));
+        assertFalse(result.covers(IpAddressParser.parse("203.0.114.0"), 128));
+    }
+
+    @Test
+    void givenUnknownNetworkThenNothingIsCovered() {
+        final LookupResult result = LookupResult.of(Map.of(Field.COUNTRY_CODE2, "ES"), null);
+
+        assertFalse(result.covers(IpAddressParser.parse("2a02:d5c0::"), 128));
+    }
+
+    private static LookupResult result(final Network network) {
+        return LookupResult.of(Map.of(Field.COUNTRY_CODE2, "ES"), network);
+    }
+}
@@ -0,0 +1,139 @@
+package org.logstash.filters.geoip;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LruCacheTest {
+
+    @Test
+    void givenFullCacheWhenPuttingNewEntryThenLeastRecentlyUsedIsEvicted() {
+        final LruCache<String, Integer> cache = new LruCache<>(2);
+        cache.put("a", 1);
+        cache.put("b", 2);
+
+        // touch "a", so "b" becomes the least recently used entry
+        assertEquals(1, cache.get("a"));
+        cache.put("c", 3);
+
+        assertEquals(1, cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(3, cache.get("c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void givenFullCacheWhenPuttingManyEntriesThenNewEntriesAreStillAdmitted() {
+        final LruCache<Integer, Integer> cache = new LruCache<>(1000);
+        for (int i = 0; i < 10_000; i++) {
+            cache.put(i, i);
+        }
+
+        assertTrue(cache.size() <= 1000 + 16, () -> "cache grew beyond its capacity: " + cache.size());
+        assertEquals(9_999, cache.get(9_999));
+    }
+
+    @Test
+    void givenZeroCapacityThenNothingIsCached() {
+        final LruCache<String, Integer> cache = new LruCache<>(0);
+        cache.put("a", 1);
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void invalidateAllShouldRemoveEveryEntry() {
+        final LruCache<String, Integer> cache = new LruCache<>(10);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.invalidateAll();
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void givenFrequencyAdmissionWhenScanningNewKeysThenFrequentEntriesAreKept() {
+        final LruCache<Integer, Integer> cache = new LruCache<>(100, true, null, 0);
+        for (int i = 0; i < 100; i++) {
+            cache.get(i);
+            cache.put(i, i);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, cache.get(i));
+            }
+        }
+
+        // a scan of keys seen once can't evict the entries looked up several times
+        for (int i = 1000; i < 1300; i++) {
+            assertNull(cache.get(i));
+            cache.put(i, i);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, cache.get(i));
+        }
+        assertEquals(100, cache.admissions());
+        assertEquals(300, cache.rejections());
+    }
+
+    @Test
+    void givenFrequencyAdmissionWhenNewKeyIsMoreFrequentThenItIsAdmitted() {
+        final LruCache<String, Integer> cache = new LruCache<>(1, true, null, 0);
+        cache.get("a");
+        cache.put("a", 1);
+        cache.get("b");
+        cache.put("b", 2);
+        assertEquals(1, cache.get("a"));
+
+        cache.get("b");
+        cache.get("b");
+        cache.get("b");
+        cache.put("b", 2);
+        assertNull(cache.get("a"));
+        assertEquals(2, cache.get("b"));
+    }
+
+    @Test
+    void givenFrequencyAdmissionWhenProbingOrSnapshottingThenNoAccessIsRecorded() {
+        final LruCache<String, Integer> cache = new LruCache<>(1, true, null, 0);
+        cache.get("a");
+        cache.put("a", 1);
+        for (int i = 0; i < 3; i++) {
+            assertNull(cache.probe("b"));
+            assertEquals(Map.of("a", 1), cache.snapshot());
+        }
+        cache.put("b", 2);
+        assertEquals(1, cache.probe("a"));
+        assertNull(cache.probe("b"));
+
+        cache.recordAccess("b");
+        cache.recordAccess("b");
+        cache.put("b", 2);
+        assertNull(cache.probe("a"));
+        assertEquals(2, cache.probe("b"));
+    }
+
+    @Test
+    void givenGroupCapThenNewKeysOfAFullGroupAreRejected() {
+        final LruCache<Integer, Integer> cache = new LruCache<>(1000, false, (key) -> key / 100, 2);
+        cache.put(100, 1);
+        cache.put(101, 2);
+        cache.put(102, 3);
+        cache.put(200, 4);
+        cache.put(100, 5);
+
+        assertEquals(5, cache.get(100));
+        assertEquals(2, cache.get(101));
+        assertNull(cache.get(102));
+        assertEquals(4, cache.get(200));
+        assertEquals(3, cache.admissions());
+        assertEquals(1, cache.rejections());
+    }
+}
@@ -0,0 +1,62 @@
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.Network;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class NetworkCacheTest {
+
+    @Test
+    void givenCachedIpv4NetworkThenEveryAddressOfTheNetworkIsAnswered() throws UnknownHostException {
+        final NetworkCache<String> cache = new NetworkCache<>(10);
+        cache.put(network("203.0.113.0", 24), "documentation");
+
+        assertEquals("documentation", cache.get(key("203.0.113.5")));
+        assertEquals("documentation", cache.get(key("203.0.113.255")));
+        assertEquals("documentation", cache.get(key("::ffff:203.0.113.77")));
+        assertNull(cache.get(key("203.0.114.1")));
+    }
+
+    @Test
+    void givenNestedNetworksThenTheMostSpecificOneIsAnswered() throws UnknownHostException {
+        final NetworkCache<String> cache = new NetworkCache<>(10);
+        cache.put(network("10.0.0.0", 8), "wide");
+        cache.put(network("10.1.2.0", 24), "narrow");
+
+        assertEquals("narrow", cache.get(key("10.1.2.3")));
+        assertEquals("wide", cache.get(key("10.1.3.3")));
+    }
+
+    @Test
+    void givenCachedIpv6NetworkThenEveryAddressOfTheNetworkIsAnswered() throws UnknownHostException {
+        final NetworkCache<String> cache = new NetworkCache<>(10);
+        cache.put(network("2a02:d5c0::", 29), "spain");
+
+        assertEquals("spain", cache.get(key("2a02:d5c0::1")));
+        assertEquals("spain", cache.get(key("2a02:d5c7:ffff::1")));
+        assertNull(cache.get(key("2a02:d5c8::1")));
+    }
+
+    @Test
+    void invalidateAllShouldForgetEveryNetwork() throws UnknownHostException {
+        final NetworkCache<String> cache = new NetworkCache<>(10);
+        cache.put(network("203.0.113.0", 24), "documentation");
+        cache.invalidateAll();
+
+        assertNull(cache.get(key("203.0.113.5")));
+        assertEquals(0, cache.size());
+    }
+
+    private static Network network(String address, int prefixLength) throws UnknownHostException {
+        return new Network(InetAddress.getByName(address), prefixLength);
+    }
+
+    private static IpAddressKey key(String address) throws UnknownHostException {
+        return IpAddressKey.of(InetAddress.getByName(address));
+    }
+}
@@ -0,0 +1,110 @@
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.Network;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OffHeapResultCacheTest {
+
+    @Test
+    void givenEncodedResultThenDecodingRestoresItsGeoDataAndNetwork() throws Exception {
+        final Map<Field, Object> geoData = new EnumMap<>(Field.class);
+        geoData.put(Field.CITY_NAME, "Z\u00fcrich");
+        geoData.put(Field.LATITUDE, 47.3682);
+        geoData.put(Field.DMA_CODE, 819);
+        geoData.put(Field.AUTONOMOUS_SYSTEM_NUMBER, 13335L);
+        geoData.put(Field.TOR_EXIT_NODE, true);
+        geoData.put(Field.LOCATION, Map.of("lat", 47.3682, "lon", 8.5671));
+        final Network network = new Network(InetAddress.getByName("2001:db8::"), 48);
+
+        final LookupResult decoded = OffHeapResultCache.decode(OffHeapResultCache.encode(LookupResult.of(geoData, network)));
+
+        assertEquals(geoData, decoded.getGeoData());
+        assertEquals(network.getNetworkAddress(), decoded.getNetwork().getNetworkAddress());
+        assertEquals(48, decoded.getNetwork().getPrefixLength());
+    }
+
+    @Test
+    void givenEmptyResultThenItStaysEmpty() throws Exception {
+        final Network network = new Network(InetAddress.getByName("10.0.0.0"), 8);
+        final LookupResult decoded = OffHeapResultCache.decode(OffHeapResultCache.encode(LookupResult.empty(network)));
+
+        assertTrue(decoded.isEmpty());
+        assertEquals(8, decoded.getNetwork().getPrefixLength());
+    }
+
+    @Test
+    void givenValueThatCantBeEncodedThenResultIsNotCached() {
+        final OffHeapResultCache cache = new OffHeapResultCache(OffHeapResultCache.MIN_CAPACITY);
+        final Map<Field, Object> geoData = new EnumMap<>(Field.class);
+        geoData.put(Field.CITY_NAME, List.of("Milton"));
+        cache.put(key(1), LookupResult.of(geoData, null));
+
+        assertNull(cache.get(key(1)));
+    }
+
+    @Test
+    void givenCachedResultThenItIsReturnedForItsKeyOnly() {
+        final OffHeapResultCache cache = new OffHeapResultCache(OffHeapResultCache.MIN_CAPACITY);
+        cache.put(key(1), result("Milton"));
+        cache.put(key(1), result("Tacoma"));
+
+        assertEquals("Tacoma", cache.get(key(1)).getGeoData().get(Field.CITY_NAME));
+        assertNull(cache.get(key(2)));
+    }
+
+    @Test
+    void givenMoreResultsThanTheBudgetThenOldestAreOverwritten() {
+        final OffHeapResultCache cache = new OffHeapResultCache(OffHeapResultCache.MIN_CAPACITY);
+        final int count = 200_000;
+        for (int i = 0; i < count; i++) {
+            cache.put(key(i), result("city-" + i));
+        }
+
+        assertNull(cache.get(key(0)));
+        assertEquals("city-" + (count - 1), cache.get(key(count - 1)).getGeoData().get(Field.CITY_NAME));
+        assertEquals(OffHeapResultCache.MIN_CAPACITY, cache.allocatedBytes());
+    }
+
+    @Test
+    void givenReleasedCacheThenItsBuffersAreDroppedAndNothingIsCached() {
+        final OffHeapResultCache cache = new OffHeapResultCache(OffHeapResultCache.MIN_CAPACITY);
+        cache.put(key(1), result("Milton"));
+        assertTrue(cache.allocatedBytes() > 0);
+
+        cache.release();
+        assertEquals(0, cache.allocatedBytes());
+        assertNull(cache.get(key(1)));
+
+        cache.put(key(2), result("Tacoma"));
+        assertNull(cache.get(key(2)));
+        assertEquals(0, cache.allocatedBytes());
+    }
+
+    @Test
+    void givenZeroCapacityThenNothingIsCached() {
+        final OffHeapResultCache cache = new OffHeapResultCache(0);
+        cache.put(key(1), result("Milton"));
+
+        assertNull(cache.get(key(1)));
+        assertEquals(0, cache.allocatedBytes());
+    }
+
+    private static IpAddressKey key(final int address) {
+        return IpAddressKey.ofIpv4(address);
+    }
+
+    private static LookupResult result(final String cityName) {
+        final Map<Field, Object> geoData = new EnumMap<>(Field.class);
+        geoData.put(Field.CITY_NAME, cityName);
+        return LookupResult.of(geoData, null);
+    }
+}
@@ -0,0 +1,131 @@
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.Network;
+import com.maxmind.geoip2.model.AsnResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RangeTableTest {
+
+    @Test
+    void givenIpv4NetworksThenEveryAddressOfTheNetworksIsAnswered() throws UnknownHostException {
+        final RangeTable table = new RangeTable.Builder()
+                .add(network("203.0.113.0", 24), result("documentation"))
+                .add(network("10.0.0.0", 8), result("private"))
+                .add(network("0.0.0.0", 8), result("this network"))
+                .build();
+
+        assertEquals("documentation", countryOf(table.get(key("203.0.113.0"))));
+        assertEquals("documentation", countryOf(table.get(key("203.0.113.255"))));
+        assertEquals("documentation", countryOf(table.get(key("::ffff:203.0.113.77"))));
+        assertEquals("private", countryOf(table.get(key("10.255.255.255"))));
+        assertEquals("this network", countryOf(table.get(key("0.0.0.1"))));
+        assertNull(table.get(key("203.0.114.1")));
+        assertNull(table.get(key("11.0.0.0")));
+        assertNull(table.get(key("255.255.255.255")));
+    }
+
+    @Test
+    void givenIpv4NetworksAboveTheSignBitThenTheyAreOrderedAsUnsignedAddresses() throws UnknownHostException {
+        final RangeTable table = new RangeTable.Builder()
+                .add(network("192.168.0.0", 16), result("high"))
+                .add(network("100.64.0.0", 10), result("low"))
+                .build();
+
+        assertEquals("high", countryOf(table.get(key("192.168.1.1"))));
+        assertEquals("low", countryOf(table.get(key("100.64.1.1"))));
+        assertNull(table.get(key("128.0.0.1")));
+    }
+
+    @Test
+    void givenIpv6NetworksThenEveryAddressOfTheNetworksIsAnswered() throws UnknownHostException {
+        final RangeTable table = new RangeTable.Builder()
+                .add(network("2a02:d5c0::", 29), result("spain"))
+                .add(network("2001:db8::", 32), result("documentation"))
+                .add(network("8000::", 1), result("upper half"))
+                .build();
+
+        assertEquals("spain", countryOf(table.get(key("2a02:d5c0::1"))));
+        assertEquals("spain", countryOf(table.get(key("2a02:d5c7:ffff::"))));
+        assertEquals("documentation", countryOf(table.get(key("2001:db8:1::"))));
+        assertEquals("upper half", countryOf(table.get(key("ffff::1"))));
+        assertNull(table.get(key("2a02:d5c8::")));
+        assertNull(table.get(key("::1")));
+        assertNull(table.get(key("203.0.113.1")));
+    }
+
+    @Test
+    void givenResultThenTheNetworkContainingTheAddressIsReported() throws UnknownHostException {
+        final RangeTable table = new RangeTable.Builder()
+                .add(network("203.0.113.0", 24), result("documentation"))
+                .add(network("2a02:d5c0::", 29), result("spain"))
+                .build();
+
+        final Network ipv4Network = table.get(key("203.0.113.42")).getNetwork();
+        assertEquals(InetAddress.getByName("203.0.113.0"), ipv4Network.getNetworkAddress());
+        assertEquals(24, ipv4Network.getPrefixLength());
+
+        final Network ipv6Network = table.get(key("2a02:d5c1::")).getNetwork();
+        assertEquals(InetAddress.getByName("2a02:d5c0::"), ipv6Network.getNetworkAddress());
+        assertEquals(29, ipv6Network.getPrefixLength());
+    }
+
+    @Test
+    void givenIdenticalRecordsThenTheyShareOneResult() throws UnknownHostException {
+        final RangeTable table = new RangeTable.Builder()
+                .add(network("198.51.100.0", 24), result("documentation"))
+                .add(network("203.0.113.0", 24), result("documentation"))
+                .build();
+
+        assertEquals(2, table.size());
+        assertEquals(table.get(key("198.51.100.1")).getGeoData(), table.get(key("203.0.113.1")).getGeoData());
+    }
+
+    @Test
+    void givenUndecodableNetworkThenItIsLeftToTheDatabase() throws UnknownHostException {
+        final RangeTable table = new RangeTable.Builder()
+                .add(network("216.160.83.56", 30), result("united states"))
+                .addUndecodable(network("216.160.83.60", 32))
+                .build();
+
+        assertTrue(table.answers(key("216.160.83.58")));
+        assertFalse(table.answers(key("216.160.83.60")));
+        assertTrue(table.answers(key("216.160.83.61")));
+    }
+
+    @Test
+    void givenDatabaseWithCustomizedRecordThenTheOtherNetworksAreLoaded() throws IOException {
+        // the test database has a customized record for 216.160.83.60/32, whose number doesn't decode as an AsnResponse
+        final RangeTable table = RangeTable.load(MaxMindDatabases.GEOLITE2_ASN.toFile(), AsnResponse.class,
+                (record, network) -> LookupResult.of(Map.of(Field.AUTONOMOUS_SYSTEM_NUMBER, record.getAutonomousSystemNumber()), network));
+
+        assertTrue(table.answers(key("12.81.92.1")));
+        assertEquals(7018L, table.get(key("12.81.92.1")).getGeoData().get(Field.AUTONOMOUS_SYSTEM_NUMBER));
+        assertFalse(table.answers(key("216.160.83.60")));
+    }
+
+    private static LookupResult result(final String countryName) {
+        return LookupResult.of(Map.of(Field.COUNTRY_NAME, countryName), null);
+    }
+
+    private static Object countryOf(final LookupResult result) {
+        return result == null ? null : result.getGeoData().get(Field.COUNTRY_NAME);
+    }
+
+    private static Network network(final String address, final int prefixLength) throws UnknownHostException {
+        return new Network(InetAddress.getByName(address), prefixLength);
+    }
+
+    private static IpAddressKey key(final String address) throws UnknownHostException {
+        return IpAddressKey.of(InetAddress.getByName(address));
+    }
+}
@@ -0,0 +1,48 @@
+package org.logstash.filters.geoip;
+
+import com.maxmind.db.Network;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReservedAddressesTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "0.0.0.0", "10.1.2.3", "100.64.0.1", "100.127.255.255", "127.0.0.1", "169.254.10.20", "172.16.0.1",
+            "172.31.255.255", "192.168.1.1", "198.18.0.1", "224.0.0.251", "239.255.255.250", "255.255.255.255",
+            "::ffff:10.0.0.1", "::", "::1", "fc00::1", "fd12:3456::1", "fe80::1", "ff02::1", "100::1"
+    })
+    void reservedAddressesShouldBeClassifiedAsReserved(final String ip) {
+        assertTrue(ReservedAddresses.isReserved(IpAddressParser.parse(ip)), ip);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "8.8.8.8", "1.1.1.1", "100.63.255.255", "100.128.0.0", "172.15.255.255", "172.32.0.0", "192.169.0.1",
+            "216.160.83.58", "223.255.255.255", "2a02:d5c0::", "2001:4860:4860::8888", "fec0::1",
+            // documentation ranges, which test and custom databases have records for
+            "192.0.2.1", "198.51.100.7", "203.0.113.9", "2001:db8::1"
+    })
+    void publicAddressesShouldNotBeClassifiedAsReserved(final String ip) {
+        assertFalse(ReservedAddresses.isReserved(IpAddressParser.parse(ip)), ip);
+    }
+
+    @Test
+    void networksShouldHoldOnlyReservedAddresses() {
+        assertEquals(16, ReservedAddresses.networks().size());
+        for (Network network : ReservedAddresses.networks()) {
+            final IpAddressKey first = IpAddressKey.of(network.getNetworkAddress());
+            final int hostBits = (network.getNetworkAddress().getAddress().length == 4 ? 32 : 128) - network.getPrefixLength();
+            final IpAddressKey last = hostBits >= 64
+                    ? new IpAddressKey(first.high() | (hostBits >= 128 ? -1L : (1L << (hostBits - 64)) - 1), -1L)
+                    : new IpAddressKey(first.high(), first.low() | ((1L << hostBits) - 1));
+            assertTrue(ReservedAddresses.isReserved(first), network.toString());
+            assertTrue(ReservedAddresses.isReserved(last), network.toString());
+        }
+    }
+}
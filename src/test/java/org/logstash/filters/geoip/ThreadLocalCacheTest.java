@@ -0,0 +1,62 @@
+package org.logstash.filters.geoip;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ThreadLocalCacheTest {
+
+    @Test
+    void givenSameGenerationThenEntriesAreReturned() {
+        final ThreadLocalCache<String, String> cache = new ThreadLocalCache<>(16);
+        cache.put("a", "1", 1L);
+        cache.put("b", "2", 1L);
+        assertEquals("1", cache.get("a", 1L));
+        assertEquals("2", cache.get("b", 1L));
+        assertNull(cache.get("c", 1L));
+    }
+
+    @Test
+    void givenAnotherGenerationThenEntriesAreDropped() {
+        final ThreadLocalCache<String, String> cache = new ThreadLocalCache<>(16);
+        cache.put("a", "1", 1L);
+        assertNull(cache.get("a", 2L));
+        // the entries of the previous generation are gone for good
+        assertNull(cache.get("a", 1L));
+    }
+
+    @Test
+    void givenAnotherThreadThenEntriesAreNotShared() throws Exception {
+        final ThreadLocalCache<String, String> cache = new ThreadLocalCache<>(16);
+        cache.put("a", "1", 1L);
+        assertNull(CompletableFuture.supplyAsync(() -> cache.get("a", 1L)).get());
+        assertEquals("1", cache.get("a", 1L));
+    }
+
+    @Test
+    void givenKeysMappedToTheSameSlotThenTheLatestWins() {
+        final ThreadLocalCache<Integer, String> cache = new ThreadLocalCache<>(1);
+        cache.put(1, "1", 1L);
+        cache.put(2, "2", 1L);
+        assertNull(cache.get(1, 1L));
+        assertEquals("2", cache.get(2, 1L));
+    }
+
+    @Test
+    void capacityShouldBeRoundedUpToAPowerOfTwo() {
+        assertEquals(1, new ThreadLocalCache<>(1).capacity());
+        assertEquals(128, new ThreadLocalCache<>(100).capacity());
+        assertEquals(ThreadLocalCache.MAX_CAPACITY, new ThreadLocalCache<>(Integer.MAX_VALUE).capacity());
+    }
+
+    @Test
+    void givenZeroCapacityThenNothingIsCached() {
+        final ThreadLocalCache<String, String> cache = new ThreadLocalCache<>(0);
+        assertEquals(0, cache.capacity());
+        cache.put("a", "1", 1L);
+        assertNull(cache.get("a", 1L));
+    }
+}